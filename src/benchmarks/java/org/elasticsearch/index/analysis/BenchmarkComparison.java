@@ -0,0 +1,105 @@
+package org.elasticsearch.index.analysis;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.io.PathUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares the JMH results (JSON) of a run with a baseline, and fails when the time or the bytes allocated per
+ * operation of a benchmark grew by more than a threshold:
+ * <pre>
+ * java -cp ... org.elasticsearch.index.analysis.BenchmarkComparison baseline.json result.json [threshold]
+ * </pre>
+ */
+public final class BenchmarkComparison {
+
+    private static final String ALLOCATION_METRIC = "·gc.alloc.rate.norm";
+
+    @SuppressForbidden(reason = "command line tool")
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("usage: BenchmarkComparison <baseline.json> <result.json> [threshold]");
+        }
+        Map<String, JsonObject> baseline = read(args[0]);
+        Map<String, JsonObject> result = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonObject> entry : result.entrySet()) {
+            JsonObject base = baseline.get(entry.getKey());
+            if (base == null) {
+                System.out.printf(Locale.ROOT, "%-90s no baseline%n", entry.getKey());
+                continue;
+            }
+            boolean higherIsBetter = entry.getValue().get("mode").getAsString().equals("thrpt");
+            double timeChange = change(score(base, null), score(entry.getValue(), null), higherIsBetter);
+            double allocationChange = change(score(base, ALLOCATION_METRIC), score(entry.getValue(), ALLOCATION_METRIC), false);
+            boolean regressed = timeChange > threshold || allocationChange > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf(Locale.ROOT, "%-90s time %+7.1f%%  alloc %+7.1f%%%s%n", entry.getKey(), 100 * timeChange,
+                100 * allocationChange, regressed ? "  REGRESSION" : "");
+        }
+        if (regressions > 0) {
+            System.out.printf(Locale.ROOT, "%d benchmarks regressed by more than %.0f%%%n", regressions, 100 * threshold);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the results of a JMH run by benchmark and parameters.
+     */
+    private static Map<String, JsonObject> read(String path) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(PathUtils.get(path), StandardCharsets.UTF_8)) {
+            for (JsonElement element : new JsonParser().parse(reader).getAsJsonArray()) {
+                JsonObject benchmark = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(benchmark.get("benchmark").getAsString());
+                if (benchmark.has("params")) {
+                    Map<String, JsonElement> params = new TreeMap<>();
+                    for (Map.Entry<String, JsonElement> param : benchmark.getAsJsonObject("params").entrySet()) {
+                        params.put(param.getKey(), param.getValue());
+                    }
+                    for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+                        key.append(' ').append(param.getKey()).append('=').append(param.getValue().getAsString());
+                    }
+                }
+                results.put(key.toString(), benchmark);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param metric the secondary metric, or null for the primary metric
+     * @return the score, or NaN if the metric was not measured
+     */
+    private static double score(JsonObject benchmark, String metric) {
+        JsonObject scores = metric == null ? benchmark.getAsJsonObject("primaryMetric")
+            : benchmark.getAsJsonObject("secondaryMetrics").getAsJsonObject(metric);
+        return scores == null ? Double.NaN : scores.get("score").getAsDouble();
+    }
+
+    /**
+     * @return the relative change of the score, positive when it got worse (0 if unknown)
+     */
+    private static double change(double base, double score, boolean higherIsBetter) {
+        if (Double.isNaN(base) || Double.isNaN(score) || base == 0) {
+            return 0;
+        }
+        double change = (score - base) / base;
+        return higherIsBetter ? -change : change;
+    }
+}
@@ -0,0 +1,88 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.analysis.mock.BenchmarkPayloads;
+import org.elasticsearch.index.analysis.mock.BenchmarkStreamHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the annotation of a document by Dandelion API (served by the mock transport, so without network
+ * latency) with the annotation by a {@link DandelionDictionary} of {@link #SYNTHETIC_FORMS} surface forms.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DandelionDictionaryBenchmark {
+
+    static final int SYNTHETIC_FORMS = 500000;
+
+    @Param({"api", "dictionary"})
+    public String source;
+
+    @Param({"1024", "65536"})
+    public int chars;
+
+    @Param({"10"})
+    public int entitiesPerKb;
+
+    private String text;
+    private DandelionTokenizer tokenizer;
+
+    @Setup
+    @SuppressForbidden(reason = "prints the size of the benchmarked data")
+    public void setup() throws IOException {
+        text = BenchmarkPayloads.document(chars, entitiesPerKb);
+        if (source.equals("dictionary")) {
+            DandelionDictionary dictionary = BenchmarkPayloads.dictionary(SYNTHETIC_FORMS);
+            System.out.println("dictionary of " + dictionary.size() + " surface forms, "
+                + new ByteSizeValue(dictionary.ramBytesUsed()) + " on heap");
+            DandelionTokenizer.setDictionaries(Collections.singletonMap("it", dictionary));
+            tokenizer = new DandelionTokenizer(null, "it", "dictionary");
+        } else {
+            BenchmarkStreamHandler handler = BenchmarkStreamHandler.install()
+                .addResponder("api.dandelion.eu", BenchmarkPayloads::nexResponse);
+            tokenizer = new DandelionTokenizer("token", "it", "api");
+            handler.setRecording(true);
+            tokenize();
+            handler.setRecording(false);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        DandelionTokenizer.setDictionaries(null);
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        tokenizer.reset();
+        int tokens = 0;
+        while (tokenizer.incrementToken()) {
+            tokens++;
+        }
+        tokenizer.end();
+        tokenizer.close();
+        return tokens;
+    }
+}
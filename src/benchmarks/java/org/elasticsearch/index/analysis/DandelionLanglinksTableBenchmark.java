@@ -0,0 +1,89 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookup of the langlinks of a page in a {@link DandelionLanglinksTable}, which replaces a request to
+ * the Wikipedia API when the table of the language of the entity is installed.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class DandelionLanglinksTableBenchmark {
+
+    private static final String[] LANGS = {"de", "en", "es", "fr", "nl", "pl", "pt", "ru"};
+
+    @Param({"1000000"})
+    public int pages;
+
+    private Path directory;
+    private DandelionLanglinksTable table;
+    private String[] titles;
+    private int next = 0;
+
+    @Setup
+    @SuppressForbidden(reason = "prints the size of the benchmarked data")
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("langlinks");
+        Path path = directory.resolve("it" + DandelionLanglinksTable.FILE_SUFFIX);
+        try (DandelionLanglinksTable.Writer writer = new DandelionLanglinksTable.Writer(path, "it")) {
+            for (int i = 0; i < pages; i++) {
+                Map<String, String> langlinks = new TreeMap<>();
+                for (int lang = 0; lang < i % LANGS.length; lang++) {
+                    langlinks.put(LANGS[lang], title(i) + " (" + LANGS[lang] + ")");
+                }
+                writer.add(title(i), langlinks);
+            }
+        }
+        table = DandelionLanglinksTable.open(path);
+        System.out.println("langlinks table of " + table.size() + " pages, " + new ByteSizeValue(table.sizeInBytes()));
+
+        Random random = new Random(pages);
+        titles = new String[4096];
+        for (int i = 0; i < titles.length; i++) {
+            titles[i] = random.nextInt(10) == 0 ? title(random.nextInt(pages)) + "_mancante" : title(random.nextInt(pages));
+        }
+    }
+
+    private static String title(int page) {
+        return String.format(Locale.ROOT, "Pagina_%08d", page);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        table.close();
+        Files.delete(directory.resolve("it" + DandelionLanglinksTable.FILE_SUFFIX));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public String[] get() throws IOException {
+        next = (next + 1) & (titles.length - 1);
+        return table.get(titles[next]);
+    }
+}
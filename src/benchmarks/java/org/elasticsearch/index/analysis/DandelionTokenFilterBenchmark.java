@@ -0,0 +1,73 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.index.analysis.mock.BenchmarkPayloads;
+import org.elasticsearch.index.analysis.mock.BenchmarkStreamHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the analysis of a document by the tokenizer followed by the token filter; with multilang the langlinks
+ * of the entities are requested to Wikipedia (without langlinks cache).
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DandelionTokenFilterBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int chars;
+
+    @Param({"2", "10", "40"})
+    public int entitiesPerKb;
+
+    @Param({"false", "true"})
+    public String multilang;
+
+    private String text;
+    private DandelionTokenizer tokenizer;
+    private DandelionTokenFilter filter;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkStreamHandler handler = BenchmarkStreamHandler.install()
+            .addResponder("api.dandelion.eu", BenchmarkPayloads::nexResponse)
+            .addResponder("it.wikipedia.org", BenchmarkPayloads::langlinksResponse);
+        text = BenchmarkPayloads.document(chars, entitiesPerKb);
+        tokenizer = new DandelionTokenizer("token", "it", "api",
+            DandelionTokenizerBenchmark.SEGMENT_SIZE, DandelionTokenizerBenchmark.SEGMENT_OVERLAP);
+        filter = new DandelionTokenFilter(tokenizer, multilang);
+
+        handler.setRecording(true);
+        analyze();
+        handler.setRecording(false);
+    }
+
+    @Benchmark
+    public int analyze() throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        filter.reset();
+        int tokens = 0;
+        while (filter.incrementToken()) {
+            tokens++;
+        }
+        filter.end();
+        filter.close();
+        return tokens;
+    }
+}
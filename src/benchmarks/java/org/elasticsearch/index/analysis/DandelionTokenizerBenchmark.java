@@ -0,0 +1,72 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.index.analysis.mock.BenchmarkPayloads;
+import org.elasticsearch.index.analysis.mock.BenchmarkStreamHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the annotation of a document by the tokenizer, from {@link DandelionTokenizer#reset()} (request to
+ * Dandelion API and parsing of the response) to the last {@link DandelionTokenizer#incrementToken()}.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DandelionTokenizerBenchmark {
+
+    /**
+     * Texts longer than 100000 characters are annotated in segments, as 1 MiB texts do not fit a single request.
+     */
+    static final int SEGMENT_SIZE = DandelionTokenizer.MAX_SEGMENT_SIZE;
+    static final int SEGMENT_OVERLAP = 200;
+
+    @Param({"1024", "65536", "1048576"})
+    public int chars;
+
+    @Param({"2", "10", "40"})
+    public int entitiesPerKb;
+
+    private String text;
+    private DandelionTokenizer tokenizer;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkStreamHandler handler = BenchmarkStreamHandler.install()
+            .addResponder("api.dandelion.eu", BenchmarkPayloads::nexResponse);
+        text = BenchmarkPayloads.document(chars, entitiesPerKb);
+        tokenizer = new DandelionTokenizer("token", "it", "api", SEGMENT_SIZE, SEGMENT_OVERLAP);
+
+        handler.setRecording(true);
+        tokenize();
+        handler.setRecording(false);
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        tokenizer.reset();
+        int tokens = 0;
+        while (tokenizer.incrementToken()) {
+            tokens++;
+        }
+        tokenizer.end();
+        tokenizer.close();
+        return tokens;
+    }
+}
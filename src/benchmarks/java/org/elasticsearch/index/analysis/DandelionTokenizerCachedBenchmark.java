@@ -0,0 +1,74 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.index.analysis.mock.BenchmarkPayloads;
+import org.elasticsearch.index.analysis.mock.BenchmarkStreamHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the tokenization of a document whose annotations are served by the annotation cache, so that only the
+ * tokenizer itself is measured: with the GC profiler, gc.alloc.rate.norm is the memory it allocates per document.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DandelionTokenizerCachedBenchmark {
+
+    @Param({"1024", "65536"})
+    public int chars;
+
+    @Param({"10", "40"})
+    public int entitiesPerKb;
+
+    private String text;
+    private DandelionTokenizer tokenizer;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkStreamHandler handler = BenchmarkStreamHandler.install()
+            .addResponder("api.dandelion.eu", BenchmarkPayloads::nexResponse);
+        DandelionTokenizer.setAnnotationCache(new DandelionAnnotationCache(256 * 1024 * 1024));
+        text = BenchmarkPayloads.document(chars, entitiesPerKb);
+        tokenizer = new DandelionTokenizer("token", "it");
+
+        // the first tokenization fills the cache
+        handler.setRecording(true);
+        tokenize();
+        handler.setRecording(false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        DandelionTokenizer.setAnnotationCache(null);
+    }
+
+    @Benchmark
+    public int tokenize() throws IOException {
+        tokenizer.setReader(new StringReader(text));
+        tokenizer.reset();
+        int tokens = 0;
+        while (tokenizer.incrementToken()) {
+            tokens++;
+        }
+        tokenizer.end();
+        tokenizer.close();
+        return tokens;
+    }
+}
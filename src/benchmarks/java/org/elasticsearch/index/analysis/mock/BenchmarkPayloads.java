@@ -0,0 +1,226 @@
+package org.elasticsearch.index.analysis.mock;
+
+import com.google.gson.stream.JsonWriter;
+import org.elasticsearch.index.analysis.DandelionDictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Italian documents with a given density of entities, and the responses that Dandelion API and the Wikipedia
+ * langlinks API would send for them.
+ */
+public final class BenchmarkPayloads {
+
+    private static final String[] WORDS = {"il", "la", "di", "che", "è", "e", "un", "una", "per", "con", "nel",
+        "della", "città", "anni", "storia", "opera", "secolo", "famoso", "grande", "viene", "considerato", "dove",
+        "museo", "dipinto", "visitatori", "come", "primo", "più", "dopo", "durante", "fu", "sono", "tra", "molto",
+        "ancora", "oggi", "parte", "centro", "nord", "sud", "periodo", "tempo", "stato", "italiana", "quando"};
+
+    private static final String[] SPOTS = {"Gioconda", "Leonardo da Vinci", "Museo del Louvre", "Parigi", "Firenze",
+        "Michelangelo Buonarroti", "Cappella Sistina", "Roma", "Torre Eiffel", "Galileo Galilei",
+        "Università di Padova", "Dante Alighieri", "Divina Commedia", "Venezia", "Canal Grande", "Milano",
+        "Castello Sforzesco", "Alessandro Manzoni", "I promessi sposi", "Giuseppe Verdi", "Teatro alla Scala",
+        "Napoli", "Vesuvio", "Pompei", "Torino", "Mole Antonelliana", "Trento", "Dolomiti", "Sicilia", "Etna",
+        "Giuseppe Garibaldi", "Unità d'Italia", "Rinascimento", "Umberto Eco", "Il nome della rosa",
+        "Lago di Garda", "Monte Bianco", "Appennini", "Sardegna", "Alpi"};
+
+    /**
+     * Languages of the langlinks of every page, including some not supported by the plugin.
+     */
+    private static final String[] LANGLINKS = {"af", "an", "ar", "ast", "az", "be", "bg", "bn", "br", "ca", "cs",
+        "cy", "da", "de", "el", "en", "eo", "es", "et", "eu", "fa", "fi", "fr", "ga", "gl", "he", "hi", "hr", "hu",
+        "hy", "id", "is", "ja", "ka", "kk", "ko", "la", "lb", "lt", "lv", "mk", "ml", "ms", "nl", "no", "oc", "pl",
+        "pt", "ro", "ru", "sk", "sl", "sq", "sv", "ta", "th", "tr", "uk", "vi", "zh"};
+
+    private BenchmarkPayloads() {
+    }
+
+    /**
+     * Returns a text of the given length with, on average, entitiesPerKb entity mentions every 1024 characters.
+     */
+    public static String document(int chars, int entitiesPerKb) {
+        Random random = new Random(chars * 31L + entitiesPerKb);
+        double interval = 1024.0 / entitiesPerKb;
+        double nextEntity = interval * random.nextDouble();
+        StringBuilder text = new StringBuilder(chars + 64);
+        int words = 0;
+        while (text.length() < chars) {
+            if (text.length() >= nextEntity) {
+                text.append(SPOTS[random.nextInt(SPOTS.length)]);
+                nextEntity += interval * (0.5 + random.nextDouble());
+            } else {
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            text.append(++words % 15 == 0 ? ". " : " ");
+        }
+        text.setLength(chars);
+        return text.toString();
+    }
+
+    /**
+     * Returns an Italian dictionary that links the known entities as {@link #nexResponse(byte[])} does, padded with
+     * the given number of made up surface forms so that its size is close to the one of a real dictionary. Half of
+     * them start with a word of the documents, so that the lookups do not stop at the first character.
+     */
+    public static DandelionDictionary dictionary(int syntheticForms) throws IOException {
+        DandelionDictionary.Builder builder = new DandelionDictionary.Builder("it");
+        for (String spot : SPOTS) {
+            builder.add(spot, spot, 100);
+        }
+        Random random = new Random(syntheticForms);
+        StringBuilder surface = new StringBuilder();
+        for (int i = 0; i < syntheticForms; i++) {
+            surface.setLength(0);
+            if (random.nextBoolean()) {
+                surface.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            for (int length = 4 + random.nextInt(8); length > 0; length--) {
+                surface.append((char) ('a' + random.nextInt(26)));
+            }
+            builder.add(surface.toString(), "Pagina " + i, 1 + random.nextInt(50));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the response of Dandelion API (nex) to a request: the mentions of the known entities in its text.
+     */
+    public static byte[] nexResponse(byte[] request) {
+        String text = parameter(request, "text");
+        List<int[]> mentions = new ArrayList<>();
+        for (int spot = 0; spot < SPOTS.length; spot++) {
+            for (int start = text.indexOf(SPOTS[spot]); start != -1; start = text.indexOf(SPOTS[spot], start + 1)) {
+                mentions.add(new int[] {start, spot});
+            }
+        }
+        Collections.sort(mentions, (a, b) -> Integer.compare(a[0], b[0]));
+
+        return json(writer -> {
+            writer.beginObject();
+            writer.name("time").value(2);
+            writer.name("annotations").beginArray();
+            for (int[] mention : mentions) {
+                String label = SPOTS[mention[1]];
+                writer.beginObject();
+                writer.name("start").value(mention[0]);
+                writer.name("end").value(mention[0] + label.length());
+                writer.name("spot").value(label);
+                writer.name("confidence").value(0.6 + (mention[1] % 40) / 100.0);
+                writer.name("id").value(pageId(label));
+                writer.name("title").value(label);
+                writer.name("uri").value("http://it.wikipedia.org/wiki/" + title(label));
+                writer.name("label").value(label);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.name("lang").value("it");
+            writer.name("langConfidence").value(1.0);
+            writer.name("timestamp").value("2018-04-12T08:55:36.282");
+            writer.endObject();
+        });
+    }
+
+    /**
+     * Returns the response of the Wikipedia langlinks API to a request: the langlinks of the requested titles in
+     * all the {@link #LANGLINKS} languages.
+     */
+    public static byte[] langlinksResponse(byte[] request) {
+        List<String> titles = new ArrayList<>();
+        for (String title : parameter(request, "titles").split("\\|")) {
+            titles.add(title);
+        }
+
+        return json(writer -> {
+            writer.beginObject();
+            writer.name("batchcomplete").value("");
+            writer.name("query").beginObject();
+            writer.name("normalized").beginArray();
+            for (String title : titles) {
+                if (title.indexOf('_') != -1) {
+                    writer.beginObject();
+                    writer.name("from").value(title);
+                    writer.name("to").value(title.replace('_', ' '));
+                    writer.endObject();
+                }
+            }
+            writer.endArray();
+            writer.name("pages").beginObject();
+            for (String title : titles) {
+                String label = title.replace('_', ' ');
+                writer.name(Integer.toString(pageId(label))).beginObject();
+                writer.name("pageid").value(pageId(label));
+                writer.name("ns").value(0);
+                writer.name("title").value(label);
+                writer.name("langlinks").beginArray();
+                for (String lang : LANGLINKS) {
+                    writer.beginObject();
+                    writer.name("lang").value(lang);
+                    writer.name("url").value("https://" + lang + ".wikipedia.org/wiki/" + title(label));
+                    writer.name("*").value(label);
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.endObject();
+        });
+    }
+
+    private static int pageId(String label) {
+        return 1000 + Arrays.asList(SPOTS).indexOf(label);
+    }
+
+    private static String title(String label) {
+        try {
+            return URLEncoder.encode(label, "UTF-8").replace('+', '_');
+        } catch (UnsupportedEncodingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String parameter(byte[] request, String name) {
+        String prefix = name + "=";
+        for (String parameter : new String(request, StandardCharsets.UTF_8).split("&")) {
+            if (parameter.startsWith(prefix)) {
+                try {
+                    return URLDecoder.decode(parameter.substring(prefix.length()), "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException(String.format(Locale.ROOT, "missing parameter [%s]", name));
+    }
+
+    private interface JsonBody {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private static byte[] json(JsonBody body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            JsonWriter jsonWriter = new JsonWriter(writer);
+            body.write(jsonWriter);
+            jsonWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
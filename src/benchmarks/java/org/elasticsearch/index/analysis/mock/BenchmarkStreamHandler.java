@@ -0,0 +1,161 @@
+package org.elasticsearch.index.analysis.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Serves the https requests of the benchmarks without network: the response to each distinct request body is
+ * computed once, while recording, and then looked up by a hash of the body, so that the measured code only pays
+ * for writing the request and reading a response from memory.
+ */
+public final class BenchmarkStreamHandler extends URLStreamHandler {
+
+    private static final BenchmarkStreamHandler INSTANCE = new BenchmarkStreamHandler();
+    private static boolean installed = false;
+
+    private final Map<String, Function<byte[], byte[]>> responders = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]> responses = new ConcurrentHashMap<>();
+    private volatile boolean recording = false;
+
+    private BenchmarkStreamHandler() {
+    }
+
+    /**
+     * Installs the handler of the https urls of the JVM (once).
+     */
+    public static synchronized BenchmarkStreamHandler install() {
+        if (!installed) {
+            URL.setURLStreamHandlerFactory(protocol -> "https".equals(protocol) ? INSTANCE : null);
+            installed = true;
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the function computing the response body to a request body for the urls of a host.
+     */
+    public BenchmarkStreamHandler addResponder(String host, Function<byte[], byte[]> responder) {
+        responders.put(host, responder);
+        return this;
+    }
+
+    /**
+     * While recording, the responses to the requests are computed and kept; otherwise, requests whose response
+     * was not recorded fail.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    @Override
+    protected URLConnection openConnection(URL url) throws IOException {
+        Function<byte[], byte[]> responder = responders.get(url.getHost());
+        if (responder == null) {
+            throw new IOException("no responder for host " + url.getHost());
+        }
+        return new BenchmarkConnection(url, responder);
+    }
+
+    private final class BenchmarkConnection extends HttpURLConnection {
+
+        private final Function<byte[], byte[]> responder;
+        private final HashingOutputStream request = new HashingOutputStream(recording);
+        private byte[] response;
+
+        BenchmarkConnection(URL url, Function<byte[], byte[]> responder) {
+            super(url);
+            this.responder = responder;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            connect();
+            return request;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (response == null) {
+                if (request.body != null) {
+                    response = responses.computeIfAbsent(request.hash, h -> responder.apply(request.body.toByteArray()));
+                } else {
+                    response = responses.get(request.hash);
+                    if (response == null) {
+                        throw new IOException("no response recorded for the request to " + url.getHost());
+                    }
+                }
+                responseCode = HTTP_OK;
+            }
+            return responseCode;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return response == null ? -1 : response.length;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            getResponseCode();
+            return new ByteArrayInputStream(response);
+        }
+    }
+
+    /**
+     * Computes the 64 bits FNV-1a hash of the written bytes, keeping them only while recording.
+     */
+    private static final class HashingOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream body;
+        private long hash = 0xcbf29ce484222325L;
+
+        HashingOutputStream(boolean keepBody) {
+            body = keepBody ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public void write(int b) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            if (body != null) {
+                body.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            long h = hash;
+            for (int i = off; i < off + len; i++) {
+                h = (h ^ (b[i] & 0xff)) * 0x100000001b3L;
+            }
+            hash = h;
+            if (body != null) {
+                body.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.analysis.DandelionCircuitBreaker;
+import org.elasticsearch.index.analysis.DandelionHttpClient;
+import org.elasticsearch.index.analysis.DandelionStats;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dandelion stats of a node: requests sent to each API, caches, and documents annotated for each index.
+ */
+public class DandelionNodeStats extends BaseNodeResponse implements ToXContentFragment {
+
+    private Map<String, EndpointStats> endpoints;
+    private Map<String, CacheStats> caches;
+    private Map<String, IndexStats> indices;
+
+    DandelionNodeStats() {
+    }
+
+    public DandelionNodeStats(DiscoveryNode node, DandelionStats stats) {
+        super(node);
+        endpoints = new TreeMap<>();
+        caches = new TreeMap<>();
+        indices = new TreeMap<>();
+        if (stats.dandelionClient() != null) {
+            endpoints.put("dandelion", new EndpointStats(stats.dandelionClient(), stats.dandelionCircuitBreaker()));
+        }
+        if (stats.wikipediaClient() != null) {
+            endpoints.put("wikipedia", new EndpointStats(stats.wikipediaClient(), stats.wikipediaCircuitBreaker()));
+        }
+        if (stats.annotationCache() != null) {
+            caches.put("annotations", new CacheStats(stats.annotationCache().count(), stats.annotationCache().weight(),
+                stats.annotationCache().stats()));
+        }
+        if (stats.langlinksCache() != null) {
+            caches.put("langlinks", new CacheStats(stats.langlinksCache().count(), stats.langlinksCache().weight(),
+                stats.langlinksCache().stats()));
+        }
+        if (stats.queryCache() != null) {
+            caches.put("queries", new CacheStats(stats.queryCache().count(), stats.queryCache().weight(),
+                stats.queryCache().stats()));
+        }
+        if (stats.annotationStore() != null) {
+            caches.put("annotation_store", new CacheStats(stats.annotationStore().count(), stats.annotationStore().totalSize(),
+                stats.annotationStore().hits(), stats.annotationStore().misses(), 0));
+        }
+        for (Map.Entry<String, DandelionStats.Index> index : stats.indices().entrySet()) {
+            indices.put(index.getKey(), new IndexStats(index.getValue()));
+        }
+    }
+
+    public static DandelionNodeStats readNodeStats(StreamInput in) throws IOException {
+        DandelionNodeStats nodeStats = new DandelionNodeStats();
+        nodeStats.readFrom(in);
+        return nodeStats;
+    }
+
+    public Map<String, EndpointStats> getEndpoints() {
+        return endpoints;
+    }
+
+    public Map<String, CacheStats> getCaches() {
+        return caches;
+    }
+
+    public Map<String, IndexStats> getIndices() {
+        return indices;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        endpoints = new TreeMap<>(in.readMap(StreamInput::readString, EndpointStats::new));
+        caches = new TreeMap<>(in.readMap(StreamInput::readString, CacheStats::new));
+        indices = new TreeMap<>(in.readMap(StreamInput::readString, IndexStats::new));
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeMap(endpoints, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+        out.writeMap(caches, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+        out.writeMap(indices, StreamOutput::writeString, (o, stats) -> stats.writeTo(o));
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("endpoints");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            builder.startObject(endpoint.getKey());
+            endpoint.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("caches");
+        for (Map.Entry<String, CacheStats> cache : caches.entrySet()) {
+            builder.startObject(cache.getKey());
+            cache.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("indices");
+        for (Map.Entry<String, IndexStats> index : indices.entrySet()) {
+            builder.startObject(index.getKey());
+            index.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    public static class EndpointStats implements Writeable, ToXContentFragment {
+
+        private final long requests;
+        private final long retries;
+        private final long hedged;
+        private final long deduplicated;
+        private final long inFlight;
+        private final Map<String, Long> errors;
+        private final long p50Micros;
+        private final long p95Micros;
+        private final long p99Micros;
+        private final long maxMicros;
+        private final long requestBytes;
+        private final long responseBytes;
+        private final double units;
+        private final String circuitBreaker;
+
+        EndpointStats(DandelionHttpClient client, DandelionCircuitBreaker breaker) {
+            DandelionStats.Endpoint stats = client.stats();
+            requests = stats.requests();
+            retries = stats.retries();
+            hedged = stats.hedged();
+            deduplicated = stats.deduplicated();
+            inFlight = stats.inFlight();
+            errors = stats.errors();
+            p50Micros = stats.latency().percentileMicros(0.50);
+            p95Micros = stats.latency().percentileMicros(0.95);
+            p99Micros = stats.latency().percentileMicros(0.99);
+            maxMicros = stats.latency().maxMicros();
+            requestBytes = stats.requestBytes();
+            responseBytes = stats.responseBytes();
+            units = stats.units();
+            circuitBreaker = breaker == null ? null : breaker.state().name().toLowerCase(Locale.ROOT);
+        }
+
+        EndpointStats(StreamInput in) throws IOException {
+            requests = in.readVLong();
+            retries = in.readVLong();
+            hedged = in.readVLong();
+            deduplicated = in.readVLong();
+            inFlight = in.readVLong();
+            errors = new TreeMap<>(in.readMap(StreamInput::readString, StreamInput::readVLong));
+            p50Micros = in.readVLong();
+            p95Micros = in.readVLong();
+            p99Micros = in.readVLong();
+            maxMicros = in.readVLong();
+            requestBytes = in.readVLong();
+            responseBytes = in.readVLong();
+            units = in.readDouble();
+            circuitBreaker = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(requests);
+            out.writeVLong(retries);
+            out.writeVLong(hedged);
+            out.writeVLong(deduplicated);
+            out.writeVLong(inFlight);
+            out.writeMap(errors, StreamOutput::writeString, StreamOutput::writeVLong);
+            out.writeVLong(p50Micros);
+            out.writeVLong(p95Micros);
+            out.writeVLong(p99Micros);
+            out.writeVLong(maxMicros);
+            out.writeVLong(requestBytes);
+            out.writeVLong(responseBytes);
+            out.writeDouble(units);
+            out.writeOptionalString(circuitBreaker);
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public Map<String, Long> getErrors() {
+            return errors;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("requests", requests);
+            builder.field("retries", retries);
+            builder.field("hedged", hedged);
+            builder.field("deduplicated", deduplicated);
+            builder.field("in_flight", inFlight);
+            builder.field("errors", errors);
+            builder.startObject("latency");
+            builder.field("p50_in_millis", TimeUnit.MICROSECONDS.toMillis(p50Micros));
+            builder.field("p95_in_millis", TimeUnit.MICROSECONDS.toMillis(p95Micros));
+            builder.field("p99_in_millis", TimeUnit.MICROSECONDS.toMillis(p99Micros));
+            builder.field("max_in_millis", TimeUnit.MICROSECONDS.toMillis(maxMicros));
+            builder.endObject();
+            builder.field("request_size_in_bytes", requestBytes);
+            builder.field("response_size_in_bytes", responseBytes);
+            builder.field("units", units);
+            if (circuitBreaker != null) {
+                builder.field("circuit_breaker", circuitBreaker);
+            }
+            return builder;
+        }
+    }
+
+    public static class CacheStats implements Writeable, ToXContentFragment {
+
+        private final long count;
+        private final long sizeInBytes;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        CacheStats(long count, long sizeInBytes, Cache.CacheStats stats) {
+            this(count, sizeInBytes, stats.getHits(), stats.getMisses(), stats.getEvictions());
+        }
+
+        CacheStats(long count, long sizeInBytes, long hits, long misses, long evictions) {
+            this.count = count;
+            this.sizeInBytes = sizeInBytes;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        CacheStats(StreamInput in) throws IOException {
+            count = in.readVLong();
+            sizeInBytes = in.readVLong();
+            hits = in.readVLong();
+            misses = in.readVLong();
+            evictions = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(sizeInBytes);
+            out.writeVLong(hits);
+            out.writeVLong(misses);
+            out.writeVLong(evictions);
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("count", count);
+            builder.field("size_in_bytes", sizeInBytes);
+            builder.field("hits", hits);
+            builder.field("misses", misses);
+            builder.field("evictions", evictions);
+            return builder;
+        }
+    }
+
+    public static class IndexStats implements Writeable, ToXContentFragment {
+
+        private final long documents;
+        private final long failed;
+        private final long degraded;
+        private final long entities;
+        private final long timeInMillis;
+
+        IndexStats(DandelionStats.Index stats) {
+            documents = stats.documents();
+            failed = stats.failed();
+            degraded = stats.degraded();
+            entities = stats.entities();
+            timeInMillis = stats.timeInMillis();
+        }
+
+        IndexStats(StreamInput in) throws IOException {
+            documents = in.readVLong();
+            failed = in.readVLong();
+            degraded = in.readVLong();
+            entities = in.readVLong();
+            timeInMillis = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(documents);
+            out.writeVLong(failed);
+            out.writeVLong(degraded);
+            out.writeVLong(entities);
+            out.writeVLong(timeInMillis);
+        }
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("documents", documents);
+            builder.field("failed", failed);
+            builder.field("degraded", degraded);
+            builder.field("entities", entities);
+            builder.field("time_in_millis", timeInMillis);
+            return builder;
+        }
+    }
+}
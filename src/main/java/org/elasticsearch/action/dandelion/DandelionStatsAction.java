@@ -0,0 +1,24 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class DandelionStatsAction extends Action<DandelionStatsRequest, DandelionStatsResponse, DandelionStatsRequestBuilder> {
+
+    public static final DandelionStatsAction INSTANCE = new DandelionStatsAction();
+    public static final String NAME = "cluster:monitor/nodes/dandelion/stats";
+
+    private DandelionStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public DandelionStatsResponse newResponse() {
+        return new DandelionStatsResponse();
+    }
+
+    @Override
+    public DandelionStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new DandelionStatsRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,13 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+/**
+ * Requests the dandelion stats of the given nodes (all the nodes if none is specified).
+ */
+public class DandelionStatsRequest extends BaseNodesRequest<DandelionStatsRequest> {
+
+    public DandelionStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
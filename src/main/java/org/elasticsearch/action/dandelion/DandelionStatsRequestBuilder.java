@@ -0,0 +1,12 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class DandelionStatsRequestBuilder
+    extends NodesOperationRequestBuilder<DandelionStatsRequest, DandelionStatsResponse, DandelionStatsRequestBuilder> {
+
+    public DandelionStatsRequestBuilder(ElasticsearchClient client, DandelionStatsAction action) {
+        super(client, action, new DandelionStatsRequest());
+    }
+}
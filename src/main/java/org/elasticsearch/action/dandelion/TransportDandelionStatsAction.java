@@ -0,0 +1,62 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.analysis.DandelionStats;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportDandelionStatsAction extends TransportNodesAction<DandelionStatsRequest, DandelionStatsResponse,
+    TransportDandelionStatsAction.NodeRequest, DandelionNodeStats> {
+
+    private final DandelionStats stats;
+
+    @Inject
+    public TransportDandelionStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                         TransportService transportService, ActionFilters actionFilters,
+                                         IndexNameExpressionResolver indexNameExpressionResolver, DandelionStats stats) {
+        super(settings, DandelionStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+            indexNameExpressionResolver, DandelionStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT,
+            DandelionNodeStats.class);
+        this.stats = stats;
+    }
+
+    @Override
+    protected DandelionStatsResponse newResponse(DandelionStatsRequest request, List<DandelionNodeStats> responses,
+                                                 List<FailedNodeException> failures) {
+        return new DandelionStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, DandelionStatsRequest request) {
+        return new NodeRequest(nodeId);
+    }
+
+    @Override
+    protected DandelionNodeStats newNodeResponse() {
+        return new DandelionNodeStats();
+    }
+
+    @Override
+    protected DandelionNodeStats nodeOperation(NodeRequest request) {
+        return new DandelionNodeStats(clusterService.localNode(), stats);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
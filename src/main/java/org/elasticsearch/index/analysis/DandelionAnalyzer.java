@@ -1,7 +1,6 @@
 package org.elasticsearch.index.analysis;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.TokenStream;
 
 
@@ -10,18 +9,74 @@ public class DandelionAnalyzer extends Analyzer {
     private String auth_token;
     private String lang;
     private String multilang;
+    private String source;
+    private int segmentSize;
+    private int segmentOverlap;
+    private String onUnavailable;
+    private String mode;
+    private String encoding;
+    private float minConfidence;
+    private int minLength;
+    private int topEntities;
+    private String indexName = null;
 
     public DandelionAnalyzer(String auth_token, String lang, String multilang) {
+        this(auth_token, lang, multilang, null);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source) {
+        this(auth_token, lang, multilang, source, 0, 0);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source, int segmentSize, int segmentOverlap) {
+        this(auth_token, lang, multilang, source, segmentSize, segmentOverlap, null);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source, int segmentSize, int segmentOverlap,
+                             String onUnavailable) {
+        this(auth_token, lang, multilang, source, segmentSize, segmentOverlap, onUnavailable, null);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source, int segmentSize, int segmentOverlap,
+                             String onUnavailable, String mode) {
+        this(auth_token, lang, multilang, source, segmentSize, segmentOverlap, onUnavailable, mode, null);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source, int segmentSize, int segmentOverlap,
+                             String onUnavailable, String mode, String encoding) {
+        this(auth_token, lang, multilang, source, segmentSize, segmentOverlap, onUnavailable, mode, encoding, Float.NaN, 0, 0);
+    }
+
+    public DandelionAnalyzer(String auth_token, String lang, String multilang, String source, int segmentSize, int segmentOverlap,
+                             String onUnavailable, String mode, String encoding, float minConfidence, int minLength, int topEntities) {
         super();
         this.auth_token = auth_token;
         this.lang = lang;
         this.multilang = multilang;
+        this.source = source;
+        this.segmentSize = segmentSize;
+        this.segmentOverlap = segmentOverlap;
+        this.onUnavailable = onUnavailable;
+        this.mode = mode;
+        this.encoding = encoding;
+        this.minConfidence = minConfidence;
+        this.minLength = minLength;
+        this.topEntities = topEntities;
+    }
+
+    /**
+     * Sets the index whose documents are analyzed, to report them in the stats of the index.
+     */
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
     }
 
     @Override
     protected TokenStreamComponents createComponents(String fieldName) {
-        final Tokenizer source = new DandelionTokenizer(auth_token,lang);
-        TokenStream result = new DandelionTokenFilter(source,multilang);
+        final DandelionTokenizer source = new DandelionTokenizer(auth_token,lang,this.source,segmentSize,segmentOverlap,onUnavailable,mode,
+            minConfidence,minLength,topEntities);
+        source.setIndexName(indexName);
+        TokenStream result = new DandelionTokenFilter(source,multilang,onUnavailable,mode,encoding);
         return new TokenStreamComponents(source, result);
     }
 }
@@ -26,7 +26,12 @@ public class DandelionAnalyzerProvider extends AbstractIndexAnalyzerProvider<Dan
             dandelion_auth_token = keystore_auth_token;
         }
 
-        dandelionAnalyzer = new DandelionAnalyzer(dandelion_auth_token,settings.get("lang"),settings.get("multilang"));
+        int segmentSize = settings.getAsInt("segment_size", 0);
+        int segmentOverlap = settings.getAsInt("segment_overlap", segmentSize > 0 ? 200 : 0);
+        dandelionAnalyzer = new DandelionAnalyzer(dandelion_auth_token,settings.get("lang"),settings.get("multilang"),settings.get("source"),
+            segmentSize,segmentOverlap,settings.get("on_unavailable"),settings.get("mode"),settings.get("encoding"),
+            settings.getAsFloat("min_confidence", Float.NaN),settings.getAsInt("min_length", 0),settings.getAsInt("top_entities", 0));
+        dandelionAnalyzer.setIndexName(index().getName());
     }
 
     @Override
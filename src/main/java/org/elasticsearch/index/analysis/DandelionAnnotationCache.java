@@ -0,0 +1,101 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Node level cache of Dandelion annotations, shared by all the tokenizer instances.
+ * Entries are keyed on a SHA-256 digest of the text and of the request parameters, and the cache is bounded by
+ * the estimated heap used by the entries (least recently used entries are evicted first).
+ */
+public final class DandelionAnnotationCache {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+        Setting.memorySizeSetting("dandelion.cache.annotations.size", "1%", Property.NodeScope);
+
+    /**
+     * Size of the cache of the annotations of the queries analyzed in search mode.
+     */
+    public static final Setting<ByteSizeValue> QUERY_CACHE_SIZE_SETTING =
+        Setting.memorySizeSetting("dandelion.cache.queries.size", "16mb", Property.NodeScope);
+
+    private final Cache<String, DandelionAnnotations> cache;
+
+    public DandelionAnnotationCache(Settings settings) {
+        this(CACHE_SIZE_SETTING.get(settings).getBytes());
+    }
+
+    public DandelionAnnotationCache(long maxWeightInBytes) {
+        this.cache = CacheBuilder.<String, DandelionAnnotations>builder()
+            .setMaximumWeight(maxWeightInBytes)
+            .weigher((key, annotations) -> 2L * key.length() + annotations.ramBytesUsed())
+            .build();
+    }
+
+    /**
+     * Builds the cache key of a request: the text is hashed together with all the parameters that
+     * can change the annotations returned by the API (endpoint, language, token...).
+     */
+    public static String key(String text, String... parameters) {
+        MessageDigest digest = MessageDigests.sha256();
+        for(String parameter : parameters){
+            digest.update(String.valueOf(parameter).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        // the text is encoded in small chunks instead of as a whole, since it can be large
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.wrap(text);
+        ByteBuffer bytes = ByteBuffer.allocate(Math.min(4096, 3 * text.length() + 4));
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, true);
+            digest.update(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        } while (result.isOverflow());
+        while (encoder.flush(bytes).isOverflow()) {
+            digest.update(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        }
+        digest.update(bytes.array(), 0, bytes.position());
+        return MessageDigests.toHexString(digest.digest());
+    }
+
+    public DandelionAnnotations get(String key) {
+        return cache.get(key);
+    }
+
+    public void put(String key, DandelionAnnotations annotations) {
+        cache.put(key, annotations);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public long weight() {
+        return cache.weight();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+}
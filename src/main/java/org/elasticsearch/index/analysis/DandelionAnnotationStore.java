@@ -0,0 +1,719 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * Disk backed store of Dandelion annotations, kept under the node data path so that annotations survive node restarts.
+ * <p>
+ * Annotations are appended to segment files; every record is made of
+ * <pre>
+ *   int length | 32 bytes key | vInt count | count * (vInt start delta, vInt length, string uri)
+ *       [| count * (vInt id, float confidence)] | int crc32
+ * </pre>
+ * The ids and confidences are written only when they are known; the records without them are still read.
+ * Full segments are sealed and memory-mapped for reads. Only a compact open-addressing index (key prefix to record
+ * location) is kept on heap; it is rebuilt by scanning the segments when the store is opened. The periodic
+ * compaction drops the oldest segments when the store exceeds its maximum size and rewrites the segments that
+ * contain mostly superseded records. The records are copied without holding the lock of the store: only the
+ * swap of the rewritten segment blocks the reads.
+ */
+public final class DandelionAnnotationStore implements Closeable {
+
+    public static final Setting<Boolean> STORE_ENABLED_SETTING =
+        Setting.boolSetting("dandelion.store.enabled", false, Property.NodeScope);
+    public static final Setting<ByteSizeValue> STORE_MAX_SIZE_SETTING =
+        Setting.byteSizeSetting("dandelion.store.max_size", new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+    public static final Setting<ByteSizeValue> STORE_SEGMENT_SIZE_SETTING =
+        Setting.byteSizeSetting("dandelion.store.segment_size", new ByteSizeValue(64, ByteSizeUnit.MB),
+            new ByteSizeValue(1, ByteSizeUnit.KB), new ByteSizeValue(1, ByteSizeUnit.GB), Property.NodeScope);
+    public static final Setting<TimeValue> STORE_COMPACTION_INTERVAL_SETTING =
+        Setting.positiveTimeSetting("dandelion.store.compaction_interval", TimeValue.timeValueHours(1), Property.NodeScope);
+
+    private static final String SEGMENT_PREFIX = "annotations-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String REWRITE_SUFFIX = ".tmp";
+    private static final int KEY_BYTES = 32;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    /**
+     * Releases the mapping of a segment as soon as it is closed, rather than when its buffer is garbage collected,
+     * so that the disk space of the deleted segments is given back; null when the JVM does not allow it.
+     */
+    private static final Unmapper UNMAPPER = AccessController.doPrivileged((PrivilegedAction<Unmapper>) DandelionAnnotationStore::unmapper);
+
+    private final Logger logger = Loggers.getLogger(DandelionAnnotationStore.class);
+
+    private final Path directory;
+    private final long maxSize;
+    private final long segmentSize;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private LocationIndex index = new LocationIndex(1024);
+    private Segment active;
+    private boolean closed;
+
+    public DandelionAnnotationStore(Path directory, Settings settings) throws IOException {
+        this(directory, STORE_MAX_SIZE_SETTING.get(settings).getBytes(), STORE_SEGMENT_SIZE_SETTING.get(settings).getBytes());
+    }
+
+    public DandelionAnnotationStore(Path directory, long maxSize, long segmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        // the copies of a rewrite interrupted by a restart
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX + REWRITE_SUFFIX)) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int generation = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(generation, new Segment(generation, path));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.load(segment.generation == segments.lastKey());
+        }
+        for (Segment segment : segments.values()) {
+            if (segment != active) {
+                segment.seal();
+            }
+        }
+        if (active == null) {
+            roll();
+        }
+    }
+
+    /**
+     * Returns the stored annotations for the given key (as built by {@link DandelionAnnotationCache#key}), or
+     * null if there are none. Read failures are logged and reported as misses.
+     */
+    public DandelionAnnotations get(String key) {
+        byte[] keyBytes = keyBytes(key);
+        lock.readLock().lock();
+        try {
+            long location = index.get(prefix(keyBytes));
+            Segment segment = location == -1 ? null : segments.get((int) (location >>> OFFSET_BITS));
+            DandelionAnnotations annotations = segment == null ? null : segment.read(location & OFFSET_MASK, keyBytes);
+            (annotations == null ? misses : hits).increment();
+            return annotations;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to read dandelion annotations from the store", e);
+            misses.increment();
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(String key, DandelionAnnotations annotations) {
+        byte[] keyBytes = keyBytes(key);
+        byte[] record;
+        try {
+            record = encode(keyBytes, annotations);
+        } catch (IOException e) {
+            logger.warn("failed to encode dandelion annotations", e);
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (active.size + record.length > segmentSize && active.size > 0) {
+                active.seal();
+                roll();
+            }
+            long offset = active.append(record);
+            indexRecord(keyBytes, active, offset, record.length);
+        } catch (IOException e) {
+            logger.warn("failed to write dandelion annotations to the store", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the oldest segments while the store is larger than its maximum size, then rewrites the sealed
+     * segments in which less than half of the bytes belong to live records.
+     */
+    public synchronized void compact() {
+        List<Segment> sparse = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            List<Segment> dropped = new ArrayList<>();
+            while (totalSize() > maxSize && segments.size() > 1) {
+                Segment oldest = segments.firstEntry().getValue();
+                if (oldest == active) {
+                    break;
+                }
+                segments.remove(oldest.generation);
+                dropped.add(oldest);
+            }
+            if (!dropped.isEmpty()) {
+                int oldest = segments.firstKey();
+                index.removeIf(generation -> generation < oldest);
+                for (Segment segment : dropped) {
+                    segment.delete();
+                }
+            }
+
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes * 2 < segment.size) {
+                    sparse.add(segment);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("failed to compact the dandelion annotation store", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Segment segment : sparse) {
+            try {
+                rewrite(segment);
+            } catch (IOException e) {
+                logger.warn("failed to rewrite a dandelion annotation segment", e);
+            }
+        }
+    }
+
+    public long totalSize() {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for (Segment segment : segments.values()) {
+                size += segment.size;
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public int count() {
+        lock.readLock().lock();
+        try {
+            return index.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void roll() throws IOException {
+        int generation = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path path = directory.resolve(String.format(Locale.ROOT, "%s%010d%s", SEGMENT_PREFIX, generation, SEGMENT_SUFFIX));
+        active = new Segment(generation, path);
+        active.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(generation, active);
+    }
+
+    /**
+     * Copies the live records of a sealed segment to a new file, then swaps it with the segment under the write
+     * lock. The segment keeps its generation, so that its records are still older than the ones of the next
+     * segments when the store is opened again.
+     */
+    private void rewrite(Segment segment) throws IOException {
+        long[] prefixes;
+        long[] locations;
+        lock.readLock().lock();
+        try {
+            if (closed || segments.get(segment.generation) != segment) {
+                return;
+            }
+            int count = 0;
+            for (int slot = 0; slot < index.prefixes.length; slot++) {
+                if (index.prefixes[slot] != 0 && (int) (index.locations[slot] >>> OFFSET_BITS) == segment.generation) {
+                    count++;
+                }
+            }
+            prefixes = new long[count];
+            locations = new long[count];
+            count = 0;
+            for (int slot = 0; slot < index.prefixes.length; slot++) {
+                if (index.prefixes[slot] != 0 && (int) (index.locations[slot] >>> OFFSET_BITS) == segment.generation) {
+                    prefixes[count] = index.prefixes[slot];
+                    locations[count++] = index.locations[slot];
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // the segment is read through its channel, not its mapping: closing the store may unmap it meanwhile
+        Segment copy = new Segment(segment.generation, segment.path.resolveSibling(segment.path.getFileName() + REWRITE_SUFFIX));
+        long[] offsets = new long[locations.length];
+        int[] lengths = new int[locations.length];
+        copy.channel = FileChannel.open(copy.path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            for (int i = 0; i < locations.length; i++) {
+                byte[] record = segment.copyRecord(locations[i] & OFFSET_MASK);
+                offsets[i] = copy.append(record);
+                lengths[i] = record.length;
+            }
+            copy.channel.force(false);
+        } catch (IOException e) {
+            copy.delete();
+            throw e;
+        }
+        copy.close();
+
+        lock.writeLock().lock();
+        try {
+            if (closed || segments.get(segment.generation) != segment) {
+                Files.deleteIfExists(copy.path);
+                return;
+            }
+            if (locations.length == 0) {
+                segments.remove(segment.generation);
+                segment.delete();
+                Files.deleteIfExists(copy.path);
+                return;
+            }
+            Segment rewritten = new Segment(segment.generation, segment.path);
+            try {
+                segment.delete();
+                Files.move(copy.path, segment.path, StandardCopyOption.ATOMIC_MOVE);
+                rewritten.channel = FileChannel.open(rewritten.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                rewritten.size = copy.size;
+                rewritten.seal();
+            } catch (IOException e) {
+                if (rewritten.channel != null) {
+                    rewritten.channel.close();
+                }
+                segments.remove(segment.generation);
+                index.removeIf(generation -> generation == segment.generation);
+                Files.deleteIfExists(copy.path);
+                throw e;
+            }
+            segments.put(rewritten.generation, rewritten);
+            long base = (long) rewritten.generation << OFFSET_BITS;
+            for (int i = 0; i < locations.length; i++) {
+                // the records superseded during the copy are dropped
+                if (index.get(prefixes[i]) == locations[i]) {
+                    index.put(prefixes[i], base | offsets[i]);
+                    rewritten.liveBytes += lengths[i];
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void indexRecord(byte[] keyBytes, Segment segment, long offset, int length) {
+        long previous = index.put(prefix(keyBytes), ((long) segment.generation << OFFSET_BITS) | offset);
+        if (previous != -1) {
+            Segment old = segments.get((int) (previous >>> OFFSET_BITS));
+            if (old != null) {
+                old.liveBytes -= old.recordLength(previous & OFFSET_MASK);
+            }
+        }
+        segment.liveBytes += length;
+    }
+
+    private static byte[] encode(byte[] keyBytes, DandelionAnnotations annotations) throws IOException {
+        BytesStreamOutput body = new BytesStreamOutput();
+        body.writeBytes(keyBytes, 0, KEY_BYTES);
+        int size = annotations.size();
+        body.writeVInt(size);
+        int previousStart = 0;
+        for (int i = 0; i < size; i++) {
+            body.writeVInt(annotations.start(i) - previousStart);
+            body.writeVInt(annotations.end(i) - annotations.start(i));
+            body.writeString(annotations.uri(i));
+            previousStart = annotations.start(i);
+        }
+        if (size > 0 && annotations.hasIdsOrConfidences()) {
+            for (int i = 0; i < size; i++) {
+                body.writeVInt(annotations.id(i));
+                body.writeFloat(annotations.confidence(i));
+            }
+        }
+        byte[] bodyBytes = BytesReference.toBytes(body.bytes());
+        int bodyLength = bodyBytes.length;
+
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes, 0, bodyLength);
+
+        ByteBuffer record = ByteBuffer.allocate(4 + bodyLength + 4);
+        record.putInt(bodyLength);
+        record.put(bodyBytes, 0, bodyLength);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    private static DandelionAnnotations decode(ByteBuffer body) throws IOException {
+        ByteBufferStreamInput in = new ByteBufferStreamInput(body);
+        int size = in.readVInt();
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        String[] uris = new String[size];
+        int previousStart = 0;
+        for (int i = 0; i < size; i++) {
+            starts[i] = previousStart + in.readVInt();
+            ends[i] = starts[i] + in.readVInt();
+            uris[i] = in.readString();
+            previousStart = starts[i];
+        }
+        if (size == 0) {
+            return DandelionAnnotations.EMPTY;
+        }
+        if (in.available() == 0) {
+            return new DandelionAnnotations(starts, ends, uris);
+        }
+        int[] ids = new int[size];
+        float[] confidences = new float[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = in.readVInt();
+            confidences[i] = in.readFloat();
+        }
+        return new DandelionAnnotations(starts, ends, uris, ids, confidences);
+    }
+
+    private static byte[] keyBytes(String key) {
+        if (key.length() != 2 * KEY_BYTES) {
+            throw new IllegalArgumentException("the store expects sha-256 hex keys");
+        }
+        byte[] bytes = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static long prefix(byte[] keyBytes) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (keyBytes[i] & 0xFF);
+        }
+        // 0 marks the empty slots of the index
+        return prefix == 0 ? 1 : prefix;
+    }
+
+    private final class Segment {
+
+        private final int generation;
+        private final Path path;
+        private FileChannel channel;
+        private MappedByteBuffer mapped;
+        private long size;
+        private long liveBytes;
+
+        Segment(int generation, Path path) {
+            this.generation = generation;
+            this.path = path;
+        }
+
+        void load(boolean last) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+            scan(last);
+            if (last) {
+                active = this;
+            }
+        }
+
+        /**
+         * Indexes all the valid records of the segment; a torn or corrupted tail is truncated.
+         */
+        void scan(boolean truncateTail) throws IOException {
+            long position = 0;
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(4);
+            while (position + 4 <= fileSize) {
+                header.clear();
+                readFully(header, position);
+                int bodyLength = header.getInt(0);
+                if (bodyLength < KEY_BYTES || position + 8 + bodyLength > fileSize) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.allocate(bodyLength + 4);
+                readFully(record, position + 4);
+                if (!checksumMatches(record, bodyLength)) {
+                    break;
+                }
+                byte[] keyBytes = new byte[KEY_BYTES];
+                record.position(0);
+                record.get(keyBytes);
+                indexRecord(keyBytes, this, position, bodyLength + 8);
+                position += bodyLength + 8;
+            }
+            if (position != fileSize) {
+                if (truncateTail) {
+                    logger.warn("truncating corrupted tail of dandelion annotation segment [{}] at [{}]", path, position);
+                    channel.truncate(position);
+                } else {
+                    logger.warn("ignoring corrupted tail of dandelion annotation segment [{}] at [{}]", path, position);
+                }
+            }
+            size = position;
+        }
+
+        long append(byte[] record) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            size += record.length;
+            return offset;
+        }
+
+        void seal() throws IOException {
+            channel.force(false);
+            mapped = size == 0 ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        DandelionAnnotations read(long offset, byte[] keyBytes) throws IOException {
+            ByteBuffer record = ByteBuffer.wrap(readRecord(offset));
+            int bodyLength = record.getInt(0);
+            for (int i = 0; i < KEY_BYTES; i++) {
+                if (record.get(4 + i) != keyBytes[i]) {
+                    return null;
+                }
+            }
+            record.position(4 + KEY_BYTES);
+            record.limit(4 + bodyLength);
+            return decode(record.slice());
+        }
+
+        /**
+         * Reads a record through the channel of the segment, even if it is mapped.
+         */
+        byte[] copyRecord(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            readFully(header, offset);
+            byte[] record = new byte[header.getInt(0) + 8];
+            readFully(ByteBuffer.wrap(record), offset);
+            return record;
+        }
+
+        byte[] readRecord(long offset) throws IOException {
+            int recordLength = recordLength(offset);
+            byte[] record = new byte[recordLength];
+            if (mapped != null && offset + recordLength <= mapped.capacity()) {
+                ByteBuffer view = mapped.duplicate();
+                view.position((int) offset);
+                view.get(record);
+            } else {
+                readFully(ByteBuffer.wrap(record), offset);
+            }
+            return record;
+        }
+
+        int recordLength(long offset) {
+            try {
+                if (mapped != null && offset + 4 <= mapped.capacity()) {
+                    return mapped.getInt((int) offset) + 8;
+                }
+                ByteBuffer header = ByteBuffer.allocate(4);
+                readFully(header, offset);
+                return header.getInt(0) + 8;
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    throw new IOException("unexpected end of dandelion annotation segment [" + path + "]");
+                }
+            }
+        }
+
+        void close() throws IOException {
+            MappedByteBuffer buffer = mapped;
+            mapped = null;
+            if (buffer != null && UNMAPPER != null) {
+                try {
+                    UNMAPPER.unmap(buffer);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    logger.debug("failed to unmap dandelion annotation segment [{}]", path);
+                }
+            }
+            channel.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private interface Unmapper {
+        void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+    }
+
+    private static Unmapper unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 8
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> clean.invoke(cleaner.invoke(buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean checksumMatches(ByteBuffer record, int bodyLength) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, bodyLength);
+        return (int) crc.getValue() == record.getInt(bodyLength);
+    }
+
+    /**
+     * Open-addressing hash table from the first 8 bytes of a key to a record location
+     * (segment generation in the high bits, offset in the segment in the low bits).
+     */
+    private static final class LocationIndex {
+
+        private long[] prefixes;
+        private long[] locations;
+        private int size;
+
+        LocationIndex(int capacity) {
+            int slots = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            prefixes = new long[slots];
+            locations = new long[slots];
+        }
+
+        long get(long prefix) {
+            int mask = prefixes.length - 1;
+            for (int slot = mix(prefix) & mask; prefixes[slot] != 0; slot = (slot + 1) & mask) {
+                if (prefixes[slot] == prefix) {
+                    return locations[slot];
+                }
+            }
+            return -1;
+        }
+
+        long put(long prefix, long location) {
+            if (2 * (size + 1) > prefixes.length) {
+                grow();
+            }
+            int mask = prefixes.length - 1;
+            int slot = mix(prefix) & mask;
+            for (; prefixes[slot] != 0; slot = (slot + 1) & mask) {
+                if (prefixes[slot] == prefix) {
+                    long previous = locations[slot];
+                    locations[slot] = location;
+                    return previous;
+                }
+            }
+            prefixes[slot] = prefix;
+            locations[slot] = location;
+            size++;
+            return -1;
+        }
+
+        private void grow() {
+            long[] oldPrefixes = prefixes;
+            long[] oldLocations = locations;
+            prefixes = new long[oldPrefixes.length * 2];
+            locations = new long[oldLocations.length * 2];
+            size = 0;
+            for (int i = 0; i < oldPrefixes.length; i++) {
+                if (oldPrefixes[i] != 0) {
+                    put(oldPrefixes[i], oldLocations[i]);
+                }
+            }
+        }
+
+        /**
+         * Removes the locations in the segments of the given generations.
+         */
+        void removeIf(IntPredicate generation) {
+            long[] oldPrefixes = prefixes;
+            long[] oldLocations = locations;
+            prefixes = new long[oldPrefixes.length];
+            locations = new long[oldLocations.length];
+            size = 0;
+            for (int i = 0; i < oldPrefixes.length; i++) {
+                if (oldPrefixes[i] != 0 && !generation.test((int) (oldLocations[i] >>> OFFSET_BITS))) {
+                    put(oldPrefixes[i], oldLocations[i]);
+                }
+            }
+        }
+
+        private static int mix(long prefix) {
+            return (int) (prefix ^ (prefix >>> 32));
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package org.elasticsearch.index.analysis;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, compact view of the annotations returned by the Dandelion nex endpoint.
+ * Instances are shared between tokenizers (through the annotation cache), so they must never be modified.
+ */
+public final class DandelionAnnotations {
+
+    public static final DandelionAnnotations EMPTY = new DandelionAnnotations(new int[0], new int[0], new String[0]);
+
+    /**
+     * Prefix of the inline format written by the dandelion ingest processor: the prefix is followed by the
+     * annotations ("start,end,uri" separated by '|'), a new line and the original text.
+     */
+    public static final String INLINE_PREFIX = "dandelion:";
+
+    private final int[] starts;
+    private final int[] ends;
+    private final String[] uris;
+    // page ids and confidences, null when the annotations come from a source that has none (dictionary, inline)
+    private final int[] ids;
+    private final float[] confidences;
+    // token types (https version of the uris) and their parts, built on first use and then shared by all the tokenizers
+    private String[] types;
+    private Page[] pages;
+    private String[] compacts;
+
+    public DandelionAnnotations(int[] starts, int[] ends, String[] uris) {
+        this(starts, ends, uris, null, null);
+    }
+
+    /**
+     * @param ids the Wikipedia page ids of the entities, or null if unknown
+     * @param confidences the confidences of the annotations, or null if unknown
+     */
+    public DandelionAnnotations(int[] starts, int[] ends, String[] uris, int[] ids, float[] confidences) {
+        if(starts.length != ends.length || starts.length != uris.length){
+            throw new IllegalArgumentException("starts, ends and uris must have the same length");
+        }
+        if((ids != null && ids.length != starts.length) || (confidences != null && confidences.length != starts.length)){
+            throw new IllegalArgumentException("ids and confidences must have the same length as starts");
+        }
+        this.starts = starts;
+        this.ends = ends;
+        this.uris = uris;
+        this.ids = ids;
+        this.confidences = confidences;
+    }
+
+    /**
+     * Reads the annotations array of a nex response, keeping the start, end, uri, id and confidence of each
+     * annotation.
+     */
+    public static DandelionAnnotations fromJson(JsonReader reader) throws IOException {
+        Builder builder = new Builder();
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int start = -1;
+            int end = -1;
+            String uri = null;
+            int id = 0;
+            float confidence = Float.NaN;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "start":
+                        start = reader.nextInt();
+                        break;
+                    case "end":
+                        end = reader.nextInt();
+                        break;
+                    case "uri":
+                        uri = reader.nextString();
+                        break;
+                    case "id":
+                        id = reader.nextInt();
+                        break;
+                    case "confidence":
+                        confidence = (float) reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if(start < 0 || end < start || uri == null){
+                throw new IOException("Tokenizer exception: malformed dandelion response!");
+            }
+            builder.add(start, end, uri, id, confidence);
+        }
+        reader.endArray();
+        return builder.build();
+    }
+
+    /**
+     * Collects annotations, with or without their ids and confidences.
+     */
+    public static final class Builder {
+
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private String[] uris = new String[16];
+        private int[] ids = null;
+        private float[] confidences = null;
+        private int size = 0;
+
+        public Builder add(int start, int end, String uri) {
+            return add(start, end, uri, 0, Float.NaN);
+        }
+
+        /**
+         * @param id the page id of the entity, 0 if unknown
+         * @param confidence the confidence of the annotation, NaN if unknown
+         */
+        public Builder add(int start, int end, String uri, int id, float confidence) {
+            if(size == starts.length){
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                uris = Arrays.copyOf(uris, size * 2);
+                if(ids != null){
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                if(confidences != null){
+                    confidences = Arrays.copyOf(confidences, size * 2);
+                }
+            }
+            // the ids and confidences are kept only if some are known
+            if(id != 0 && ids == null){
+                ids = new int[starts.length];
+            }
+            if(!Float.isNaN(confidence) && confidences == null){
+                confidences = new float[starts.length];
+                Arrays.fill(confidences, 0, size, Float.NaN);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            uris[size] = uri;
+            if(ids != null){
+                ids[size] = id;
+            }
+            if(confidences != null){
+                confidences[size] = confidence;
+            }
+            size++;
+            return this;
+        }
+
+        /**
+         * Adds an annotation of other annotations, at the given offsets.
+         */
+        public Builder add(int start, int end, DandelionAnnotations annotations, int index) {
+            return add(start, end, annotations.uri(index), annotations.id(index), annotations.confidence(index));
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public DandelionAnnotations build() {
+            if(size == 0){
+                return EMPTY;
+            }
+            return new DandelionAnnotations(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), Arrays.copyOf(uris, size),
+                ids == null ? null : Arrays.copyOf(ids, size), confidences == null ? null : Arrays.copyOf(confidences, size));
+        }
+    }
+
+    public int size() {
+        return starts.length;
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    public String uri(int index) {
+        return uris[index];
+    }
+
+    /**
+     * Returns the token type of the annotation, that is its uri with the https scheme.
+     */
+    public String type(int index) {
+        // racy but safe: at worst a type is built more than once, and strings are immutable
+        String[] types = this.types;
+        if(types == null){
+            types = new String[uris.length];
+            this.types = types;
+        }
+        String type = types[index];
+        if(type == null){
+            type = "https://".concat(uris[index].substring(7));
+            types[index] = type;
+        }
+        return type;
+    }
+
+    /**
+     * Returns whether the ids or the confidences of the annotations are known.
+     */
+    boolean hasIdsOrConfidences() {
+        return ids != null || confidences != null;
+    }
+
+    /**
+     * Returns the Wikipedia page id of the entity, or 0 if it is unknown.
+     */
+    public int id(int index) {
+        return ids == null ? 0 : ids[index];
+    }
+
+    /**
+     * Returns the confidence of the annotation, or NaN if it is unknown.
+     */
+    public float confidence(int index) {
+        return confidences == null ? Float.NaN : confidences[index];
+    }
+
+    /**
+     * Returns the language of the Wikipedia of the entity (the host of its uri), or null if the uri is not the url of
+     * a Wikipedia page.
+     */
+    public String lang(int index) {
+        return page(index).lang;
+    }
+
+    /**
+     * Returns the title of the entity as it is in its uri (percent-encoded), or null if the uri is not the url of a
+     * Wikipedia page.
+     */
+    public String title(int index) {
+        return page(index).title;
+    }
+
+    /**
+     * Returns the compact form lang:Title of the entity (see {@link DandelionTokenFilter#compactEntity(String)}).
+     */
+    public String compact(int index) {
+        String[] compacts = this.compacts;
+        if(compacts == null){
+            compacts = new String[uris.length];
+            this.compacts = compacts;
+        }
+        String compact = compacts[index];
+        if(compact == null){
+            compact = DandelionTokenFilter.compactEntity(type(index));
+            compacts[index] = compact;
+        }
+        return compact;
+    }
+
+    /**
+     * Returns the annotations without those below the confidence threshold, those shorter than minLength characters
+     * and those whose entity is not among the topEntities entities of the text, or this instance if none is dropped.
+     * The annotations whose confidence is unknown are never below the threshold.
+     * @param minConfidence the confidence threshold, NaN to keep all the confidences
+     * @param minLength the minimum length of the spots, 0 to keep all of them
+     * @param topEntities the number of entities kept, ranked by the confidence of their best annotation; 0 to keep
+     *                    all of them
+     */
+    public DandelionAnnotations prune(float minConfidence, int minLength, int topEntities) {
+        if(Float.isNaN(minConfidence) && minLength == 0 && topEntities == 0){
+            return this;
+        }
+        Set<String> top = topEntities > 0 ? topEntities(minConfidence, minLength, topEntities) : null;
+        // nothing is copied until the first annotation is dropped
+        Builder builder = null;
+        for(int i = 0; i < starts.length; i++){
+            boolean kept = isKept(i, minConfidence, minLength) && (top == null || top.contains(uris[i]));
+            if(builder == null && !kept){
+                builder = new Builder();
+                for(int j = 0; j < i; j++){
+                    builder.add(starts[j], ends[j], this, j);
+                }
+            } else if(builder != null && kept){
+                builder.add(starts[i], ends[i], this, i);
+            }
+        }
+        return builder == null ? this : builder.build();
+    }
+
+    private boolean isKept(int index, float minConfidence, int minLength) {
+        // NaN (an unknown confidence or no threshold) is never below
+        return !(confidence(index) < minConfidence) && ends[index] - starts[index] >= minLength;
+    }
+
+    /**
+     * Returns the uris of the entities with the best confidences among the kept annotations; the entities with the
+     * same or an unknown confidence are ranked in the order of the text.
+     */
+    private Set<String> topEntities(float minConfidence, int minLength, int topEntities) {
+        Map<String, Float> best = new LinkedHashMap<>();
+        for(int i = 0; i < starts.length; i++){
+            if(isKept(i, minConfidence, minLength)){
+                float confidence = confidence(i);
+                best.merge(uris[i], Float.isNaN(confidence) ? -1f : confidence, Math::max);
+            }
+        }
+        if(best.size() <= topEntities){
+            return best.keySet();
+        }
+        List<Map.Entry<String, Float>> entities = new ArrayList<>(best.entrySet());
+        // stable: the ties keep the order of the text
+        entities.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+        Set<String> top = new HashSet<>();
+        for(int i = 0; i < topEntities; i++){
+            top.add(entities.get(i).getKey());
+        }
+        return top;
+    }
+
+    private Page page(int index) {
+        // racy but safe like the types: pages are immutable, at worst a uri is parsed more than once
+        Page[] pages = this.pages;
+        if(pages == null){
+            pages = new Page[uris.length];
+            this.pages = pages;
+        }
+        Page page = pages[index];
+        if(page == null){
+            page = Page.parse(uris[index]);
+            pages[index] = page;
+        }
+        return page;
+    }
+
+    /**
+     * The language and title of the Wikipedia page of an entity.
+     */
+    private static final class Page {
+
+        private static final Page NONE = new Page(null, null);
+
+        private final String lang;
+        private final String title;
+
+        private Page(String lang, String title) {
+            this.lang = lang;
+            this.title = title;
+        }
+
+        static Page parse(String uri) {
+            int langBegin = uri.indexOf("://") + 3;
+            int langEnd = uri.indexOf(DandelionTokenFilter.WIKIPEDIA_PATH);
+            if(langBegin < 3 || langEnd <= langBegin || uri.lastIndexOf('/', langEnd) >= langBegin){
+                return NONE;
+            }
+            return new Page(uri.substring(langBegin, langEnd), uri.substring(langEnd + DandelionTokenFilter.WIKIPEDIA_PATH.length()));
+        }
+    }
+
+    /**
+     * Rough estimate of the heap retained by this instance, used to weigh cache entries.
+     */
+    public long ramBytesUsed() {
+        long bytes = 64 + 12L * starts.length + (ids == null ? 0 : 4L * ids.length)
+            + (confidences == null ? 0 : 4L * confidences.length);
+        for(String uri : uris){
+            // the uri and its type
+            bytes += 80 + 4L * uri.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the text preceded by its annotations, in the inline format read by the tokenizer in ingest mode.
+     */
+    public String encodeInline(String text) {
+        StringBuilder builder = new StringBuilder(INLINE_PREFIX.length() + 64 * starts.length + 1 + text.length());
+        builder.append(INLINE_PREFIX);
+        for(int i = 0; i < starts.length; i++){
+            if(i > 0){
+                builder.append('|');
+            }
+            builder.append(starts[i]).append(',').append(ends[i]).append(',').append(uris[i]);
+        }
+        return builder.append('\n').append(text).toString();
+    }
+
+    /**
+     * Returns the length of the inline header (new line included) of the value, or 0 if the value has none.
+     */
+    public static int inlineHeaderLength(String value) {
+        if(!value.startsWith(INLINE_PREFIX)){
+            return 0;
+        }
+        return value.indexOf('\n') + 1;
+    }
+
+    /**
+     * Parses the inline header of the value; the offsets of the returned annotations are relative to the whole
+     * value, header included.
+     */
+    public static DandelionAnnotations decodeInline(String value, int headerLength) throws IOException {
+        if(headerLength <= INLINE_PREFIX.length() + 1){
+            return EMPTY;
+        }
+
+        String[] entries = value.substring(INLINE_PREFIX.length(), headerLength - 1).split("\\|");
+        int[] starts = new int[entries.length];
+        int[] ends = new int[entries.length];
+        String[] uris = new String[entries.length];
+        int previous = 0;
+        try {
+            for (int i = 0; i < entries.length; i++) {
+                String[] parts = entries[i].split(",", 3);
+                starts[i] = headerLength + Integer.parseInt(parts[0]);
+                ends[i] = headerLength + Integer.parseInt(parts[1]);
+                uris[i] = parts[2];
+                if(starts[i] < previous || ends[i] < starts[i] || ends[i] > value.length()){
+                    throw new IllegalArgumentException("annotation out of bounds");
+                }
+                previous = starts[i];
+            }
+        } catch (RuntimeException ex){
+            throw new IOException("Tokenizer exception: malformed dandelion inline annotations!");
+        }
+        return new DandelionAnnotations(starts, ends, uris);
+    }
+}
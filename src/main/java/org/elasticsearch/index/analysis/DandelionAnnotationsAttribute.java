@@ -0,0 +1,18 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * The annotations of the whole text, set by {@link DandelionTokenizer#reset()} before the first token: the filters
+ * downstream can see the entities that are coming, and start resolving them before they reach them.
+ * It is cleared with the other attributes at the first token.
+ */
+public interface DandelionAnnotationsAttribute extends Attribute {
+
+    /**
+     * Returns the annotations of the text, or null if the tokenizer did not set them.
+     */
+    DandelionAnnotations annotations();
+
+    void setAnnotations(DandelionAnnotations annotations);
+}
@@ -0,0 +1,34 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.AttributeReflector;
+
+public final class DandelionAnnotationsAttributeImpl extends AttributeImpl implements DandelionAnnotationsAttribute {
+
+    private DandelionAnnotations annotations = null;
+
+    @Override
+    public DandelionAnnotations annotations() {
+        return annotations;
+    }
+
+    @Override
+    public void setAnnotations(DandelionAnnotations annotations) {
+        this.annotations = annotations;
+    }
+
+    @Override
+    public void clear() {
+        annotations = null;
+    }
+
+    @Override
+    public void reflectWith(AttributeReflector reflector) {
+        reflector.reflect(DandelionAnnotationsAttribute.class, "annotations", annotations);
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((DandelionAnnotationsAttribute) target).setAnnotations(annotations);
+    }
+}
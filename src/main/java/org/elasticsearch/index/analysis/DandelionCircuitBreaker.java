@@ -0,0 +1,202 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node level circuit breaker of the calls to an API (Dandelion API or Wikipedia).
+ * <p>
+ * While closed, the outcome of the last calls is recorded: a call is bad if it fails with a network error or a
+ * 5xx status, or if it is slower than slow_call_duration. When at least minimum_calls calls have been recorded and
+ * the rate of bad calls reaches failure_rate, the breaker opens and the calls fail fast with a
+ * {@link DandelionUnavailableException} for open_duration. Then it becomes half-open: half_open_calls trial calls
+ * are let through, and the breaker closes again if all of them are good, or opens again otherwise.
+ */
+public final class DandelionCircuitBreaker {
+
+    public static final Setting<Boolean> ENABLED_SETTING =
+        Setting.boolSetting("dandelion.circuit_breaker.enabled", true, Property.NodeScope);
+    public static final Setting<Double> FAILURE_RATE_SETTING =
+        new Setting<>("dandelion.circuit_breaker.failure_rate", "0.5", DandelionCircuitBreaker::parseFailureRate, Property.NodeScope);
+    public static final Setting<TimeValue> SLOW_CALL_DURATION_SETTING =
+        Setting.positiveTimeSetting("dandelion.circuit_breaker.slow_call_duration", TimeValue.timeValueSeconds(10), Property.NodeScope);
+    public static final Setting<Integer> WINDOW_SIZE_SETTING =
+        Setting.intSetting("dandelion.circuit_breaker.window_size", 100, 1, Property.NodeScope);
+    public static final Setting<Integer> MINIMUM_CALLS_SETTING =
+        Setting.intSetting("dandelion.circuit_breaker.minimum_calls", 20, 1, Property.NodeScope);
+    public static final Setting<TimeValue> OPEN_DURATION_SETTING =
+        Setting.positiveTimeSetting("dandelion.circuit_breaker.open_duration", TimeValue.timeValueSeconds(30), Property.NodeScope);
+    public static final Setting<Integer> HALF_OPEN_CALLS_SETTING =
+        Setting.intSetting("dandelion.circuit_breaker.half_open_calls", 5, 1, Property.NodeScope);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Logger logger = Loggers.getLogger(DandelionCircuitBreaker.class);
+
+    private final String name;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    // ring buffer of the outcomes of the last calls (true for bad calls)
+    private final boolean[] outcomes;
+    private int recorded = 0;
+    private int next = 0;
+    private int bad = 0;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    public DandelionCircuitBreaker(String name, Settings settings) {
+        this(name, FAILURE_RATE_SETTING.get(settings), SLOW_CALL_DURATION_SETTING.get(settings), WINDOW_SIZE_SETTING.get(settings),
+            MINIMUM_CALLS_SETTING.get(settings), OPEN_DURATION_SETTING.get(settings), HALF_OPEN_CALLS_SETTING.get(settings));
+    }
+
+    public DandelionCircuitBreaker(String name, double failureRate, TimeValue slowCallDuration, int windowSize, int minimumCalls,
+                                   TimeValue openDuration, int halfOpenCalls) {
+        this.name = name;
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCallDuration.nanos();
+        this.outcomes = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.openNanos = openDuration.nanos();
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    /**
+     * Parses the failure rate, which must be greater than 0 (the breaker would open after minimum_calls good calls)
+     * and at most 1 (it would never open).
+     */
+    static double parseFailureRate(String value) {
+        double failureRate = Double.parseDouble(value);
+        if(!(failureRate > 0 && failureRate <= 1)){
+            throw new IllegalArgumentException("Failed to parse value [" + value + "] for setting ["
+                + "dandelion.circuit_breaker.failure_rate] must be greater than 0 and at most 1");
+        }
+        return failureRate;
+    }
+
+    /**
+     * Sends a request through the breaker.
+     * @throws DandelionUnavailableException if the breaker is open
+     */
+    public <T> T execute(DandelionHttpClient client, String url, DandelionHttpClient.RequestBody body, DandelionHttpClient.ResponseHandler<T> handler) throws IOException {
+        if(!tryAcquire()){
+            throw new DandelionUnavailableException(name + " is unavailable (circuit breaker open)");
+        }
+        long start = System.nanoTime();
+        // the time spent waiting for a free connection is not part of the duration of the call
+        AtomicLong waitNanos = new AtomicLong();
+        int[] status = new int[] {-1};
+        try {
+            T result = client.post(url, body, response -> {
+                status[0] = response.status();
+                return handler.handle(response);
+            }, waitNanos);
+            onResult(false, Math.max(0, System.nanoTime() - start - waitNanos.get()));
+            return result;
+        } catch (DandelionConnectionWaitException e) {
+            // the API was not called
+            onNotCalled();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            // client errors (wrong token, empty text...) say nothing about the health of the API
+            onResult(status[0] == -1 || status[0] >= 500, Math.max(0, System.nanoTime() - start - waitNanos.get()));
+            throw e;
+        }
+    }
+
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case OPEN:
+                if(System.nanoTime() - openedAt < openNanos){
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+                logger.info("{} circuit breaker half-open, trying {} calls", name, halfOpenCalls);
+                return tryAcquireHalfOpen();
+            case HALF_OPEN:
+                return tryAcquireHalfOpen();
+            default:
+                return true;
+        }
+    }
+
+    private boolean tryAcquireHalfOpen() {
+        if(halfOpenPermits == 0){
+            return false;
+        }
+        halfOpenPermits--;
+        return true;
+    }
+
+    /**
+     * Gives back the trial call of a half-open breaker, when the call acquired through {@link #tryAcquire()} was not
+     * sent.
+     */
+    synchronized void onNotCalled() {
+        if(state == State.HALF_OPEN && halfOpenPermits < halfOpenCalls - halfOpenSuccesses){
+            halfOpenPermits++;
+        }
+    }
+
+    synchronized void onResult(boolean failed, long durationNanos) {
+        boolean isBad = failed || durationNanos > slowCallNanos;
+        switch (state) {
+            case HALF_OPEN:
+                if(isBad){
+                    open();
+                } else if(++halfOpenSuccesses == halfOpenCalls){
+                    state = State.CLOSED;
+                    recorded = 0;
+                    next = 0;
+                    bad = 0;
+                    logger.info("{} circuit breaker closed", name);
+                }
+                break;
+            case CLOSED:
+                if(recorded == outcomes.length){
+                    if(outcomes[next]){
+                        bad--;
+                    }
+                } else {
+                    recorded++;
+                }
+                outcomes[next] = isBad;
+                next = (next + 1) % outcomes.length;
+                if(isBad){
+                    bad++;
+                }
+                if(recorded >= minimumCalls && bad >= failureRate * recorded){
+                    open();
+                }
+                break;
+            default:
+                // a call started before the breaker opened
+                break;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+        logger.warn("{} circuit breaker open for [{}]", name, TimeValue.timeValueNanos(openNanos));
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+}
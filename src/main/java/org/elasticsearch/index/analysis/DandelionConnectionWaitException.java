@@ -0,0 +1,12 @@
+package org.elasticsearch.index.analysis;
+
+/**
+ * Thrown without calling an API when no connection to its host is free within connection_wait_timeout: the API is
+ * unavailable to the request, but this says nothing about its health.
+ */
+public class DandelionConnectionWaitException extends DandelionUnavailableException {
+
+    public DandelionConnectionWaitException(String message) {
+        super(message);
+    }
+}
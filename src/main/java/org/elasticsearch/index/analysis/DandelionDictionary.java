@@ -0,0 +1,451 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
+
+/**
+ * Offline entity linker: a dictionary of the surface forms of the entities of a language (the anchor texts of the
+ * Wikipedia links), each with its candidate entities and their prior probability (how often the surface form links
+ * to the entity), kept in a Lucene FST.
+ * <p>
+ * The text is spotted with the longest surface forms found at word starts (case insensitive, runs of whitespaces
+ * match a single space), and each spot is linked to its most probable entity, unless an earlier spot of the same
+ * text was already linked to one of its other candidates. The annotations have the same layout as those of
+ * Dandelion API, so that the tokenizer and the token filter work the same way.
+ */
+public final class DandelionDictionary {
+
+    /**
+     * Directory of the dictionaries ("lang.fst" files), relative to the config directory.
+     */
+    public static final Setting<String> PATH_SETTING =
+        new Setting<>("dandelion.dictionary.path", "dandelion/dictionaries", Function.identity(), Property.NodeScope);
+
+    public static final String FILE_SUFFIX = ".fst";
+
+    private static final String CODEC = "dandelion_dictionary";
+    private static final int VERSION = 0;
+
+    private static final Logger logger = Loggers.getLogger(DandelionDictionary.class);
+
+    private final String lang;
+    private final FST<Long> fst;
+    private final String[] uris;
+    // the candidates of the surface form with ordinal i (the output of the fst) are in [offsets[i], offsets[i + 1])
+    private final int[] offsets;
+    private final int[] candidateUris;
+    private final float[] candidatePriors;
+
+    private DandelionDictionary(String lang, FST<Long> fst, String[] uris, int[] offsets, int[] candidateUris,
+                                float[] candidatePriors) {
+        this.lang = lang;
+        this.fst = fst;
+        this.uris = uris;
+        this.offsets = offsets;
+        this.candidateUris = candidateUris;
+        this.candidatePriors = candidatePriors;
+    }
+
+    public String lang() {
+        return lang;
+    }
+
+    /**
+     * Returns the number of surface forms.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public long ramBytesUsed() {
+        long bytes = (fst == null ? 0 : fst.ramBytesUsed()) + 4L * offsets.length + 8L * candidateUris.length;
+        for (String uri : uris) {
+            bytes += 56 + 2L * uri.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the entities mentioned in the text.
+     */
+    public DandelionAnnotations annotate(String text) {
+        if (fst == null) {
+            return DandelionAnnotations.EMPTY;
+        }
+        FST.BytesReader reader = fst.getBytesReader();
+        FST.Arc<Long> arc = new FST.Arc<>();
+        Set<Integer> linked = new HashSet<>();
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        String[] found = new String[16];
+        int size = 0;
+
+        int length = text.length();
+        int i = 0;
+        try {
+            while (i < length) {
+                int codePoint = text.codePointAt(i);
+                if (!Character.isLetterOrDigit(codePoint)) {
+                    i += Character.charCount(codePoint);
+                    continue;
+                }
+
+                // longest surface form starting at this word
+                int matchEnd = -1;
+                long matchOrdinal = -1;
+                long output = 0;
+                boolean space = false;
+                fst.getFirstArc(arc);
+                for (int j = i; j < length; ) {
+                    int c = text.codePointAt(j);
+                    j += Character.charCount(c);
+                    if (Character.isWhitespace(c)) {
+                        if (space) {
+                            continue;
+                        }
+                        space = true;
+                        c = ' ';
+                    } else {
+                        space = false;
+                        c = Character.toLowerCase(c);
+                    }
+                    if (fst.findTargetArc(c, arc, arc, reader) == null) {
+                        break;
+                    }
+                    output += arc.output;
+                    if (arc.isFinal() && !space && (j == length || !Character.isLetterOrDigit(text.codePointAt(j)))) {
+                        matchEnd = j;
+                        matchOrdinal = output + arc.nextFinalOutput;
+                    }
+                }
+
+                if (matchEnd == -1) {
+                    // skips the word
+                    while (i < length && Character.isLetterOrDigit(codePoint = text.codePointAt(i))) {
+                        i += Character.charCount(codePoint);
+                    }
+                    continue;
+                }
+
+                int uri = link((int) matchOrdinal, linked);
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                    found = Arrays.copyOf(found, size * 2);
+                }
+                starts[size] = i;
+                ends[size] = matchEnd;
+                found[size] = uris[uri];
+                size++;
+                i = matchEnd;
+            }
+        } catch (IOException e) {
+            // the fst is on heap
+            throw new UncheckedIOException(e);
+        }
+
+        if (size == 0) {
+            return DandelionAnnotations.EMPTY;
+        }
+        return new DandelionAnnotations(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size), Arrays.copyOf(found, size));
+    }
+
+    /**
+     * Chooses the entity of a surface form: an entity already linked in the text, or else the most probable one.
+     */
+    private int link(int ordinal, Set<Integer> linked) {
+        int best = offsets[ordinal];
+        for (int candidate = offsets[ordinal]; candidate < offsets[ordinal + 1]; candidate++) {
+            if (linked.contains(candidateUris[candidate])) {
+                best = candidate;
+                break;
+            }
+        }
+        linked.add(candidateUris[best]);
+        return candidateUris[best];
+    }
+
+    /**
+     * Returns the candidate entities of a surface form with their prior probability, the most probable first.
+     */
+    public Map<String, Float> candidates(String surface) throws IOException {
+        Long ordinal = fst == null ? null : Util.get(fst, Util.toUTF32(normalize(surface), new IntsRefBuilder()));
+        if (ordinal == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Float> candidates = new LinkedHashMap<>();
+        for (int candidate = offsets[ordinal.intValue()]; candidate < offsets[ordinal.intValue() + 1]; candidate++) {
+            candidates.put(uris[candidateUris[candidate]], candidatePriors[candidate]);
+        }
+        return candidates;
+    }
+
+    /**
+     * Lower cases the surface form and replaces its runs of whitespaces with a single space.
+     */
+    static String normalize(String surface) {
+        StringBuilder builder = new StringBuilder(surface.length());
+        boolean space = false;
+        for (int i = 0; i < surface.length(); ) {
+            int c = surface.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isWhitespace(c)) {
+                space = builder.length() > 0;
+            } else {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+                builder.appendCodePoint(Character.toLowerCase(c));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the uri of a Wikipedia page in the format of Dandelion API, from its uri or its title.
+     */
+    static String uri(String lang, String titleOrUri) {
+        if (titleOrUri.startsWith("http://") || titleOrUri.startsWith("https://")) {
+            return "http://" + titleOrUri.substring(titleOrUri.indexOf("://") + 3);
+        }
+        try {
+            return "http://" + lang + ".wikipedia.org/wiki/" + URLEncoder.encode(titleOrUri.trim().replace(' ', '_'), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        try (Directory directory = FSDirectory.open(path.toAbsolutePath().getParent());
+             IndexOutput out = directory.createOutput(path.getFileName().toString(), IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, CODEC, VERSION);
+            out.writeString(lang);
+            out.writeVInt(uris.length);
+            for (String uri : uris) {
+                out.writeString(uri);
+            }
+            out.writeVInt(offsets.length - 1);
+            for (int i = 0; i < offsets.length - 1; i++) {
+                out.writeVInt(offsets[i + 1] - offsets[i]);
+                for (int candidate = offsets[i]; candidate < offsets[i + 1]; candidate++) {
+                    out.writeVInt(candidateUris[candidate]);
+                    out.writeInt(Float.floatToIntBits(candidatePriors[candidate]));
+                }
+            }
+            out.writeByte((byte) (fst == null ? 0 : 1));
+            if (fst != null) {
+                fst.save(out);
+            }
+            CodecUtil.writeFooter(out);
+        }
+    }
+
+    public static DandelionDictionary read(Path path) throws IOException {
+        try (Directory directory = FSDirectory.open(path.toAbsolutePath().getParent());
+             ChecksumIndexInput in = directory.openChecksumInput(path.getFileName().toString(), IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+            String lang = in.readString();
+            String[] uris = new String[in.readVInt()];
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = in.readString();
+            }
+            int size = in.readVInt();
+            int[] offsets = new int[size + 1];
+            int[] candidateUris = new int[16];
+            float[] candidatePriors = new float[16];
+            for (int i = 0; i < size; i++) {
+                int count = in.readVInt();
+                offsets[i + 1] = offsets[i] + count;
+                if (offsets[i + 1] > candidateUris.length) {
+                    candidateUris = Arrays.copyOf(candidateUris, Math.max(offsets[i + 1], 2 * candidateUris.length));
+                    candidatePriors = Arrays.copyOf(candidatePriors, candidateUris.length);
+                }
+                for (int candidate = offsets[i]; candidate < offsets[i + 1]; candidate++) {
+                    candidateUris[candidate] = in.readVInt();
+                    candidatePriors[candidate] = Float.intBitsToFloat(in.readInt());
+                }
+            }
+            FST<Long> fst = in.readByte() == 0 ? null : new FST<>(in, PositiveIntOutputs.getSingleton());
+            CodecUtil.checkFooter(in);
+            return new DandelionDictionary(lang, fst, uris, offsets, Arrays.copyOf(candidateUris, offsets[size]),
+                Arrays.copyOf(candidatePriors, offsets[size]));
+        }
+    }
+
+    /**
+     * Loads the dictionaries ("lang.fst" files) of a directory, by language; the directory may not exist.
+     */
+    public static Map<String, DandelionDictionary> loadAll(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyMap();
+        }
+        Map<String, DandelionDictionary> dictionaries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                String lang = name.substring(0, name.length() - FILE_SUFFIX.length());
+                if (!ALLOWED_LANGUAGES.contains(lang) || lang.equals("auto")) {
+                    logger.warn("ignoring dictionary [{}]: unsupported language [{}]", path, lang);
+                    continue;
+                }
+                DandelionDictionary dictionary = read(path);
+                if (!dictionary.lang().equals(lang)) {
+                    throw new IOException("the dictionary " + path + " is for language [" + dictionary.lang() + "]");
+                }
+                logger.info("loaded dictionary [{}] with [{}] surface forms ([{}])", lang, dictionary.size(),
+                    new ByteSizeValue(dictionary.ramBytesUsed()));
+                dictionaries.put(lang, dictionary);
+            }
+        }
+        return dictionaries;
+    }
+
+    /**
+     * Builds a dictionary from the occurrences of the surface forms (anchor texts) linking to each entity.
+     */
+    public static final class Builder {
+
+        private final String lang;
+        private final Map<String, Map<String, Long>> counts = new HashMap<>();
+        private long minCount = 1;
+        private int maxCandidates = 5;
+        private float minPrior = 0.01f;
+
+        public Builder(String lang) {
+            if (!ALLOWED_LANGUAGES.contains(lang) || lang.equals("auto")) {
+                throw new IllegalArgumentException("Illegal dictionary language [" + lang + "]");
+            }
+            this.lang = lang;
+        }
+
+        /**
+         * Links with fewer occurrences are dropped.
+         */
+        public Builder setMinCount(long minCount) {
+            this.minCount = minCount;
+            return this;
+        }
+
+        /**
+         * Maximum number of candidate entities kept for each surface form (the most probable ones).
+         */
+        public Builder setMaxCandidates(int maxCandidates) {
+            this.maxCandidates = maxCandidates;
+            return this;
+        }
+
+        /**
+         * Candidate entities with a lower prior probability are dropped.
+         */
+        public Builder setMinPrior(float minPrior) {
+            this.minPrior = minPrior;
+            return this;
+        }
+
+        /**
+         * Adds the occurrences of a link.
+         * @param entity the title or the uri of the Wikipedia page of the entity
+         */
+        public Builder add(String surface, String entity, long count) {
+            String normalized = normalize(surface);
+            if (normalized.isEmpty() || !Character.isLetterOrDigit(normalized.codePointAt(0))) {
+                return this;
+            }
+            counts.computeIfAbsent(normalized, s -> new HashMap<>(2)).merge(uri(lang, entity), count, Long::sum);
+            return this;
+        }
+
+        public DandelionDictionary build() throws IOException {
+            // the fst needs its inputs in order
+            TreeMap<IntsRef, String> surfaces = new TreeMap<>();
+            for (String surface : counts.keySet()) {
+                surfaces.put(Util.toUTF32(surface, new IntsRefBuilder()), surface);
+            }
+
+            Map<String, Integer> uriOrdinals = new HashMap<>();
+            List<String> uris = new ArrayList<>();
+            int[] offsets = new int[surfaces.size() + 1];
+            int[] candidateUris = new int[16];
+            float[] candidatePriors = new float[16];
+            PositiveIntOutputs outputs = PositiveIntOutputs.getSingleton();
+            org.apache.lucene.util.fst.Builder<Long> builder = new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE4, outputs);
+
+            int size = 0;
+            for (Map.Entry<IntsRef, String> surface : surfaces.entrySet()) {
+                Map<String, Long> entities = counts.get(surface.getValue());
+                long total = 0;
+                for (long count : entities.values()) {
+                    total += count;
+                }
+                List<Map.Entry<String, Long>> sorted = new ArrayList<>(entities.entrySet());
+                sorted.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey())
+                    : Long.compare(b.getValue(), a.getValue()));
+
+                int first = offsets[size];
+                int candidate = first;
+                for (Map.Entry<String, Long> entity : sorted) {
+                    float prior = (float) entity.getValue() / total;
+                    if (candidate - first == maxCandidates || entity.getValue() < minCount || prior < minPrior) {
+                        break;
+                    }
+                    if (candidate == candidateUris.length) {
+                        candidateUris = Arrays.copyOf(candidateUris, 2 * candidate);
+                        candidatePriors = Arrays.copyOf(candidatePriors, 2 * candidate);
+                    }
+                    candidateUris[candidate] = uriOrdinals.computeIfAbsent(entity.getKey(), uri -> {
+                        uris.add(uri);
+                        return uris.size() - 1;
+                    });
+                    candidatePriors[candidate] = prior;
+                    candidate++;
+                }
+                if (candidate == first) {
+                    continue;
+                }
+                builder.add(surface.getKey(), size == 0 ? outputs.getNoOutput() : (long) size);
+                size++;
+                offsets[size] = candidate;
+            }
+
+            FST<Long> fst = builder.finish();
+            return new DandelionDictionary(lang, fst, uris.toArray(new String[uris.size()]), Arrays.copyOf(offsets, size + 1),
+                Arrays.copyOf(candidateUris, offsets[size]), Arrays.copyOf(candidatePriors, offsets[size]));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds a {@link DandelionDictionary} from the links of a Wikipedia dump. The input is a tab separated file
+ * (optionally gzipped) with a line for each link, or for each distinct link with its number of occurrences:
+ * <pre>
+ *   anchor text \t page title (or uri) [\t count]
+ * </pre>
+ * Run it with the jars of the plugin and of Elasticsearch:
+ * <pre>
+ * java -cp "plugins/dandelion/*:lib/*" org.elasticsearch.index.analysis.DandelionDictionaryTool \
+ *     anchors.tsv.gz it config/dandelion/dictionaries/it.fst [--min-count 2] [--max-candidates 5] [--min-prior 0.01]
+ * </pre>
+ */
+public final class DandelionDictionaryTool {
+
+    private DandelionDictionaryTool() {
+    }
+
+    @SuppressForbidden(reason = "command line tool")
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length % 2 == 0) {
+            System.err.println("usage: DandelionDictionaryTool <anchors.tsv[.gz]> <lang> <output.fst> "
+                + "[--min-count N] [--max-candidates N] [--min-prior P]");
+            System.exit(1);
+        }
+        Path input = Paths.get(args[0]);
+        DandelionDictionary.Builder builder = new DandelionDictionary.Builder(args[1]).setMinCount(2);
+        Path output = Paths.get(args[2]);
+        for (int i = 3; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "--min-count":
+                    builder.setMinCount(Long.parseLong(args[i + 1]));
+                    break;
+                case "--max-candidates":
+                    builder.setMaxCandidates(Integer.parseInt(args[i + 1]));
+                    break;
+                case "--min-prior":
+                    builder.setMinPrior(Float.parseFloat(args[i + 1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option [" + args[i] + "]");
+            }
+        }
+
+        long lines = read(input, builder);
+        DandelionDictionary dictionary = builder.build();
+        dictionary.write(output);
+        System.out.println("read " + lines + " links, wrote " + dictionary.size() + " surface forms ("
+            + new ByteSizeValue(dictionary.ramBytesUsed()) + " on heap) to " + output);
+    }
+
+    /**
+     * Adds the links of a tab separated file to the builder.
+     * @return the number of lines read
+     */
+    static long read(Path input, DandelionDictionary.Builder builder) throws IOException {
+        long lines = 0;
+        try (InputStream in = input.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(Files.newInputStream(input))
+                : Files.newInputStream(input);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] fields = line.split("\t");
+                if (fields.length < 2 || fields[0].isEmpty() || fields[1].isEmpty()) {
+                    continue;
+                }
+                long count;
+                try {
+                    count = fields.length > 2 ? Long.parseLong(fields[2].trim()) : 1;
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid count at line " + lines + " of " + input, e);
+                }
+                builder.add(fields[0], fields[1], count);
+            }
+        }
+        return lines;
+    }
+}
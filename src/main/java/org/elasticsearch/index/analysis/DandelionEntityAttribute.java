@@ -0,0 +1,60 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.Attribute;
+
+/**
+ * The entity of the current token, set by {@link DandelionTokenizer} on the tokens of the annotations: the token
+ * filters read its language, title and scores without parsing the type of the token.
+ * <p>
+ * The values are read from the annotations of the text, which parse each uri once and are shared through the cache.
+ */
+public interface DandelionEntityAttribute extends Attribute {
+
+    /**
+     * Returns whether the current token is an entity.
+     */
+    boolean isEntity();
+
+    /**
+     * Returns the url of the entity (https://lang.wikipedia.org/wiki/Title), or null if the token is not an entity.
+     */
+    String url();
+
+    /**
+     * Returns the compact form lang:Title of the entity, or null if the token is not an entity.
+     */
+    String compact();
+
+    /**
+     * Returns the language of the Wikipedia of the entity, or null if the token is not an entity (or its url is not
+     * the url of a Wikipedia page).
+     */
+    String lang();
+
+    /**
+     * Returns the title of the entity as it is in its url (percent-encoded), or null if the token is not an entity (or
+     * its url is not the url of a Wikipedia page).
+     */
+    String title();
+
+    /**
+     * Returns the Wikipedia page id of the entity, or 0 if it is unknown.
+     */
+    int pageId();
+
+    /**
+     * Returns the confidence of the annotation, or NaN if it is unknown.
+     */
+    float confidence();
+
+    /**
+     * Returns the text of the annotation; it is a view of the text of the tokenizer, valid until it is reset.
+     */
+    CharSequence spot();
+
+    /**
+     * @param index the index of the entity in the annotations
+     * @param text the text of the tokenizer, the annotation offsets included
+     */
+    void setEntity(DandelionAnnotations annotations, int index, char[] text);
+}
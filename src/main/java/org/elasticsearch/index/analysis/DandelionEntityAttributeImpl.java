@@ -0,0 +1,83 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.AttributeReflector;
+
+import java.nio.CharBuffer;
+
+public final class DandelionEntityAttributeImpl extends AttributeImpl implements DandelionEntityAttribute {
+
+    private DandelionAnnotations annotations = null;
+    private int index = -1;
+    private char[] text = null;
+
+    @Override
+    public boolean isEntity() {
+        return annotations != null;
+    }
+
+    @Override
+    public String url() {
+        return annotations == null ? null : annotations.type(index);
+    }
+
+    @Override
+    public String compact() {
+        return annotations == null ? null : annotations.compact(index);
+    }
+
+    @Override
+    public String lang() {
+        return annotations == null ? null : annotations.lang(index);
+    }
+
+    @Override
+    public String title() {
+        return annotations == null ? null : annotations.title(index);
+    }
+
+    @Override
+    public int pageId() {
+        return annotations == null ? 0 : annotations.id(index);
+    }
+
+    @Override
+    public float confidence() {
+        return annotations == null ? Float.NaN : annotations.confidence(index);
+    }
+
+    @Override
+    public CharSequence spot() {
+        if(annotations == null){
+            return null;
+        }
+        int start = annotations.start(index);
+        return CharBuffer.wrap(text, start, annotations.end(index) - start);
+    }
+
+    @Override
+    public void setEntity(DandelionAnnotations annotations, int index, char[] text) {
+        this.annotations = annotations;
+        this.index = index;
+        this.text = text;
+    }
+
+    @Override
+    public void clear() {
+        annotations = null;
+        index = -1;
+        text = null;
+    }
+
+    @Override
+    public void reflectWith(AttributeReflector reflector) {
+        reflector.reflect(DandelionEntityAttribute.class, "url", url());
+        reflector.reflect(DandelionEntityAttribute.class, "pageId", pageId());
+        reflector.reflect(DandelionEntityAttribute.class, "confidence", confidence());
+    }
+
+    @Override
+    public void copyTo(AttributeImpl target) {
+        ((DandelionEntityAttribute) target).setEntity(annotations, index, text);
+    }
+}
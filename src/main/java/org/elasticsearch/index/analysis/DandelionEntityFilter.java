@@ -0,0 +1,33 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+
+import java.io.IOException;
+
+/**
+ * Rewrites the terms that are urls of Wikipedia pages into the compact form lang:Title, as emitted by the
+ * {@link DandelionTokenFilter} with "encoding":"title", so that the fields indexed that way can still be queried by
+ * url. The other terms are left unchanged.
+ */
+public final class DandelionEntityFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+
+    public DandelionEntityFilter(TokenStream in) {
+        super(in);
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if(!input.incrementToken()){
+            return false;
+        }
+        String term = termAtt.toString();
+        if(term.startsWith("http")){
+            termAtt.setEmpty().append(DandelionTokenFilter.compactEntity(term));
+        }
+        return true;
+    }
+}
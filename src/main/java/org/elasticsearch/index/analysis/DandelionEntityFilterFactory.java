@@ -0,0 +1,26 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+
+/**
+ * Factory of the {@link DandelionEntityFilter}, which can also be used in normalizers.
+ */
+public class DandelionEntityFilterFactory extends AbstractTokenFilterFactory implements MultiTermAwareComponent {
+
+    public DandelionEntityFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+        super(indexSettings, name, settings);
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new DandelionEntityFilter(tokenStream);
+    }
+
+    @Override
+    public Object getMultiTermComponent() {
+        return this;
+    }
+}
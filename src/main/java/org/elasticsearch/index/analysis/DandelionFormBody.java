@@ -0,0 +1,158 @@
+package org.elasticsearch.index.analysis;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A form-urlencoded request body, encoded while it is written to the connection.
+ * <p>
+ * The encoding is the one of {@link java.net.URLEncoder} with UTF-8, but the parameters are percent-encoded straight
+ * into a buffer reused by the thread, without building the encoded string and its bytes: a text of 1MiB is not
+ * copied three more times (up to 9 times its size for non latin scripts) before being sent. The body can be written
+ * several times, for the retried and hedged requests, and two bodies with the same parameters are equal.
+ */
+public final class DandelionFormBody implements DandelionHttpClient.RequestBody {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // the longest encoding of a char: a code point of 4 bytes, percent-encoded
+    private static final int MAX_ENCODED_CHAR = 12;
+
+    private static final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    // names and values, alternated
+    private final List<String> parameters = new ArrayList<>();
+    private long length = -1;
+
+    public DandelionFormBody add(String name, String value) {
+        parameters.add(name);
+        parameters.add(value);
+        length = -1;
+        return this;
+    }
+
+    @Override
+    public long length() {
+        if(length == -1){
+            long encoded = parameters.size() / 2 - 1;
+            for (int i = 0; i < parameters.size(); i += 2) {
+                encoded += encodedLength(parameters.get(i)) + 1 + encodedLength(parameters.get(i + 1));
+            }
+            length = Math.max(0, encoded);
+        }
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = buffers.get();
+        int position = 0;
+        for (int i = 0; i < parameters.size(); i += 2) {
+            if(i > 0){
+                position = append((byte) '&', buffer, position, out);
+            }
+            position = encode(parameters.get(i), buffer, position, out);
+            position = append((byte) '=', buffer, position, out);
+            position = encode(parameters.get(i + 1), buffer, position, out);
+        }
+        out.write(buffer, 0, position);
+    }
+
+    /**
+     * Returns the length of the encoded string, in bytes.
+     */
+    static long encodedLength(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c < 0x80){
+                length += isUnreserved(c) || c == ' ' ? 1 : 3;
+            } else if(c < 0x800){
+                length += 6;
+            } else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                length += 12;
+                i++;
+            } else if(Character.isSurrogate(c)){
+                // unpaired surrogates are replaced by '?'
+                length += 3;
+            } else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a string into the buffer, which is written to the stream whenever it is full.
+     * @return the position in the buffer after the encoded string
+     */
+    private static int encode(String s, byte[] buffer, int position, OutputStream out) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            if(position > buffer.length - MAX_ENCODED_CHAR){
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            char c = s.charAt(i);
+            if(c < 0x80){
+                if(isUnreserved(c)){
+                    buffer[position++] = (byte) c;
+                } else if(c == ' '){
+                    buffer[position++] = '+';
+                } else {
+                    position = escape(c, buffer, position);
+                }
+            } else if(c < 0x800){
+                position = escape(0xC0 | (c >> 6), buffer, position);
+                position = escape(0x80 | (c & 0x3F), buffer, position);
+            } else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                position = escape(0xF0 | (codePoint >> 18), buffer, position);
+                position = escape(0x80 | ((codePoint >> 12) & 0x3F), buffer, position);
+                position = escape(0x80 | ((codePoint >> 6) & 0x3F), buffer, position);
+                position = escape(0x80 | (codePoint & 0x3F), buffer, position);
+            } else if(Character.isSurrogate(c)){
+                position = escape('?', buffer, position);
+            } else {
+                position = escape(0xE0 | (c >> 12), buffer, position);
+                position = escape(0x80 | ((c >> 6) & 0x3F), buffer, position);
+                position = escape(0x80 | (c & 0x3F), buffer, position);
+            }
+        }
+        return position;
+    }
+
+    private static int append(byte b, byte[] buffer, int position, OutputStream out) throws IOException {
+        if(position == buffer.length){
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        buffer[position++] = b;
+        return position;
+    }
+
+    private static int escape(int b, byte[] buffer, int position) {
+        buffer[position++] = '%';
+        buffer[position++] = HEX[(b >> 4) & 0xF];
+        buffer[position++] = HEX[b & 0xF];
+        return position;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || c == '.' || c == '-' || c == '*' || c == '_';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DandelionFormBody && parameters.equals(((DandelionFormBody) o).parameters);
+    }
+
+    @Override
+    public int hashCode() {
+        return parameters.hashCode();
+    }
+}
@@ -0,0 +1,702 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Node level HTTP client shared by the Dandelion tokenizers and token filters.
+ * <p>
+ * Connections are reused through the keep-alive cache of the JDK: responses are always fully consumed and closed,
+ * and connections are dropped only after a failure. TLS sessions are reused through the default SSL context. The
+ * number of concurrent connections per host is bounded, and connect/read timeouts are always set. Request bodies are
+ * streamed to the connection, and responses are accepted gzipped.
+ * <p>
+ * Responses with status 429 or 5xx are retried with exponential backoff and jitter, honoring Retry-After. With
+ * hedging enabled, when no response arrives within the 95th percentile of the observed latencies a second request
+ * is sent, and the first response received is used.
+ */
+public final class DandelionHttpClient {
+
+    /**
+     * Maximum number of concurrent requests to a host, shared by the write threads and the thread pools of the plugin.
+     * It does not size the keep-alive cache of the JDK, which keeps at most http.maxConnections (a JVM option, 5 by
+     * default) idle connections per host and closes the others after use.
+     */
+    public static final Setting<Integer> MAX_CONNECTIONS_PER_HOST_SETTING =
+        Setting.intSetting("dandelion.http.max_connections_per_host", 32, 1, Property.NodeScope);
+    /**
+     * Maximum time a request waits for a free connection to its host, before failing with a
+     * {@link DandelionConnectionWaitException}.
+     */
+    public static final Setting<TimeValue> CONNECTION_WAIT_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.connection_wait_timeout", TimeValue.timeValueSeconds(60), Property.NodeScope);
+    public static final Setting<TimeValue> CONNECT_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.connect_timeout", TimeValue.timeValueSeconds(5), Property.NodeScope);
+    public static final Setting<TimeValue> READ_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.read_timeout", TimeValue.timeValueSeconds(30), Property.NodeScope);
+    public static final Setting<Boolean> KEEP_ALIVE_SETTING =
+        Setting.boolSetting("dandelion.http.keep_alive", true, Property.NodeScope);
+    public static final Setting<Boolean> PREWARM_SETTING =
+        Setting.boolSetting("dandelion.http.prewarm", true, Property.NodeScope);
+    public static final Setting<ByteSizeValue> MAX_RESPONSE_SIZE_SETTING =
+        Setting.byteSizeSetting("dandelion.http.max_response_size", new ByteSizeValue(32, ByteSizeUnit.MB), Property.NodeScope);
+    public static final Setting<TimeValue> WIKIPEDIA_CONNECT_TIMEOUT_SETTING =
+        Setting.timeSetting("dandelion.http.wikipedia.connect_timeout", CONNECT_TIMEOUT_SETTING, Property.NodeScope);
+    public static final Setting<TimeValue> WIKIPEDIA_READ_TIMEOUT_SETTING =
+        Setting.timeSetting("dandelion.http.wikipedia.read_timeout", READ_TIMEOUT_SETTING, Property.NodeScope);
+    /**
+     * Connections and timeouts of the search-time requests, which have their own connections so that they never wait
+     * behind the index-time requests, and are not retried.
+     */
+    public static final Setting<Integer> SEARCH_MAX_CONNECTIONS_PER_HOST_SETTING =
+        Setting.intSetting("dandelion.http.search.max_connections_per_host", 8, 1, Property.NodeScope);
+    public static final Setting<TimeValue> SEARCH_CONNECT_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.search.connect_timeout", TimeValue.timeValueSeconds(1), Property.NodeScope);
+    public static final Setting<TimeValue> SEARCH_READ_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.search.read_timeout", TimeValue.timeValueSeconds(2), Property.NodeScope);
+    public static final Setting<Integer> MAX_RETRIES_SETTING =
+        Setting.intSetting("dandelion.http.max_retries", 2, 0, Property.NodeScope);
+    public static final Setting<TimeValue> RETRY_INITIAL_BACKOFF_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.retry.initial_backoff", TimeValue.timeValueMillis(100), Property.NodeScope);
+    public static final Setting<TimeValue> RETRY_MAX_BACKOFF_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.retry.max_backoff", TimeValue.timeValueSeconds(10), Property.NodeScope);
+    public static final Setting<Boolean> HEDGE_ENABLED_SETTING =
+        Setting.boolSetting("dandelion.http.hedge.enabled", false, Property.NodeScope);
+    public static final Setting<TimeValue> HEDGE_MIN_DELAY_SETTING =
+        Setting.positiveTimeSetting("dandelion.http.hedge.min_delay", TimeValue.timeValueMillis(50), Property.NodeScope);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Number of latencies kept to compute the hedging delay, and minimum number needed to hedge requests.
+     */
+    private static final int LATENCY_SAMPLES = 128;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    static final String USER_AGENT = "elasticsearch-dandelion-plugin (https://github.com/ZarHenry96/elasticsearch-dandelion-plugin)";
+
+    private final Logger logger = Loggers.getLogger(DandelionHttpClient.class);
+
+    private final int maxConnectionsPerHost;
+    private final long connectionWaitNanos;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final boolean keepAlive;
+    private final long maxResponseBytes;
+    private final int maxRetries;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ExecutorService hedgeExecutor;
+    private final long hedgeMinDelayNanos;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final DandelionStats.Endpoint stats;
+
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int recordedLatencies = 0;
+
+    public DandelionHttpClient(Settings settings) {
+        this(settings, CONNECT_TIMEOUT_SETTING.get(settings), READ_TIMEOUT_SETTING.get(settings), null);
+    }
+
+    private DandelionHttpClient(Settings settings, TimeValue connectTimeout, TimeValue readTimeout, ExecutorService hedgeExecutor) {
+        this(settings, MAX_CONNECTIONS_PER_HOST_SETTING.get(settings), CONNECTION_WAIT_TIMEOUT_SETTING.get(settings), connectTimeout,
+            readTimeout, MAX_RETRIES_SETTING.get(settings), HEDGE_ENABLED_SETTING.get(settings) ? hedgeExecutor : null,
+            new DandelionStats.Endpoint());
+    }
+
+    /**
+     * Creates the client of Dandelion API.
+     * @param hedgeExecutor the executor sending the requests when hedging is enabled
+     */
+    public static DandelionHttpClient dandelion(Settings settings, ExecutorService hedgeExecutor) {
+        return new DandelionHttpClient(settings, CONNECT_TIMEOUT_SETTING.get(settings), READ_TIMEOUT_SETTING.get(settings), hedgeExecutor);
+    }
+
+    /**
+     * Creates the client of the Wikipedia API, which has its own timeouts.
+     * @param hedgeExecutor the executor sending the requests when hedging is enabled
+     */
+    public static DandelionHttpClient wikipedia(Settings settings, ExecutorService hedgeExecutor) {
+        return new DandelionHttpClient(settings, WIKIPEDIA_CONNECT_TIMEOUT_SETTING.get(settings),
+            WIKIPEDIA_READ_TIMEOUT_SETTING.get(settings), hedgeExecutor);
+    }
+
+    /**
+     * Creates the client of the search-time requests to the same API as the given client: it has its own connections
+     * (search.max_connections_per_host) and timeouts, does not retry nor hedge the requests, and records them in the
+     * stats of the given client.
+     */
+    public static DandelionHttpClient search(Settings settings, DandelionHttpClient client) {
+        TimeValue connectTimeout = SEARCH_CONNECT_TIMEOUT_SETTING.get(settings);
+        return new DandelionHttpClient(settings, SEARCH_MAX_CONNECTIONS_PER_HOST_SETTING.get(settings), connectTimeout, connectTimeout,
+            SEARCH_READ_TIMEOUT_SETTING.get(settings), 0, null, client.stats);
+    }
+
+    private DandelionHttpClient(Settings settings, int maxConnectionsPerHost, TimeValue connectionWait, TimeValue connectTimeout,
+                                TimeValue readTimeout, int maxRetries, ExecutorService hedgeExecutor, DandelionStats.Endpoint stats) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectionWaitNanos = connectionWait.nanos();
+        this.connectTimeoutMillis = (int) connectTimeout.millis();
+        this.readTimeoutMillis = (int) readTimeout.millis();
+        this.keepAlive = KEEP_ALIVE_SETTING.get(settings);
+        this.maxResponseBytes = MAX_RESPONSE_SIZE_SETTING.get(settings).getBytes();
+        this.maxRetries = maxRetries;
+        this.initialBackoffNanos = RETRY_INITIAL_BACKOFF_SETTING.get(settings).nanos();
+        this.maxBackoffNanos = RETRY_MAX_BACKOFF_SETTING.get(settings).nanos();
+        this.hedgeExecutor = hedgeExecutor;
+        this.hedgeMinDelayNanos = HEDGE_MIN_DELAY_SETTING.get(settings).nanos();
+        this.stats = stats;
+    }
+
+    /**
+     * Consumes a response, whatever its status code.
+     */
+    @FunctionalInterface
+    public interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    /**
+     * A request body, streamed to the connection: it is written once for each request sent, retried or hedged.
+     */
+    public interface RequestBody {
+
+        /**
+         * Returns the number of bytes written by {@link #writeTo(OutputStream)}.
+         */
+        long length();
+
+        void writeTo(OutputStream out) throws IOException;
+
+        /**
+         * Returns a body already encoded.
+         */
+        static RequestBody of(byte[] bytes) {
+            return new RequestBody() {
+                @Override
+                public long length() {
+                    return bytes.length;
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(bytes);
+                }
+            };
+        }
+    }
+
+    /**
+     * Posts a form-urlencoded body and passes the response to the handler, which reads it as a stream decoded with
+     * the charset declared by the server (UTF-8 by default), and decompressed if the server sent it gzipped.
+     */
+    public <T> T post(String url, RequestBody body, ResponseHandler<T> handler) throws IOException {
+        return post(url, body, handler, null);
+    }
+
+    /**
+     * @param waitNanos if not null, the time spent waiting for a free connection to the host is added to it
+     * @see #post(String, RequestBody, ResponseHandler)
+     */
+    public <T> T post(String url, RequestBody body, ResponseHandler<T> handler, AtomicLong waitNanos) throws IOException {
+        SecurityManager sm = System.getSecurityManager();
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+        try {
+            return AccessController.doPrivileged((PrivilegedExceptionAction<T>) () -> doPost(url, body, handler, waitNanos));
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getException();
+        }
+    }
+
+    private <T> T doPost(String url, RequestBody body, ResponseHandler<T> handler, AtomicLong waitNanos) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Exchange exchange = hedgeExecutor == null ? exchange(url, body, waitNanos) : hedgedExchange(url, body, waitNanos);
+            long delayNanos = retryDelayNanos(exchange.status, exchange.connection.getHeaderField("Retry-After"), attempt);
+            if (delayNanos < 0) {
+                return exchange.handle(handler);
+            }
+            exchange.discard();
+            stats.onRetry();
+            logger.debug("retrying the request to [{}] (status {}) in [{}]", url, exchange.status, TimeValue.timeValueNanos(delayNanos));
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting to retry the request to " + exchange.host, e);
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait before retrying a request that received the given status, or -1 if it must not be
+     * retried: only 429 and 5xx statuses are retried, and never longer than max_backoff.
+     */
+    long retryDelayNanos(int status, String retryAfter, int attempt) {
+        if (attempt >= maxRetries || (status != HTTP_TOO_MANY_REQUESTS && status < HttpURLConnection.HTTP_INTERNAL_ERROR)) {
+            return -1;
+        }
+        long retryAfterNanos = retryAfter == null ? -1 : parseRetryAfter(retryAfter);
+        if (retryAfterNanos >= 0) {
+            return retryAfterNanos <= maxBackoffNanos ? retryAfterNanos : -1;
+        }
+        long backoffNanos = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempt, 30));
+        // jitter, so that the requests failed together are not retried together
+        return backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+    }
+
+    /**
+     * Parses a Retry-After header, either in seconds or as an HTTP date.
+     * @return the delay, or -1 if the header is malformed
+     */
+    static long parseRetryAfter(String retryAfter) {
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            // not in seconds
+        }
+        try {
+            Instant date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return Math.max(0, Duration.between(Instant.now(), date).toNanos());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sends the request and waits for the status and headers of the response.
+     */
+    private Exchange exchange(String url, RequestBody body, AtomicLong waitNanos) throws IOException {
+        URL urlObj = new URL(url);
+        Semaphore permits = hostPermits.computeIfAbsent(urlObj.getHost(), host -> new Semaphore(maxConnectionsPerHost));
+        long waitStart = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(connectionWaitNanos, TimeUnit.NANOSECONDS)) {
+                throw new DandelionConnectionWaitException("no free connection to " + urlObj.getHost() + " within ["
+                    + TimeValue.timeValueNanos(connectionWaitNanos) + "]");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a connection to " + urlObj.getHost(), e);
+        } finally {
+            if (waitNanos != null) {
+                waitNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+
+        HttpURLConnection connection = null;
+        long start = System.nanoTime();
+        stats.onRequest(body.length());
+        try {
+            connection = (HttpURLConnection) urlObj.openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (!keepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            // otherwise the connection buffers the whole body to compute its length
+            connection.setFixedLengthStreamingMode(body.length());
+
+            OutputStream out = connection.getOutputStream();
+            body.writeTo(out);
+            out.flush();
+            out.close();
+
+            int responseCode = connection.getResponseCode();
+            if (hedgeExecutor != null) {
+                recordLatency(System.nanoTime() - start);
+            }
+            long contentLength = connection.getContentLengthLong();
+            if (contentLength > maxResponseBytes) {
+                throw new IOException("response too large (" + contentLength + " bytes) from " + urlObj.getHost());
+            }
+            InputStream stream = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+            return new Exchange(urlObj.getHost(), permits, connection, responseCode, stream, start);
+        } catch (IOException | RuntimeException e) {
+            stats.onFailure(System.nanoTime() - start);
+            permits.release();
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the request on the hedge executor and, if no response arrives within the hedging delay, sends it again:
+     * the first response received is used and the other request is aborted.
+     */
+    private Exchange hedgedExchange(String url, RequestBody body, AtomicLong waitNanos) throws IOException {
+        long delayNanos = hedgeDelayNanos();
+        if (delayNanos < 0) {
+            return exchange(url, body, waitNanos);
+        }
+
+        HedgedExchange hedged = new HedgedExchange(url, body, waitNanos);
+        hedged.send();
+        try {
+            try {
+                return hedged.winner.get(delayNanos, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                stats.onHedge();
+                hedged.send();
+                return hedged.winner.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            hedged.winner.thenAccept(Exchange::abort);
+            throw new IOException("interrupted while waiting for the response of " + url, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        latencies[recordedLatencies % LATENCY_SAMPLES] = nanos;
+        recordedLatencies++;
+    }
+
+    /**
+     * Returns the 95th percentile of the recorded latencies (at least hedge.min_delay), or -1 if too few latencies
+     * have been recorded to hedge the requests.
+     */
+    long hedgeDelayNanos() {
+        long[] sorted;
+        synchronized (this) {
+            if (recordedLatencies < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(latencies, Math.min(recordedLatencies, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        return Math.max(hedgeMinDelayNanos, sorted[(int) Math.ceil(sorted.length * 0.95) - 1]);
+    }
+
+    /**
+     * The requests sent for a hedged exchange, racing for the first response.
+     */
+    private final class HedgedExchange {
+
+        private final String url;
+        private final RequestBody body;
+        private final AtomicLong waitNanos;
+        private final CompletableFuture<Exchange> winner = new CompletableFuture<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        HedgedExchange(String url, RequestBody body, AtomicLong waitNanos) {
+            this.url = url;
+            this.body = body;
+            this.waitNanos = waitNanos;
+        }
+
+        void send() {
+            if (winner.isDone()) {
+                return;
+            }
+            running.incrementAndGet();
+            try {
+                hedgeExecutor.execute(() -> {
+                    Exchange exchange;
+                    try {
+                        exchange = AccessController.doPrivileged((PrivilegedExceptionAction<Exchange>) () -> exchange(url, body, waitNanos));
+                    } catch (PrivilegedActionException e) {
+                        failed(e.getException());
+                        return;
+                    } catch (RuntimeException e) {
+                        failed(e);
+                        return;
+                    }
+                    if (!winner.complete(exchange)) {
+                        exchange.abort();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                failed(new IOException("failed to send the request to " + url, e));
+            }
+        }
+
+        private void failed(Exception e) {
+            // the exchange fails only when all the requests sent have failed
+            if (running.decrementAndGet() == 0) {
+                winner.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A request whose response status and headers have been received: it holds a connection permit until the
+     * response is handled or discarded.
+     */
+    private final class Exchange {
+
+        private final String host;
+        private final Semaphore permits;
+        private final HttpURLConnection connection;
+        private final int status;
+        private final LimitedInputStream stream;
+        private final long start;
+
+        Exchange(String host, Semaphore permits, HttpURLConnection connection, int status, InputStream stream, long start) {
+            this.host = host;
+            this.permits = permits;
+            this.connection = connection;
+            this.status = status;
+            this.stream = stream == null ? null : new LimitedInputStream(stream, maxResponseBytes, host);
+            this.start = start;
+        }
+
+        <T> T handle(ResponseHandler<T> handler) throws IOException {
+            boolean success = false;
+            try {
+                T result;
+                if (stream == null) {
+                    result = handler.handle(new Response(status, connection, new StringReader("")));
+                } else {
+                    // the stream must be read until the end and closed, otherwise the connection can not be reused
+                    try (InputStream in = stream) {
+                        InputStream decoded = in;
+                        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                            // max_response_size also bounds the decompressed body
+                            decoded = new LimitedInputStream(new GZIPInputStream(in), maxResponseBytes, host);
+                        }
+                        Reader reader = new InputStreamReader(decoded, charset(connection.getContentType()));
+                        result = handler.handle(new Response(status, connection, reader));
+                        drain(decoded);
+                        drain(in);
+                    }
+                }
+                success = true;
+                return result;
+            } finally {
+                release(!success || !keepAlive);
+            }
+        }
+
+        /**
+         * Discards the response of a request that is going to be retried, keeping the connection reusable.
+         */
+        void discard() {
+            boolean success = false;
+            try {
+                if (stream != null) {
+                    try (InputStream in = stream) {
+                        drain(in);
+                    }
+                }
+                success = true;
+            } catch (IOException e) {
+                // the connection is dropped
+            } finally {
+                release(!success || !keepAlive);
+            }
+        }
+
+        /**
+         * Drops the connection of a request that lost the race of a hedged exchange.
+         */
+        void abort() {
+            release(true);
+        }
+
+        private void drain(InputStream in) throws IOException {
+            byte[] skipBuffer = new byte[512];
+            while (in.read(skipBuffer) != -1) {
+                // discards what the handler did not read
+            }
+        }
+
+        private void release(boolean disconnect) {
+            stats.onResponse(status, System.nanoTime() - start, stream == null ? 0 : stream.read,
+                connection.getHeaderField(DandelionRateLimiter.UNITS_HEADER));
+            permits.release();
+            if (disconnect) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Returns the counters of the requests sent by this client.
+     */
+    public DandelionStats.Endpoint stats() {
+        return stats;
+    }
+
+    /**
+     * Opens a connection to the given url in the background, so that the TCP and TLS handshakes are already done
+     * (and the connection is in the keep-alive cache) when the first document is analyzed.
+     */
+    public void prewarm(String url) {
+        SecurityManager sm = System.getSecurityManager();
+        if (sm != null) {
+            sm.checkPermission(new SpecialPermission());
+        }
+        try {
+            AccessController.doPrivileged((PrivilegedExceptionAction<Void>) () -> {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(connectTimeoutMillis);
+                connection.setReadTimeout(readTimeoutMillis);
+                connection.setRequestMethod("HEAD");
+                connection.setRequestProperty("User-Agent", USER_AGENT);
+                connection.getResponseCode();
+                InputStream stream = connection.getErrorStream();
+                if (stream != null) {
+                    stream.close();
+                }
+                return null;
+            });
+        } catch (PrivilegedActionException | RuntimeException e) {
+            logger.debug("failed to prewarm the connection to [{}]", url);
+        }
+    }
+
+    /**
+     * A response being read: the body can be consumed only once, during {@link ResponseHandler#handle(Response)}.
+     */
+    public static final class Response {
+
+        private final int status;
+        private final HttpURLConnection connection;
+        private final Reader body;
+
+        Response(int status, HttpURLConnection connection, Reader body) {
+            this.status = status;
+            this.connection = connection;
+            this.body = body;
+        }
+
+        public int status() {
+            return status;
+        }
+
+        /**
+         * Returns the value of a response header, or null if it is missing.
+         */
+        public String header(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        public Reader body() {
+            return body;
+        }
+    }
+
+    /**
+     * Returns the charset declared in a Content-Type header, or UTF-8 if it is missing or unknown.
+     */
+    static Charset charset(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, "charset=", 0, 8)) {
+                    try {
+                        return Charset.forName(parameter.substring(8).replace("\"", "").trim());
+                    } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Fails when more than the given number of bytes are read, for responses without (or with a wrong) Content-Length.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long limit;
+        private final String host;
+        private long read = 0;
+
+        LimitedInputStream(InputStream in, long limit, String host) {
+            super(in);
+            this.limit = limit;
+            this.host = host;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws IOException {
+            read += n;
+            if (read > limit) {
+                throw new IOException("response too large (more than " + limit + " bytes) from " + host);
+            }
+        }
+    }
+}
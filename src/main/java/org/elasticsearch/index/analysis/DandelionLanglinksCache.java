@@ -0,0 +1,135 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Node level cache of the Wikipedia langlinks of the entities, shared by all the token filter instances.
+ * <p>
+ * Entries expire after a configurable TTL. Pages without langlinks (missing pages included) are cached as empty
+ * entries with their own, usually shorter, TTL. When an entry is read after a configurable fraction of its TTL
+ * has elapsed, it is reloaded in the background so that hot entities never expire on the indexing thread.
+ */
+public final class DandelionLanglinksCache {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+        Setting.memorySizeSetting("dandelion.cache.langlinks.size", "1%", Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_TTL_SETTING =
+        Setting.positiveTimeSetting("dandelion.cache.langlinks.ttl", TimeValue.timeValueHours(24), Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_NEGATIVE_TTL_SETTING =
+        Setting.positiveTimeSetting("dandelion.cache.langlinks.negative_ttl", TimeValue.timeValueHours(1), Property.NodeScope);
+    public static final Setting<Double> CACHE_REFRESH_AHEAD_SETTING =
+        Setting.doubleSetting("dandelion.cache.langlinks.refresh_ahead", 0.8, 0.0, Property.NodeScope);
+
+    private static final String[] NO_LANGLINKS = new String[0];
+
+    private final Logger logger = Loggers.getLogger(DandelionLanglinksCache.class);
+
+    private final Cache<String, Entry> cache;
+    private final long negativeTtlNanos;
+    private final long refreshAfterNanos;
+    private final Executor refreshExecutor;
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    public DandelionLanglinksCache(Settings settings, Executor refreshExecutor) {
+        this(CACHE_SIZE_SETTING.get(settings).getBytes(), CACHE_TTL_SETTING.get(settings),
+            CACHE_NEGATIVE_TTL_SETTING.get(settings), CACHE_REFRESH_AHEAD_SETTING.get(settings), refreshExecutor);
+    }
+
+    /**
+     * @param refreshAhead fraction of the TTL after which an entry is refreshed in the background when it is read;
+     *                     values greater or equal than 1 (or a null executor) disable refresh-ahead
+     */
+    public DandelionLanglinksCache(long maxWeightInBytes, TimeValue ttl, TimeValue negativeTtl, double refreshAhead,
+                                   Executor refreshExecutor) {
+        this.cache = CacheBuilder.<String, Entry>builder()
+            .setMaximumWeight(maxWeightInBytes)
+            .setExpireAfterWrite(ttl)
+            .weigher((entity, entry) -> 2L * entity.length() + entry.ramBytesUsed())
+            .build();
+        this.negativeTtlNanos = negativeTtl.nanos();
+        this.refreshAfterNanos = refreshAhead < 1.0 ? (long) (ttl.nanos() * refreshAhead) : Long.MAX_VALUE;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * Returns the cached urls of the langlinks of the entity, or null if they are not cached (or expired).
+     * If the entry is close to its expiration, it is reloaded in the background through the given loader.
+     */
+    public String[] getIfPresent(String entity, CheckedFunction<String, String[], IOException> loader) {
+        long now = System.nanoTime();
+        Entry entry = cache.get(entity);
+        if (entry == null || (entry.urls.length == 0 && now - entry.loadedAt > negativeTtlNanos)) {
+            return null;
+        }
+
+        if (refreshExecutor != null && now - entry.loadedAt > refreshAfterNanos && refreshing.add(entity)) {
+            try {
+                refreshExecutor.execute(() -> {
+                    try {
+                        put(entity, loader.apply(entity));
+                    } catch (Exception e) {
+                        logger.debug("failed to refresh the langlinks of [{}]", entity);
+                    } finally {
+                        refreshing.remove(entity);
+                    }
+                });
+            } catch (RuntimeException e) {
+                refreshing.remove(entity);
+            }
+        }
+        return entry.urls;
+    }
+
+    public void put(String entity, String[] urls) {
+        cache.put(entity, new Entry(urls, System.nanoTime()));
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public long weight() {
+        return cache.weight();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static final class Entry {
+
+        private final String[] urls;
+        private final long loadedAt;
+
+        Entry(String[] urls, long loadedAt) {
+            this.urls = urls.length == 0 ? NO_LANGLINKS : urls;
+            this.loadedAt = loadedAt;
+        }
+
+        long ramBytesUsed() {
+            long bytes = 48 + 8L * urls.length;
+            for (String url : urls) {
+                bytes += 40 + 2L * url.length();
+            }
+            return bytes;
+        }
+    }
+}
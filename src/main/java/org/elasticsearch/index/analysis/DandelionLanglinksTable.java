@@ -0,0 +1,398 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
+
+/**
+ * Offline Wikipedia langlinks of the pages of a language, read from a memory-mapped file built with
+ * {@link DandelionLanglinksTool} from the Wikipedia dumps, so that the multilang expansions of the token filter do
+ * not need the Wikipedia API.
+ * <p>
+ * The pages are sorted by title (UTF-8 bytes) and stored in blocks of {@link #BLOCK_SIZE} pages, each title
+ * prefix-compressed against the previous one of its block:
+ * <pre>
+ *   header | lang
+ *   block:  BLOCK_SIZE * (vInt shared prefix, vInt suffix length, suffix | vInt count | count * (vInt lang, string title))
+ *   langs:  vLong pages | vInt blocks | vInt count | count * string
+ *   index:  long offset of each block
+ *   long langs offset | long index offset | footer
+ * </pre>
+ * A lookup is a binary search on the first titles of the blocks followed by the scan of a single block, both
+ * reading the mapped file.
+ * <p>
+ * The id of the Wikidata item of a page (Q12418), when known, is stored as its langlink in the {@link #WIKIDATA}
+ * pseudo language.
+ */
+public final class DandelionLanglinksTable implements Closeable {
+
+    /**
+     * Directory of the tables ("lang.langlinks" files), relative to the config directory.
+     */
+    public static final Setting<String> PATH_SETTING =
+        new Setting<>("dandelion.langlinks.path", "dandelion/langlinks", Function.identity(), Property.NodeScope);
+
+    /**
+     * Whether the entities missing from the table of their language are resolved with the Wikipedia API.
+     */
+    public static final Setting<Boolean> FALLBACK_SETTING =
+        Setting.boolSetting("dandelion.langlinks.fallback", true, Property.NodeScope);
+
+    public static final String FILE_SUFFIX = ".langlinks";
+
+    /**
+     * Pseudo language of the Wikidata item of a page, stored as one of its langlinks.
+     */
+    public static final String WIKIDATA = "wikidata";
+
+    static final String WIKIDATA_URL = "https://www.wikidata.org/wiki/";
+
+    static final int BLOCK_SIZE = 16;
+
+    private static final String CODEC = "dandelion_langlinks";
+    private static final int VERSION = 0;
+    private static final int TRAILER_BYTES = 2 * Long.BYTES;
+
+    private static final Logger logger = Loggers.getLogger(DandelionLanglinksTable.class);
+
+    private final String lang;
+    private final Directory directory;
+    private final IndexInput in;
+    private final long pages;
+    private final int blocks;
+    private final long indexOffset;
+    private final String[] langs;
+
+    private DandelionLanglinksTable(String lang, Directory directory, IndexInput in, long pages, int blocks,
+                                    long indexOffset, String[] langs) {
+        this.lang = lang;
+        this.directory = directory;
+        this.in = in;
+        this.pages = pages;
+        this.blocks = blocks;
+        this.indexOffset = indexOffset;
+        this.langs = langs;
+    }
+
+    public String lang() {
+        return lang;
+    }
+
+    /**
+     * Returns the number of pages.
+     */
+    public long size() {
+        return pages;
+    }
+
+    /**
+     * Returns the size of the file, which is mapped in memory.
+     */
+    public long sizeInBytes() {
+        return in.length();
+    }
+
+    /**
+     * Returns the urls of the langlinks of a page, in the same format as the Wikipedia API, or null if the page is
+     * not in the table.
+     * @param title the title of the page, with spaces or underscores
+     */
+    public String[] get(String title) throws IOException {
+        if (blocks == 0) {
+            return null;
+        }
+        BytesRef key = new BytesRef(key(title));
+        IndexInput input = in.clone();
+        BytesRefBuilder current = new BytesRefBuilder();
+
+        // last block whose first title is not greater than the key
+        int low = 0;
+        int high = blocks - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            readFirstTitle(input, middle, current);
+            if (current.get().compareTo(key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        input.seek(blockOffset(input, low));
+        current.clear();
+        long entries = Math.min(BLOCK_SIZE, pages - (long) low * BLOCK_SIZE);
+        for (int i = 0; i < entries; i++) {
+            readTitle(input, current);
+            int comparison = current.get().compareTo(key);
+            if (comparison > 0) {
+                return null;
+            }
+            int count = input.readVInt();
+            if (comparison == 0) {
+                String[] urls = new String[count];
+                for (int link = 0; link < count; link++) {
+                    String linkLang = langs[input.readVInt()];
+                    urls[link] = url(linkLang, input.readString());
+                }
+                return urls;
+            }
+            for (int link = 0; link < count; link++) {
+                input.readVInt();
+                input.skipBytes(input.readVInt());
+            }
+        }
+        return null;
+    }
+
+    private long blockOffset(IndexInput input, int block) throws IOException {
+        input.seek(indexOffset + (long) block * Long.BYTES);
+        return input.readLong();
+    }
+
+    private void readFirstTitle(IndexInput input, int block, BytesRefBuilder title) throws IOException {
+        input.seek(blockOffset(input, block));
+        title.clear();
+        readTitle(input, title);
+    }
+
+    private static void readTitle(IndexInput input, BytesRefBuilder title) throws IOException {
+        int shared = input.readVInt();
+        int suffix = input.readVInt();
+        title.grow(shared + suffix);
+        input.readBytes(title.bytes(), shared, suffix);
+        title.setLength(shared + suffix);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(in, directory);
+    }
+
+    /**
+     * Titles are stored with underscores, as in the urls of the pages.
+     */
+    static byte[] key(String title) {
+        return title.trim().replace(' ', '_').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Returns the url of a Wikipedia page, encoded as MediaWiki does (wfUrlencode), or of a Wikidata item.
+     */
+    static String url(String lang, String title) {
+        if (lang.equals(WIKIDATA)) {
+            return WIKIDATA_URL + title;
+        }
+        StringBuilder url = new StringBuilder(32 + title.length()).append("https://").append(lang).append(".wikipedia.org/wiki/");
+        for (byte b : key(title)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-_.~;@$!*(),/:".indexOf(c) != -1) {
+                url.append((char) c);
+            } else {
+                url.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+            }
+        }
+        return url.toString();
+    }
+
+    public static DandelionLanglinksTable open(Path path) throws IOException {
+        Directory directory = new MMapDirectory(path.toAbsolutePath().getParent());
+        IndexInput in = null;
+        boolean success = false;
+        try {
+            in = directory.openInput(path.getFileName().toString(), IOContext.READ);
+            CodecUtil.checksumEntireFile(in);
+            CodecUtil.checkHeader(in, CODEC, VERSION, VERSION);
+            String lang = in.readString();
+
+            in.seek(in.length() - CodecUtil.footerLength() - TRAILER_BYTES);
+            long langsOffset = in.readLong();
+            long indexOffset = in.readLong();
+            if (langsOffset < 0 || langsOffset > indexOffset || indexOffset > in.length()) {
+                throw new IOException("the langlinks table " + path + " is corrupted: invalid offsets");
+            }
+            in.seek(langsOffset);
+            long pages = in.readVLong();
+            int blocks = in.readVInt();
+            String[] langs = new String[in.readVInt()];
+            for (int i = 0; i < langs.length; i++) {
+                langs[i] = in.readString();
+            }
+            if (blocks != (pages + BLOCK_SIZE - 1) / BLOCK_SIZE) {
+                throw new IOException("the langlinks table " + path + " is corrupted: [" + pages + "] pages in [" + blocks + "] blocks");
+            }
+            DandelionLanglinksTable table = new DandelionLanglinksTable(lang, directory, in, pages, blocks, indexOffset, langs);
+            success = true;
+            return table;
+        } finally {
+            if (!success) {
+                IOUtils.closeWhileHandlingException(in, directory);
+            }
+        }
+    }
+
+    /**
+     * Opens the tables ("lang.langlinks" files) of a directory, by language; the directory may not exist.
+     */
+    public static Map<String, DandelionLanglinksTable> loadAll(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyMap();
+        }
+        Map<String, DandelionLanglinksTable> tables = new HashMap<>();
+        boolean success = false;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                String lang = name.substring(0, name.length() - FILE_SUFFIX.length());
+                if (!ALLOWED_LANGUAGES.contains(lang) || lang.equals("auto")) {
+                    logger.warn("ignoring langlinks table [{}]: unsupported language [{}]", path, lang);
+                    continue;
+                }
+                DandelionLanglinksTable table = open(path);
+                tables.put(lang, table);
+                if (!table.lang().equals(lang)) {
+                    throw new IOException("the langlinks table " + path + " is for language [" + table.lang() + "]");
+                }
+                logger.info("loaded langlinks table [{}] with [{}] pages ([{}] mapped)", lang, table.size(),
+                    new ByteSizeValue(table.sizeInBytes()));
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                closeAll(tables.values());
+            }
+        }
+        return tables;
+    }
+
+    public static void closeAll(Collection<DandelionLanglinksTable> tables) throws IOException {
+        IOUtils.close(tables);
+    }
+
+    /**
+     * Writes a table; the pages must be added in the order of their titles (UTF-8 bytes, with underscores).
+     */
+    public static final class Writer implements Closeable {
+
+        private final Directory directory;
+        private final IndexOutput out;
+        private final Map<String, Integer> langOrdinals = new HashMap<>();
+        private final List<String> langs = new ArrayList<>();
+        private final BytesRefBuilder previous = new BytesRefBuilder();
+        private long[] blockOffsets = new long[64];
+        private long pages = 0;
+
+        public Writer(Path path, String lang) throws IOException {
+            directory = FSDirectory.open(path.toAbsolutePath().getParent());
+            boolean success = false;
+            try {
+                out = directory.createOutput(path.getFileName().toString(), IOContext.DEFAULT);
+                CodecUtil.writeHeader(out, CODEC, VERSION);
+                out.writeString(lang);
+                success = true;
+            } finally {
+                if (!success) {
+                    directory.close();
+                }
+            }
+        }
+
+        /**
+         * Adds a page with its langlinks.
+         * @param langlinks the titles of the page in the other languages, by language
+         */
+        public Writer add(String title, Map<String, String> langlinks) throws IOException {
+            BytesRef key = new BytesRef(key(title));
+            if (pages > 0 && previous.get().compareTo(key) >= 0) {
+                throw new IllegalArgumentException("the titles must be added in order: [" + title + "] after ["
+                    + previous.get().utf8ToString() + "]");
+            }
+
+            int shared = 0;
+            if (pages % BLOCK_SIZE == 0) {
+                int block = (int) (pages / BLOCK_SIZE);
+                if (block == blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, 2 * block);
+                }
+                blockOffsets[block] = out.getFilePointer();
+            } else {
+                int limit = Math.min(previous.length(), key.length);
+                while (shared < limit && previous.byteAt(shared) == key.bytes[key.offset + shared]) {
+                    shared++;
+                }
+            }
+            out.writeVInt(shared);
+            out.writeVInt(key.length - shared);
+            out.writeBytes(key.bytes, key.offset + shared, key.length - shared);
+            out.writeVInt(langlinks.size());
+            for (Map.Entry<String, String> langlink : langlinks.entrySet()) {
+                out.writeVInt(langOrdinals.computeIfAbsent(langlink.getKey(), l -> {
+                    langs.add(l);
+                    return langs.size() - 1;
+                }));
+                out.writeString(langlink.getValue().trim().replace(' ', '_'));
+            }
+
+            previous.copyBytes(key);
+            pages++;
+            return this;
+        }
+
+        public long pages() {
+            return pages;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                int blocks = (int) ((pages + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                long langsOffset = out.getFilePointer();
+                out.writeVLong(pages);
+                out.writeVInt(blocks);
+                out.writeVInt(langs.size());
+                for (String lang : langs) {
+                    out.writeString(lang);
+                }
+                long indexOffset = out.getFilePointer();
+                for (int block = 0; block < blocks; block++) {
+                    out.writeLong(blockOffsets[block]);
+                }
+                out.writeLong(langsOffset);
+                out.writeLong(indexOffset);
+                CodecUtil.writeFooter(out);
+            } finally {
+                IOUtils.close(out, directory);
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.SuppressForbidden;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.elasticsearch.index.analysis.DandelionLanglinksTable.WIKIDATA;
+import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
+
+/**
+ * Builds a {@link DandelionLanglinksTable} from the SQL dumps of the page and langlinks tables of a Wikipedia
+ * (lang-wiki-latest-page.sql.gz and lang-wiki-latest-langlinks.sql.gz, optionally followed by
+ * lang-wiki-latest-page_props.sql.gz for the ids of the Wikidata items), or from a tab separated file (optionally
+ * gzipped) with a line for each langlink, or just the title for the pages without langlinks:
+ * <pre>
+ *   page title [\t lang \t page title in lang]
+ *   page title \t wikidata \t Q12418
+ * </pre>
+ * Only the articles (namespace 0) and the languages supported by the plugin are kept. Run it with the jars of the
+ * plugin and of Elasticsearch:
+ * <pre>
+ * java -cp "plugins/dandelion/*:lib/*" org.elasticsearch.index.analysis.DandelionLanglinksTool \
+ *     it config/dandelion/langlinks/it.langlinks itwiki-latest-page.sql.gz itwiki-latest-langlinks.sql.gz \
+ *     itwiki-latest-page_props.sql.gz
+ * </pre>
+ * The pages are sorted in memory, which takes a few GB of heap for the largest Wikipedias.
+ */
+public final class DandelionLanglinksTool {
+
+    private DandelionLanglinksTool() {
+    }
+
+    @SuppressForbidden(reason = "command line tool")
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("usage: DandelionLanglinksTool <lang> <output.langlinks> <langlinks.tsv[.gz]>\n"
+                + "       DandelionLanglinksTool <lang> <output.langlinks> <page.sql[.gz]> <langlinks.sql[.gz]> [<page_props.sql[.gz]>]");
+            System.exit(1);
+        }
+        String lang = args[0];
+        Path output = Paths.get(args[1]);
+        Map<BytesRef, Map<String, String>> langlinks = args.length == 3 ? readTsv(Paths.get(args[2]))
+            : readSqlDumps(Paths.get(args[2]), Paths.get(args[3]), args.length == 5 ? Paths.get(args[4]) : null);
+
+        long links = 0;
+        try (DandelionLanglinksTable.Writer writer = new DandelionLanglinksTable.Writer(output, lang)) {
+            for (Map.Entry<BytesRef, Map<String, String>> page : langlinks.entrySet()) {
+                writer.add(page.getKey().utf8ToString(), page.getValue());
+                links += page.getValue().size();
+            }
+        }
+        System.out.println("wrote " + langlinks.size() + " pages with " + links + " langlinks ("
+            + new ByteSizeValue(Files.size(output)) + ") to " + output);
+    }
+
+    /**
+     * Reads the langlinks of the pages from a tab separated file.
+     * @return the langlinks of each page, sorted by title
+     */
+    static Map<BytesRef, Map<String, String>> readTsv(Path input) throws IOException {
+        Map<BytesRef, Map<String, String>> langlinks = new TreeMap<>();
+        try (BufferedReader reader = reader(input)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, String> page = langlinks.computeIfAbsent(new BytesRef(DandelionLanglinksTable.key(fields[0])),
+                    title -> new TreeMap<>());
+                if (fields.length >= 3 && (ALLOWED_LANGUAGES.contains(fields[1]) || fields[1].equals(WIKIDATA))
+                        && !fields[2].trim().isEmpty()) {
+                    page.put(fields[1], fields[2]);
+                }
+            }
+        }
+        return langlinks;
+    }
+
+    /**
+     * Reads the articles from the dump of the page table, their langlinks from the dump of the langlinks table and,
+     * if given, the ids of their Wikidata items from the dump of the page_props table.
+     * @return the langlinks of each page, sorted by title
+     */
+    static Map<BytesRef, Map<String, String>> readSqlDumps(Path pageDump, Path langlinksDump, Path pagePropsDump) throws IOException {
+        // page_id, page_namespace, page_title, ...
+        Map<Long, Map<String, String>> pagesById = new HashMap<>();
+        Map<BytesRef, Map<String, String>> langlinks = new TreeMap<>();
+        readInserts(pageDump, values -> {
+            if (values.size() >= 3 && "0".equals(values.get(1))) {
+                Map<String, String> page = new TreeMap<>();
+                pagesById.put(Long.parseLong(values.get(0)), page);
+                langlinks.put(new BytesRef(DandelionLanglinksTable.key(values.get(2))), page);
+            }
+        });
+        // ll_from, ll_lang, ll_title
+        readInserts(langlinksDump, values -> {
+            Map<String, String> page = values.size() >= 3 ? pagesById.get(Long.parseLong(values.get(0))) : null;
+            if (page != null && ALLOWED_LANGUAGES.contains(values.get(1)) && !values.get(2).isEmpty()) {
+                page.put(values.get(1), values.get(2));
+            }
+        });
+        if (pagePropsDump != null) {
+            // pp_page, pp_propname, pp_value, ...
+            readInserts(pagePropsDump, values -> {
+                Map<String, String> page = values.size() >= 3 ? pagesById.get(Long.parseLong(values.get(0))) : null;
+                if (page != null && "wikibase_item".equals(values.get(1)) && values.get(2) != null) {
+                    page.put(WIKIDATA, values.get(2));
+                }
+            });
+        }
+        return langlinks;
+    }
+
+    interface TupleConsumer {
+        void accept(List<String> values) throws IOException;
+    }
+
+    /**
+     * Reads the rows of the INSERT statements of a MySQL dump; NULL values are returned as null.
+     */
+    static void readInserts(Path dump, TupleConsumer consumer) throws IOException {
+        try (BufferedReader reader = reader(dump)) {
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (!line.startsWith("INSERT INTO ")) {
+                    continue;
+                }
+                int i = line.indexOf(" VALUES ");
+                if (i == -1) {
+                    continue;
+                }
+                try {
+                    while (i < line.length()) {
+                        if (line.charAt(i++) != '(') {
+                            continue;
+                        }
+                        values.clear();
+                        while (true) {
+                            if (line.charAt(i) == '\'') {
+                                value.setLength(0);
+                                i++;
+                                for (char c = line.charAt(i++); c != '\''; c = line.charAt(i++)) {
+                                    value.append(c == '\\' ? unescape(line.charAt(i++)) : c);
+                                }
+                                values.add(value.toString());
+                            } else {
+                                int end = i;
+                                while (line.charAt(end) != ',' && line.charAt(end) != ')') {
+                                    end++;
+                                }
+                                String unquoted = line.substring(i, end);
+                                values.add(unquoted.equals("NULL") ? null : unquoted);
+                                i = end;
+                            }
+                            if (line.charAt(i++) == ')') {
+                                break;
+                            }
+                        }
+                        consumer.accept(values);
+                    }
+                } catch (StringIndexOutOfBoundsException | NumberFormatException e) {
+                    throw new IOException("malformed INSERT statement at line " + lineNumber + " of " + dump, e);
+                }
+            }
+        }
+    }
+
+    private static char unescape(char c) {
+        switch (c) {
+            case '0':
+                return '\0';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'Z':
+                return '\u001a';
+            default:
+                return c;
+        }
+    }
+
+    private static BufferedReader reader(Path input) throws IOException {
+        InputStream in = Files.newInputStream(input);
+        if (input.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 64 * 1024);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,215 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node level token bucket limiting the requests (and the Dandelion units) sent per second to an API.
+ * <p>
+ * The remaining quota is learned from the unit-accounting headers of the responses: the actual cost of a request
+ * replaces its estimate, and when no units are left the requests are held back for a while. A request that can
+ * not be admitted immediately either waits (at most max_wait) or, with admission control enabled, is rejected
+ * right away with an {@link EsRejectedExecutionException}, which is returned to the clients as 429 Too Many
+ * Requests so that they back off.
+ * <p>
+ * Search-time requests have priority: index-time requests leave a reserve of tokens in the buckets that only
+ * search-time requests can take, and search-time requests are never held back (they are rejected instead, since
+ * the query would not wait for them anyway).
+ */
+public final class DandelionRateLimiter {
+
+    public static final Setting<Double> REQUESTS_PER_SEC_SETTING =
+        Setting.doubleSetting("dandelion.rate_limit.requests_per_sec", 0.0, 0.0, Property.NodeScope);
+    public static final Setting<Double> UNITS_PER_SEC_SETTING =
+        Setting.doubleSetting("dandelion.rate_limit.units_per_sec", 0.0, 0.0, Property.NodeScope);
+    public static final Setting<Double> WIKIPEDIA_REQUESTS_PER_SEC_SETTING =
+        Setting.doubleSetting("dandelion.rate_limit.wikipedia.requests_per_sec", 0.0, 0.0, Property.NodeScope);
+    public static final Setting<Boolean> ADMISSION_CONTROL_SETTING =
+        Setting.boolSetting("dandelion.rate_limit.admission_control", false, Property.NodeScope);
+    public static final Setting<TimeValue> MAX_WAIT_SETTING =
+        Setting.positiveTimeSetting("dandelion.rate_limit.max_wait", TimeValue.timeValueSeconds(30), Property.NodeScope);
+    public static final Setting<Double> SEARCH_RESERVE_SETTING =
+        Setting.doubleSetting("dandelion.rate_limit.search_reserve", 0.1, 0.0, Property.NodeScope);
+    public static final Setting<TimeValue> EXHAUSTED_BACKOFF_SETTING =
+        Setting.positiveTimeSetting("dandelion.rate_limit.exhausted_backoff", TimeValue.timeValueMinutes(1), Property.NodeScope);
+
+    /**
+     * Units consumed by this request, and units left, as reported by Dandelion API.
+     */
+    public static final String UNITS_HEADER = "X-DL-units";
+    public static final String UNITS_LEFT_HEADER = "X-DL-units-left";
+
+    private final String name;
+    private final Bucket requests;
+    private final Bucket units;
+    private final boolean admissionControl;
+    private final long maxWaitNanos;
+    private final long exhaustedBackoffNanos;
+    private final double searchReserve;
+    private long exhaustedUntil;
+    private boolean exhausted = false;
+
+    /**
+     * Creates the limiter of Dandelion API.
+     */
+    public static DandelionRateLimiter dandelion(Settings settings) {
+        return new DandelionRateLimiter("dandelion", REQUESTS_PER_SEC_SETTING.get(settings), UNITS_PER_SEC_SETTING.get(settings),
+            ADMISSION_CONTROL_SETTING.get(settings), MAX_WAIT_SETTING.get(settings), EXHAUSTED_BACKOFF_SETTING.get(settings),
+            SEARCH_RESERVE_SETTING.get(settings));
+    }
+
+    /**
+     * Creates the limiter of the Wikipedia API, which has no units.
+     */
+    public static DandelionRateLimiter wikipedia(Settings settings) {
+        return new DandelionRateLimiter("wikipedia", WIKIPEDIA_REQUESTS_PER_SEC_SETTING.get(settings), 0.0,
+            ADMISSION_CONTROL_SETTING.get(settings), MAX_WAIT_SETTING.get(settings), EXHAUSTED_BACKOFF_SETTING.get(settings),
+            SEARCH_RESERVE_SETTING.get(settings));
+    }
+
+    public DandelionRateLimiter(String name, double requestsPerSec, double unitsPerSec, boolean admissionControl,
+                                TimeValue maxWait, TimeValue exhaustedBackoff) {
+        this(name, requestsPerSec, unitsPerSec, admissionControl, maxWait, exhaustedBackoff, 0.0);
+    }
+
+    /**
+     * @param requestsPerSec maximum requests per second, 0 for no limit
+     * @param unitsPerSec maximum units per second, 0 for no limit
+     * @param searchReserve fraction of the capacity of the buckets reserved to the search-time requests
+     */
+    public DandelionRateLimiter(String name, double requestsPerSec, double unitsPerSec, boolean admissionControl,
+                                TimeValue maxWait, TimeValue exhaustedBackoff, double searchReserve) {
+        this.name = name;
+        long now = System.nanoTime();
+        this.requests = requestsPerSec > 0 ? new Bucket(requestsPerSec, now) : null;
+        this.units = unitsPerSec > 0 ? new Bucket(unitsPerSec, now) : null;
+        this.admissionControl = admissionControl;
+        this.maxWaitNanos = maxWait.nanos();
+        this.exhaustedBackoffNanos = exhaustedBackoff.nanos();
+        this.searchReserve = Math.min(searchReserve, 1.0);
+    }
+
+    /**
+     * Takes an index-time request and the given units from the buckets, waiting if needed.
+     * @throws EsRejectedExecutionException if the request can not be admitted
+     */
+    public void acquire(double requestUnits) throws IOException {
+        acquire(requestUnits, false);
+    }
+
+    /**
+     * Takes a request and the given units from the buckets, waiting if needed (only index-time requests wait).
+     * @param search whether the request is sent for a search-time analysis, which can take the reserved tokens
+     * @throws EsRejectedExecutionException if the request can not be admitted
+     */
+    public void acquire(double requestUnits, boolean search) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long exhaustedWait = exhausted ? exhaustedUntil - now : 0;
+            if(exhaustedWait <= 0){
+                exhausted = false;
+                exhaustedWait = 0;
+            }
+            double reserve = search ? 0.0 : searchReserve;
+            waitNanos = Math.max(exhaustedWait, Math.max(waitNanos(requests, 1, reserve, now),
+                waitNanos(units, requestUnits, reserve, now)));
+            if(waitNanos > 0 && (search || admissionControl || waitNanos > maxWaitNanos)){
+                throw new EsRejectedExecutionException("rejected " + name + " request: " +
+                    (exhaustedWait > 0 ? "no units left" : "rate limit exceeded") + ", retry in " +
+                    TimeValue.timeValueNanos(waitNanos));
+            }
+            // tokens are taken now, so that the following requests wait after this one
+            if(requests != null){
+                requests.tokens -= 1;
+            }
+            if(units != null){
+                units.tokens -= requestUnits;
+            }
+        }
+
+        if(waitNanos > 0){
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the " + name + " rate limiter", e);
+            }
+        }
+    }
+
+    /**
+     * Updates the quota with the unit-accounting headers of a response.
+     * @param estimatedUnits the units taken by {@link #acquire(double)} for the request
+     * @param unitsHeader the units actually consumed by the request, or null if unknown
+     * @param unitsLeftHeader the units left, or null if unknown
+     */
+    public synchronized void onResponse(double estimatedUnits, String unitsHeader, String unitsLeftHeader) {
+        if(units != null && unitsHeader != null){
+            try {
+                units.tokens -= Double.parseDouble(unitsHeader.trim()) - estimatedUnits;
+            } catch (NumberFormatException e) {
+                // ignore the header
+            }
+        }
+        if(unitsLeftHeader != null){
+            try {
+                if(Double.parseDouble(unitsLeftHeader.trim()) <= 0){
+                    onQuotaExhausted();
+                }
+            } catch (NumberFormatException e) {
+                // ignore the header
+            }
+        }
+    }
+
+    /**
+     * Holds the requests back for the exhausted backoff, after the API reported that there are no units left.
+     */
+    public synchronized void onQuotaExhausted() {
+        exhausted = true;
+        exhaustedUntil = System.nanoTime() + exhaustedBackoffNanos;
+    }
+
+    /**
+     * @param reserve fraction of the capacity that must be left in the bucket
+     */
+    private static long waitNanos(Bucket bucket, double requested, double reserve, long now) {
+        if(bucket == null){
+            return 0;
+        }
+        bucket.refill(now);
+        double needed = requested + reserve * bucket.capacity;
+        if(bucket.tokens >= needed){
+            return 0;
+        }
+        return (long) ((needed - bucket.tokens) / bucket.ratePerNano);
+    }
+
+    private static final class Bucket {
+
+        private final double ratePerNano;
+        // one second of burst
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double ratePerSec, long now) {
+            this.ratePerNano = ratePerSec / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1.0, ratePerSec);
+            this.tokens = capacity;
+            this.refilledAt = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.util.UnicodeUtil;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node level coalescer of the annotation requests issued concurrently by different threads.
+ * <p>
+ * The first request of a batch waits up to max_wait for other requests with the same token, language and other
+ * parameters, then sends all their texts to Dandelion API as a single text, with the segments separated by blank
+ * lines. The annotations are split back by segment, with the offsets made relative to each text again; annotations
+ * crossing a separator are dropped. A batch is sent earlier when its texts reach max_size bytes.
+ * <p>
+ * Requests with automatic language detection are never coalesced, since the language would be detected once for
+ * the whole batch.
+ */
+public final class DandelionRequestCoalescer {
+
+    public static final Setting<TimeValue> MAX_WAIT_SETTING =
+        Setting.timeSetting("dandelion.batch.max_wait", TimeValue.timeValueMillis(0), TimeValue.timeValueMillis(0), Property.NodeScope);
+    public static final Setting<ByteSizeValue> MAX_SIZE_SETTING =
+        Setting.byteSizeSetting("dandelion.batch.max_size", new ByteSizeValue(64, ByteSizeUnit.KB),
+            new ByteSizeValue(1, ByteSizeUnit.KB), new ByteSizeValue(512, ByteSizeUnit.KB), Property.NodeScope);
+
+    static final String SEPARATOR = "\n\n";
+
+    /**
+     * Sends a single annotation request to Dandelion API.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        DandelionAnnotations send(String text, String auth_token, String lang) throws IOException;
+    }
+
+    private final long maxWaitNanos;
+    private final long maxBytes;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    public DandelionRequestCoalescer(Settings settings) {
+        this(MAX_WAIT_SETTING.get(settings), MAX_SIZE_SETTING.get(settings).getBytes());
+    }
+
+    public DandelionRequestCoalescer(TimeValue maxWait, long maxBytes) {
+        this.maxWaitNanos = maxWait.nanos();
+        this.maxBytes = maxBytes;
+    }
+
+    public DandelionAnnotations annotate(String text, String auth_token, String lang, Sender sender) throws IOException {
+        return annotate(text, auth_token, lang, "", sender);
+    }
+
+    /**
+     * @param parameters the other parameters of the request, which the sender adds: only the requests with the same
+     *                   ones are coalesced
+     */
+    public DandelionAnnotations annotate(String text, String auth_token, String lang, String parameters, Sender sender) throws IOException {
+        long bytes = UnicodeUtil.calcUTF16toUTF8Length(text, 0, text.length()) + SEPARATOR.length();
+        if(maxWaitNanos == 0 || lang.equals("auto") || bytes >= maxBytes){
+            return sender.send(text, auth_token, lang);
+        }
+
+        String key = auth_token + '\0' + lang + '\0' + parameters;
+        Batch batch;
+        int index;
+        boolean leader = false;
+        synchronized (batches) {
+            batch = batches.get(key);
+            if(batch != null && batch.bytes + bytes > maxBytes){
+                batches.remove(key);
+                batch.close();
+                batch = null;
+            }
+            if(batch == null){
+                batch = new Batch();
+                batches.put(key, batch);
+                leader = true;
+            }
+            index = batch.add(text, bytes);
+        }
+
+        if(leader){
+            batch.awaitClose(maxWaitNanos);
+            synchronized (batches) {
+                batches.remove(key, batch);
+            }
+            batch.send(auth_token, lang, sender);
+        }
+        return batch.get(index);
+    }
+
+    private static final class Batch {
+
+        private final List<String> texts = new ArrayList<>();
+        private final CompletableFuture<DandelionAnnotations[]> result = new CompletableFuture<>();
+        private long bytes = 0;
+        private boolean closed = false;
+
+        // called under the lock of the batches map
+        int add(String text, long bytes) {
+            texts.add(text);
+            this.bytes += bytes;
+            return texts.size() - 1;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void awaitClose(long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long remaining = timeoutNanos;
+            try {
+                while (!closed && remaining > 0) {
+                    wait(remaining / 1000000, (int) (remaining % 1000000));
+                    remaining = deadline - System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // called once the batch has been removed from the map, so that no text can be added anymore
+        void send(String auth_token, String lang, Sender sender) {
+            try {
+                if(texts.size() == 1){
+                    result.complete(new DandelionAnnotations[] {sender.send(texts.get(0), auth_token, lang)});
+                    return;
+                }
+
+                int[] bases = new int[texts.size()];
+                StringBuilder combined = new StringBuilder();
+                for(int i = 0; i < texts.size(); i++){
+                    if(i > 0){
+                        combined.append(SEPARATOR);
+                    }
+                    bases[i] = combined.length();
+                    combined.append(texts.get(i));
+                }
+                result.complete(split(sender.send(combined.toString(), auth_token, lang), texts, bases));
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        DandelionAnnotations get(int index) throws IOException {
+            try {
+                return result.get()[index];
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the dandelion response", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException){
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+    }
+
+    static DandelionAnnotations[] split(DandelionAnnotations annotations, List<String> texts, int[] bases) {
+        DandelionAnnotations[] result = new DandelionAnnotations[texts.size()];
+        int annotation = 0;
+        for(int i = 0; i < texts.size(); i++){
+            int base = bases[i];
+            int limit = base + texts.get(i).length();
+            int from = annotation;
+            while (annotation < annotations.size() && annotations.start(annotation) < limit) {
+                annotation++;
+            }
+
+            DandelionAnnotations.Builder builder = new DandelionAnnotations.Builder();
+            for(int j = from; j < annotation; j++){
+                if(annotations.start(j) >= base && annotations.end(j) <= limit){
+                    builder.add(annotations.start(j) - base, annotations.end(j) - base, annotations, j);
+                }
+            }
+            result[i] = builder.build();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.index.analysis;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * De-duplicates the identical requests in flight on the node, keyed by their exact url and parameters (or an
+ * equivalent key).
+ * <p>
+ * The first caller of a key sends the request; the callers of the same key that arrive while it is in flight (the
+ * primary and a replica on the same node, the sub-fields of a multi-field, the copies of a syndicated article) wait
+ * for it and receive its result, or its failure, instead of sending the same request again. Nothing is kept once
+ * the request completes: that is the job of the caches.
+ */
+public final class DandelionSingleFlight<K, V> {
+
+    /**
+     * Sends a request.
+     */
+    @FunctionalInterface
+    public interface Call<V> {
+        V call() throws IOException;
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the result of the request, sent by this thread or shared with the thread that is already sending it.
+     * @param stats the counters of the API, whose deduplicated requests are recorded (may be null)
+     */
+    public V execute(K key, DandelionStats.Endpoint stats, Call<V> call) throws IOException {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+        if(running != null){
+            if(stats != null){
+                stats.onDeduplicated();
+            }
+            return get(running);
+        }
+
+        try {
+            V result = call.call();
+            future.complete(result);
+            return result;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    private static <V> V get(CompletableFuture<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for an identical request in flight", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.elasticsearch.index.analysis;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level counters of the plugin, reported by the _nodes/dandelion/stats endpoint: the requests sent to each
+ * API (recorded by {@link DandelionHttpClient}), the documents annotated for each index, and the caches.
+ */
+public final class DandelionStats {
+
+    private final DandelionHttpClient dandelionClient;
+    private final DandelionHttpClient wikipediaClient;
+    private final DandelionCircuitBreaker dandelionCircuitBreaker;
+    private final DandelionCircuitBreaker wikipediaCircuitBreaker;
+    private final DandelionAnnotationCache annotationCache;
+    private final DandelionLanglinksCache langlinksCache;
+    private final DandelionAnnotationStore annotationStore;
+    private final DandelionAnnotationCache queryCache;
+    private final ConcurrentMap<String, Index> indices = new ConcurrentHashMap<>();
+
+    /**
+     * The circuit breakers, caches and store are null when disabled.
+     */
+    public DandelionStats(DandelionHttpClient dandelionClient, DandelionHttpClient wikipediaClient,
+                          DandelionCircuitBreaker dandelionCircuitBreaker, DandelionCircuitBreaker wikipediaCircuitBreaker,
+                          DandelionAnnotationCache annotationCache, DandelionLanglinksCache langlinksCache,
+                          DandelionAnnotationStore annotationStore, DandelionAnnotationCache queryCache) {
+        this.dandelionClient = dandelionClient;
+        this.wikipediaClient = wikipediaClient;
+        this.dandelionCircuitBreaker = dandelionCircuitBreaker;
+        this.wikipediaCircuitBreaker = wikipediaCircuitBreaker;
+        this.annotationCache = annotationCache;
+        this.langlinksCache = langlinksCache;
+        this.annotationStore = annotationStore;
+        this.queryCache = queryCache;
+    }
+
+    public DandelionHttpClient dandelionClient() {
+        return dandelionClient;
+    }
+
+    public DandelionHttpClient wikipediaClient() {
+        return wikipediaClient;
+    }
+
+    public DandelionCircuitBreaker dandelionCircuitBreaker() {
+        return dandelionCircuitBreaker;
+    }
+
+    public DandelionCircuitBreaker wikipediaCircuitBreaker() {
+        return wikipediaCircuitBreaker;
+    }
+
+    public DandelionAnnotationCache annotationCache() {
+        return annotationCache;
+    }
+
+    public DandelionLanglinksCache langlinksCache() {
+        return langlinksCache;
+    }
+
+    public DandelionAnnotationStore annotationStore() {
+        return annotationStore;
+    }
+
+    public DandelionAnnotationCache queryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Returns the counters of the documents of an index.
+     */
+    public Index index(String name) {
+        return indices.computeIfAbsent(name, n -> new Index());
+    }
+
+    /**
+     * Drops the counters of an index removed from the node, so that they do not pile up with daily or rollover
+     * indices.
+     */
+    public void removeIndex(String name) {
+        indices.remove(name);
+    }
+
+    /**
+     * Returns the counters of the indices, sorted by name.
+     */
+    public Map<String, Index> indices() {
+        return Collections.unmodifiableMap(new TreeMap<>(indices));
+    }
+
+    /**
+     * Counters of the requests sent to an API.
+     */
+    public static final class Endpoint {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder hedged = new LongAdder();
+        private final LongAdder deduplicated = new LongAdder();
+        private final AtomicLong inFlight = new AtomicLong();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final DoubleAdder units = new DoubleAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        void onRequest(long bytes) {
+            requests.increment();
+            inFlight.incrementAndGet();
+            requestBytes.add(bytes);
+        }
+
+        /**
+         * @param units the units consumed by the request, or null if unknown
+         */
+        void onResponse(int status, long latencyNanos, long bytes, String units) {
+            inFlight.decrementAndGet();
+            latency.record(latencyNanos);
+            responseBytes.add(bytes);
+            if (status >= 400) {
+                errors.computeIfAbsent(Integer.toString(status), s -> new LongAdder()).increment();
+            }
+            if (units != null) {
+                try {
+                    this.units.add(Double.parseDouble(units.trim()));
+                } catch (NumberFormatException e) {
+                    // ignore the header
+                }
+            }
+        }
+
+        /**
+         * Records a request failed without a response (connection error, timeout...).
+         */
+        void onFailure(long latencyNanos) {
+            inFlight.decrementAndGet();
+            latency.record(latencyNanos);
+            errors.computeIfAbsent("io_error", s -> new LongAdder()).increment();
+        }
+
+        void onRetry() {
+            retries.increment();
+        }
+
+        void onHedge() {
+            hedged.increment();
+        }
+
+        /**
+         * Records a request not sent because an identical one was in flight.
+         */
+        void onDeduplicated() {
+            deduplicated.increment();
+        }
+
+        public long requests() {
+            return requests.sum();
+        }
+
+        public long retries() {
+            return retries.sum();
+        }
+
+        public long hedged() {
+            return hedged.sum();
+        }
+
+        public long deduplicated() {
+            return deduplicated.sum();
+        }
+
+        public long inFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * Returns the number of failed requests by status code ("io_error" for requests without a response).
+         */
+        public Map<String, Long> errors() {
+            Map<String, Long> result = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().sum());
+            }
+            return result;
+        }
+
+        public long requestBytes() {
+            return requestBytes.sum();
+        }
+
+        public long responseBytes() {
+            return responseBytes.sum();
+        }
+
+        public double units() {
+            return units.sum();
+        }
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Counters of the documents of an index annotated through Dandelion API.
+     */
+    public static final class Index {
+
+        private final LongAdder documents = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder degraded = new LongAdder();
+        private final LongAdder entities = new LongAdder();
+        private final LongAdder timeNanos = new LongAdder();
+
+        public void onAnnotated(int entities, long nanos) {
+            documents.increment();
+            this.entities.add(entities);
+            timeNanos.add(nanos);
+        }
+
+        public void onDegraded(long nanos) {
+            documents.increment();
+            degraded.increment();
+            timeNanos.add(nanos);
+        }
+
+        public void onFailed(long nanos) {
+            documents.increment();
+            failed.increment();
+            timeNanos.add(nanos);
+        }
+
+        public long documents() {
+            return documents.sum();
+        }
+
+        public long failed() {
+            return failed.sum();
+        }
+
+        public long degraded() {
+            return degraded.sum();
+        }
+
+        public long entities() {
+            return entities.sum();
+        }
+
+        public long timeInMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(timeNanos.sum());
+        }
+    }
+
+    /**
+     * Histogram of latencies with logarithmic buckets: 4 buckets per power of two microseconds, so that percentiles
+     * are estimated within about 12%.
+     */
+    public static final class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 4;
+        private static final int MAX_EXPONENT = 40;
+
+        private final AtomicLongArray counts = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            counts.incrementAndGet(bucket(micros));
+            long max;
+            while ((max = maxMicros.get()) < micros && !maxMicros.compareAndSet(max, micros)) {
+                // retry
+            }
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+            int sub = (int) ((micros >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+            return (exponent - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Returns the middle value of a bucket.
+         */
+        static long value(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 1;
+            int sub = bucket % SUB_BUCKETS;
+            long lower = (long) (SUB_BUCKETS + sub) << (exponent - 2);
+            long upper = (long) (SUB_BUCKETS + sub + 1) << (exponent - 2);
+            return (lower + upper) / 2;
+        }
+
+        /**
+         * Returns the estimated latency under which the given fraction (between 0 and 1) of the requests completed,
+         * in microseconds.
+         */
+        public long percentileMicros(double fraction) {
+            long[] snapshot = new long[counts.length()];
+            long total = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(value(i), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+
+        public long maxMicros() {
+            return maxMicros.get();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.elasticsearch.index.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Splits long texts into overlapping segments that are annotated separately, and merges the annotations of the
+ * segments back into annotations of the whole text.
+ * <p>
+ * Segments end at a paragraph or sentence boundary when possible, and consecutive segments overlap so that the
+ * entities close to a boundary are annotated with some context on both sides. In the overlap, the annotations of
+ * the first segment are kept before the middle of the overlap and those of the second one after it.
+ */
+final class DandelionTextSegmenter {
+
+    private DandelionTextSegmenter() {
+    }
+
+    /**
+     * @return the bounds of the segments: segment i spans from bounds[2 * i] (inclusive) to bounds[2 * i + 1]
+     */
+    static int[] split(String text, int segmentSize, int overlap) {
+        int[] bounds = new int[8];
+        int count = 0;
+        int start = 0;
+        while (true) {
+            int end = start + segmentSize >= text.length() ? text.length() : boundaryBefore(text, start + segmentSize, start + segmentSize / 2);
+            if(count + 2 > bounds.length){
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count++] = start;
+            bounds[count++] = end;
+            if(end == text.length()){
+                return Arrays.copyOf(bounds, count);
+            }
+            int next = boundaryAfter(text, end - overlap, end);
+            start = next > start ? next : end;
+        }
+    }
+
+    /**
+     * Returns the last boundary in (from, limit], preferring paragraphs to sentences and sentences to words.
+     */
+    private static int boundaryBefore(String text, int limit, int from) {
+        int word = -1;
+        int sentence = -1;
+        for(int i = limit; i > from; i--){
+            char previous = text.charAt(i - 1);
+            if(previous == '\n' && i >= 2 && text.charAt(i - 2) == '\n'){
+                return i;
+            }
+            if(sentence == -1 && (previous == '\n' || (Character.isWhitespace(text.charAt(i)) && isSentenceEnd(previous)))){
+                sentence = i;
+            }
+            if(word == -1 && Character.isWhitespace(previous)){
+                word = i;
+            }
+        }
+        return sentence != -1 ? sentence : word != -1 ? word : limit;
+    }
+
+    /**
+     * Returns the first sentence (or word) boundary in [from, limit], or limit if there is none.
+     */
+    private static int boundaryAfter(String text, int from, int limit) {
+        int word = -1;
+        for(int i = Math.max(from, 1); i < limit; i++){
+            char previous = text.charAt(i - 1);
+            if(previous == '\n' || (isSentenceEnd(previous) && Character.isWhitespace(text.charAt(i)))){
+                return i;
+            }
+            if(word == -1 && Character.isWhitespace(previous)){
+                word = i;
+            }
+        }
+        return word != -1 ? word : limit;
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '.' || c == '!' || c == '?' || c == ';';
+    }
+
+    /**
+     * Merges the annotations of the segments (relative to each segment) into annotations of the whole text.
+     */
+    static DandelionAnnotations merge(int[] bounds, DandelionAnnotations[] segments) {
+        DandelionAnnotations.Builder builder = new DandelionAnnotations.Builder();
+        int lastEnd = 0;
+
+        for(int i = 0; i < segments.length; i++){
+            int base = bounds[2 * i];
+            // the overlap with the previous segment is owned by it up to its middle, and by this segment after it
+            int from = i == 0 ? 0 : (bounds[2 * i] + bounds[2 * i - 1] + 1) / 2;
+            int to = i == segments.length - 1 ? Integer.MAX_VALUE : (bounds[2 * i + 2] + bounds[2 * i + 1] + 1) / 2;
+            DandelionAnnotations segment = segments[i];
+            for(int j = 0; j < segment.size(); j++){
+                int start = base + segment.start(j);
+                if(start < from || start >= to || (builder.size() > 0 && start < lastEnd)){
+                    continue;
+                }
+                lastEnd = base + segment.end(j);
+                builder.add(start, lastEnd, segment, j);
+            }
+        }
+        return builder.build();
+    }
+}
@@ -1,40 +1,147 @@
 package org.elasticsearch.index.analysis;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
-import org.elasticsearch.SpecialPermission;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.security.AccessController;
-import java.security.PrivilegedActionException;
-import java.security.PrivilegedExceptionAction;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.elasticsearch.index.analysis.DandelionLanglinksTable.WIKIDATA;
+import static org.elasticsearch.index.analysis.DandelionLanglinksTable.WIKIDATA_URL;
 import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
 
 public class DandelionTokenFilter extends TokenFilter {
 
+    /**
+     * Maximum number of titles accepted by the MediaWiki API in a single query.
+     */
+    static final int MAX_TITLES_PER_REQUEST = 50;
+
+    /**
+     * Maximum number of entity tokens buffered while collecting the entities to resolve.
+     */
+    static final int MAX_WINDOW_TOKENS = 512;
+
+    /**
+     * Maximum number of entities of a text whose langlinks are resolved ahead of the tokens.
+     */
+    static final int MAX_LOOKAHEAD_ENTITIES = 512;
+
+    public static final String LOOKAHEAD_THREAD_POOL_NAME = "dandelion_lookahead";
+
+    /**
+     * Token added at the end of the texts indexed without the multilang expansions because the Wikipedia API was
+     * unavailable.
+     */
+    public static final String MULTILANG_DEGRADED_MARKER = "_dandelion_multilang_degraded_";
+
+    static final String WIKIPEDIA_PATH = ".wikipedia.org/wiki/";
+
+    /**
+     * Prefix of the keys of the Wikidata ids in the langlinks cache, which holds both.
+     */
+    private static final String WIKIDATA_KEY_PREFIX = "wikidata|";
+
+    private static final String[] NO_LINKS = new String[0];
+
     private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
     private final OffsetAttribute offsAtt = addAttribute(OffsetAttribute.class);
     private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
     private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    private final DandelionAnnotationsAttribute annotationsAtt = addAttribute(DandelionAnnotationsAttribute.class);
+    private final DandelionEntityAttribute entityAtt = addAttribute(DandelionEntityAttribute.class);
+
+    private static DandelionLanglinksCache langlinksCache = null;
+
+    private static DandelionHttpClient httpClient = DandelionHttpClient.wikipedia(Settings.EMPTY, null);
+
+    public static void setLanglinksCache(DandelionLanglinksCache langlinksCache){
+        DandelionTokenFilter.langlinksCache = langlinksCache;
+    }
+
+    public static void setHttpClient(DandelionHttpClient httpClient){
+        DandelionTokenFilter.httpClient = httpClient;
+    }
+
+    private static DandelionHttpClient searchHttpClient = null;
+
+    /**
+     * Sets the client of the search-time requests; without it, they are sent by the client of the index-time requests.
+     */
+    public static void setSearchHttpClient(DandelionHttpClient searchHttpClient){
+        DandelionTokenFilter.searchHttpClient = searchHttpClient;
+    }
+
+    private static DandelionRateLimiter rateLimiter = null;
+
+    public static void setRateLimiter(DandelionRateLimiter rateLimiter){
+        DandelionTokenFilter.rateLimiter = rateLimiter;
+    }
+
+    private static DandelionCircuitBreaker circuitBreaker = null;
+
+    private static final DandelionSingleFlight<String, WikiResponse> inFlightRequests = new DandelionSingleFlight<>();
+
+    private static Map<String, DandelionLanglinksTable> langlinksTables = Collections.emptyMap();
+    private static boolean langlinksFallback = true;
+
+    /**
+     * @param fallback whether the entities missing from the table of their language are resolved with the Wikipedia API
+     */
+    public static void setLanglinksTables(Map<String, DandelionLanglinksTable> langlinksTables, boolean fallback){
+        DandelionTokenFilter.langlinksTables = langlinksTables == null ? Collections.emptyMap() : langlinksTables;
+        DandelionTokenFilter.langlinksFallback = fallback;
+    }
+
+    public static void setCircuitBreaker(DandelionCircuitBreaker circuitBreaker){
+        DandelionTokenFilter.circuitBreaker = circuitBreaker;
+    }
+
+    private static ExecutorService lookaheadExecutor = null;
+
+    /**
+     * Sets the executor resolving the langlinks of the entities ahead of the tokens; without it the langlinks are
+     * resolved only when the tokens are reached.
+     */
+    public static void setLookaheadExecutor(ExecutorService executor){
+        DandelionTokenFilter.lookaheadExecutor = executor;
+    }
 
     private boolean multilang;
+    private boolean wikidata;
+    private boolean degradeWhenUnavailable;
+    private boolean searchMode;
+    private boolean compact;
+    private boolean multilangDegraded = false;
+    private boolean passThrough = false;
 
     private ArrayList<String> extraTokens = new ArrayList<>();
     private int startOffset = 0;
@@ -42,8 +149,48 @@ public class DandelionTokenFilter extends TokenFilter {
 
     private int skipped_positions = 0;
 
+    private final ArrayDeque<State> windowStates = new ArrayDeque<>();
+    private final ArrayDeque<String> windowEntities = new ArrayDeque<>();
+    private final Map<String, String[]> windowLanglinks = new HashMap<>();
+
+    // the langlinks of the entities of the current text found in a table or in the cache by the lookahead, and the
+    // batches of the others being resolved in the background
+    private final Map<String, String[]> lookaheadResolved = new HashMap<>();
+    private final Map<String, FutureTask<Map<String, String[]>>> lookahead = new HashMap<>();
+
     public DandelionTokenFilter(TokenStream in, String multilang){
+        this(in, multilang, null);
+    }
+
+    /**
+     * @param multilang "true" adds the langlinks of each entity at its position, "wikidata" replaces each entity with
+     *                  the url of its Wikidata item (https://www.wikidata.org/wiki/Q12418), the same in all languages
+     * @param onUnavailable what to do while the circuit breaker of the Wikipedia API is open: "fail" (the default)
+     *                      fails the document, "degrade" indexes the entities without their langlinks followed by
+     *                      {@link #MULTILANG_DEGRADED_MARKER}
+     */
+    public DandelionTokenFilter(TokenStream in, String multilang, String onUnavailable){
+        this(in, multilang, onUnavailable, null);
+    }
+
+    /**
+     * @param mode "index" (the default) or "search": in search mode the langlinks not cached yet are waited for at
+     *             most the search timeout, after which the entities are kept without their langlinks
+     */
+    public DandelionTokenFilter(TokenStream in, String multilang, String onUnavailable, String mode){
+        this(in, multilang, onUnavailable, mode, null);
+    }
+
+    /**
+     * @param encoding "url" (the default) emits the entities as urls (https://lang.wikipedia.org/wiki/Title), "title"
+     *                 in the compact form lang:Title (see {@link #compactEntity(String)}), which shrinks the terms
+     *                 dictionary of the field
+     */
+    public DandelionTokenFilter(TokenStream in, String multilang, String onUnavailable, String mode, String encoding){
         super(in);
+        this.degradeWhenUnavailable = DandelionTokenizer.parseOnUnavailable(onUnavailable);
+        this.searchMode = DandelionTokenizer.parseMode(mode);
+        this.compact = parseEncoding(encoding);
         if(!(in.hasAttribute(CharTermAttribute.class) &&
             in.hasAttribute(OffsetAttribute.class) &&
             in.hasAttribute(PositionIncrementAttribute.class) &&
@@ -55,121 +202,572 @@ public class DandelionTokenFilter extends TokenFilter {
             this.multilang = false;
         } else if(multilang.equals("true")){
             this.multilang = true;
+        } else if(multilang.equals("wikidata")){
+            this.wikidata = true;
         }else{
-            throw new IllegalArgumentException("Illegal multilang parameter value: only true/false are allowed!");
+            throw new IllegalArgumentException("Illegal multilang parameter value: only true/false/wikidata are allowed!");
+        }
+    }
+
+    /**
+     * @return whether the encoding is "title"
+     */
+    static boolean parseEncoding(String encoding){
+        if(encoding == null || encoding.isEmpty() || encoding.equals("url")){
+            return false;
+        } else if(encoding.equals("title")){
+            return true;
+        }
+        throw new IllegalArgumentException("Illegal encoding parameter value: only url/title are allowed!");
+    }
+
+    /**
+     * Returns the compact form lang:Title of an entity url (https://lang.wikipedia.org/wiki/Title), with the title
+     * percent-decoded, or the value itself if it is not the url of a Wikipedia page. The urls of the same page that
+     * differ only in the scheme or in the percent-encoding (Dandelion API and Wikipedia encode titles differently)
+     * have the same compact form.
+     */
+    public static String compactEntity(String url){
+        int host = url.startsWith("https://") ? 8 : url.startsWith("http://") ? 7 : -1;
+        if(host != -1 && url.startsWith(WIKIDATA_URL.substring(8), host)){
+            return WIKIDATA + ':' + url.substring(host + WIKIDATA_URL.length() - 8);
+        }
+        int lang_begin = url.indexOf("://");
+        int lang_end = url.indexOf(WIKIPEDIA_PATH);
+        if(lang_begin == -1 || lang_end <= lang_begin + 3 || url.lastIndexOf('/', lang_end) > lang_begin + 2){
+            return url;
+        }
+        String title = url.substring(lang_end + WIKIPEDIA_PATH.length());
+        try {
+            // a literal + is part of the title, not an encoded space
+            title = URLDecoder.decode(title.replace("+", "%2B"), "UTF-8");
+        } catch (IllegalArgumentException | UnsupportedEncodingException e){
+            // malformed escapes are kept as they are
         }
+        return url.substring(lang_begin + 3, lang_end) + ':' + title;
     }
 
-    private String[] configRequestElements(String entity) throws IOException{
-        int lang_begin = 8;
-        int lang_end = entity.indexOf('.', lang_begin);
-        int title_begin = entity.lastIndexOf('/');
+    /**
+     * Splits an entity url (https://lang.wikipedia.org/wiki/Title) into its language and title.
+     */
+    private static String[] parseEntity(String entity) throws IOException{
+        // the title follows the path, and may contain slashes (AC/DC)
+        int lang_begin = entity.indexOf("://") + 3;
+        int lang_end = entity.indexOf(WIKIPEDIA_PATH);
 
-        if(lang_end == -1 || title_begin == -1){
+        if(lang_begin < 3 || lang_end <= lang_begin || entity.lastIndexOf('/', lang_end) >= lang_begin){
             throw new IOException("DandelionTokenFilter multilang exception: the entity provided by the tokenizer has a wrong format!");
         }
 
         String lang = entity.substring(lang_begin, lang_end);
-        String title = entity.substring(title_begin+1);
+        String title = entity.substring(lang_end + WIKIPEDIA_PATH.length());
 
         if(!ALLOWED_LANGUAGES.contains(lang)){
             throw new IOException("DandelionTokenFilter multilang exception: the entity provided by the tokenizer has a wrong format in terms of language prefix (unsupported)!");
         }
 
-        String[] res = new String[2];
-        res[0] = "https://"+lang+".wikipedia.org/w/api.php";
-        res[1] = "action=query&titles="+title+"&prop=langlinks&lllimit=500&llprop=url&format=json";
+        return new String[] {lang, title};
+    }
+
+    /**
+     * Resolves the langlinks (or the Wikidata ids) of the given entities, grouping them by language in requests of at
+     * most {@link #MAX_TITLES_PER_REQUEST} titles.
+     * @param wikidata whether the url of the Wikidata item of each entity is resolved instead of its langlinks
+     * @param search whether the requests are sent for a search-time analysis, which has priority on the rate limiter
+     */
+    private static Map<String, String[]> wikiApiCall(Collection<String> entities, boolean wikidata, boolean search) throws IOException{
+        Map<String, List<String[]>> entitiesByLang = new LinkedHashMap<>();
+        for(String entity : entities){
+            String[] lang_title = parseEntity(entity);
+            entitiesByLang.computeIfAbsent(lang_title[0], lang -> new ArrayList<>()).add(new String[] {entity, lang_title[1]});
+        }
 
-        return res;
+        Map<String, String[]> result = new HashMap<>();
+        for(Map.Entry<String, List<String[]>> langEntities : entitiesByLang.entrySet()){
+            List<String[]> batch = langEntities.getValue();
+            for(int from = 0; from < batch.size(); from += MAX_TITLES_PER_REQUEST){
+                batchWikiApiCall(langEntities.getKey(), batch.subList(from, Math.min(from + MAX_TITLES_PER_REQUEST, batch.size())), result, wikidata, search);
+            }
+        }
+        return result;
     }
 
-    private void wikiApiCall(String entity) throws IOException{
-        String[] config = configRequestElements(entity);
-        final String url = config[0];
-        final byte[] parametersBytes = config[1].getBytes("UTF-8");
+    private static void batchWikiApiCall(String lang, List<String[]> batch, Map<String, String[]> result, boolean wikidata,
+                                         boolean search) throws IOException{
+        StringBuilder titles = new StringBuilder();
+        for(String[] entity_title : batch){
+            if(titles.length() > 0){
+                titles.append("%7C");
+            }
+            titles.append(entity_title[1]);
+        }
+
+        final String url = "https://"+lang+".wikipedia.org/w/api.php";
+        final String parameters = wikidata ? "action=query&titles="+titles+"&prop=pageprops&ppprop=wikibase_item&format=json"
+            : "action=query&titles="+titles+"&prop=langlinks&lllimit=500&llprop=url&format=json";
+
+        // the identical requests that arrive meanwhile share the response, and do not take tokens from the limiter
+        WikiResponse response = inFlightRequests.execute(url + '?' + parameters, httpClient.stats(),
+            () -> sendWikiRequest(url, parameters, search));
 
-        final String response;
-        SecurityManager sm = System.getSecurityManager();
-        if (sm != null) {
-            sm.checkPermission(new SpecialPermission());
+        for(String[] entity_title : batch){
+            String title = decodeTitle(entity_title[1]);
+            List<String> langlinks = response.langlinksByTitle.get(response.normalized.getOrDefault(title, title));
+            result.put(entity_title[0], langlinks == null ? NO_LINKS : langlinks.toArray(new String[langlinks.size()]));
         }
-        try{
-            response = AccessController.doPrivileged(new PrivilegedExceptionAction<String>() {
-                public String run() throws IOException {
-                    URL urlObj = new URL(url);
-                    HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-                    connection.setDoOutput(true);
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("User-Agent", "Mozilla/5.0");
-                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+    }
 
-                    OutputStream out = connection.getOutputStream();
-                    out.write(parametersBytes);
-                    out.flush();
-                    out.close();
+    /**
+     * The normalized titles and the langlinks (or Wikidata ids) of the pages of a request, with all its continuations.
+     */
+    private static final class WikiResponse {
+        private final Map<String, String> normalized = new HashMap<>();
+        private final Map<String, List<String>> langlinksByTitle = new HashMap<>();
+    }
 
-                    BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+    private static WikiResponse sendWikiRequest(String url, String parameters, boolean search) throws IOException{
+        WikiResponse result = new WikiResponse();
+        String continueParameters = "";
+        DandelionRateLimiter limiter = rateLimiter;
+        DandelionCircuitBreaker breaker = circuitBreaker;
+        DandelionHttpClient client = search && searchHttpClient != null ? searchHttpClient : httpClient;
+        DandelionHttpClient.ResponseHandler<String> handler =
+            response -> processResponse(response.status(), response.body(), result.normalized, result.langlinksByTitle);
+        do {
+            if(limiter != null){
+                limiter.acquire(1, search);
+            }
+            DandelionHttpClient.RequestBody body = DandelionHttpClient.RequestBody.of((parameters + continueParameters).getBytes("UTF-8"));
+            continueParameters = breaker == null ? client.post(url, body, handler) : breaker.execute(client, url, body, handler);
+        } while (continueParameters != null);
+        return result;
+    }
 
-                    String inputLine;
-                    StringBuffer response = new StringBuffer();
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                    }
-                    in.close();
-                    connection.disconnect();
+    private static String decodeTitle(String title) throws IOException{
+        try {
+            return URLDecoder.decode(title, "UTF-8");
+        } catch (IllegalArgumentException ex){
+            return title;
+        }
+    }
 
-                    return response.toString();
-                }
-            });
-        } catch (PrivilegedActionException e) {
-            throw (IOException) e.getException();
+    /**
+     * Returns the langlinks (or the Wikidata id) of an entity from the offline table of its language, or null if they
+     * have to be resolved with the Wikipedia API.
+     */
+    private static String[] tableLanglinks(String lang, String title, boolean wikidata) throws IOException{
+        Map<String, DandelionLanglinksTable> tables = langlinksTables;
+        if(tables.isEmpty() || lang == null){
+            return null;
+        }
+        DandelionLanglinksTable table = tables.get(lang);
+        if(table == null){
+            return null;
         }
+        String[] langlinks = table.get(decodeTitle(title));
+        if(langlinks != null){
+            langlinks = selectLinks(langlinks, wikidata);
+            if(wikidata && langlinks.length == 0){
+                // the table was built without the page props, or the page had no item yet
+                langlinks = null;
+            }
+        }
+        return langlinks == null && !langlinksFallback ? NO_LINKS : langlinks;
+    }
 
-        processResponse(response);
+    /**
+     * Returns either the url of the Wikidata item or the langlinks among the urls of a page of a langlinks table.
+     */
+    private static String[] selectLinks(String[] urls, boolean wikidata){
+        int items = 0;
+        for(String url : urls){
+            if(url.startsWith(WIKIDATA_URL)){
+                items++;
+            }
+        }
+        if(items == 0){
+            return wikidata ? NO_LINKS : urls;
+        }
+        String[] selected = new String[wikidata ? items : urls.length - items];
+        int i = 0;
+        for(String url : urls){
+            if(url.startsWith(WIKIDATA_URL) == wikidata){
+                selected[i++] = url;
+            }
+        }
+        return selected;
     }
 
+    /**
+     * Collects the normalized titles and the langlinks of the pages contained in a (possibly partial) response,
+     * reading it as a stream. Pages without langlinks, missing pages included, are simply skipped.
+     * @return the parameters to append to the request to get the next part of the response, or null if it is complete
+     */
+    private static String processResponse(int status, Reader body, Map<String, String> normalized,
+                                          Map<String, List<String>> langlinksByTitle) throws IOException{
+        if(status >= HttpURLConnection.HTTP_BAD_REQUEST){
+            throw new IOException("The wikipedia langlinks api answered with status " + status + "!");
+        }
 
-    private void processResponse(String response) throws IOException{
-        Gson gson = new Gson();
-        JsonElement element;
-        try{
-            element = gson.fromJson(response, JsonElement.class);
-        } catch (Exception ex){
+        boolean hasPages = false;
+        StringBuilder continueParameters = null;
+        try {
+            JsonReader reader = new JsonReader(body);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "query":
+                        hasPages = processQuery(reader, normalized, langlinksByTitle);
+                        break;
+                    case "continue":
+                        continueParameters = new StringBuilder();
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            continueParameters.append('&').append(reader.nextName()).append('=')
+                                .append(URLEncoder.encode(reader.nextString(), "UTF-8"));
+                        }
+                        reader.endObject();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException | EOFException ex){
             throw new IOException("TokenFilter exception: malformed wikipedia response!");
         }
-        JsonObject jsonObject = element.getAsJsonObject();
 
-        if(!(jsonObject.has("query") && jsonObject.getAsJsonObject("query").has("pages"))){
+        if(!hasPages){
             throw new IOException("The data returned by the wikipedia langlinks api has a wrong format!");
         }
-        JsonObject pages = jsonObject.getAsJsonObject("query").getAsJsonObject("pages");
+        return continueParameters == null ? null : continueParameters.toString();
+    }
 
-        Set<String> page_ids =  pages.keySet();
-        if(page_ids.size() != 1){
-            throw new IOException("Wrong number of pages returned by the wikipedia langlinks api!");
+    /**
+     * @return whether the query object contains the pages
+     */
+    private static boolean processQuery(JsonReader reader, Map<String, String> normalized,
+                                        Map<String, List<String>> langlinksByTitle) throws IOException{
+        boolean hasPages = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "normalized":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String from = null;
+                        String to = null;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            if(name.equals("from")){
+                                from = reader.nextString();
+                            } else if(name.equals("to")){
+                                to = reader.nextString();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        if(from != null && to != null){
+                            normalized.put(from, to);
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                case "pages":
+                    hasPages = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if(Integer.parseInt(reader.nextName()) < 0){
+                            reader.skipValue();
+                        } else {
+                            processPage(reader, langlinksByTitle);
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return hasPages;
+    }
+
+    private static void processPage(JsonReader reader, Map<String, List<String>> langlinksByTitle) throws IOException{
+        String title = null;
+        List<String> urls = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "title":
+                    title = reader.nextString();
+                    break;
+                case "pageprops":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if(reader.nextName().equals("wikibase_item")){
+                            urls = new ArrayList<>(1);
+                            urls.add(WIKIDATA_URL + reader.nextString());
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case "langlinks":
+                    urls = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String lang = null;
+                        String url = null;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String name = reader.nextName();
+                            if(name.equals("lang")){
+                                lang = reader.nextString();
+                            } else if(name.equals("url")){
+                                url = reader.nextString();
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                        if(url != null && ALLOWED_LANGUAGES.contains(lang)){
+                            urls.add(url);
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(title != null && urls != null){
+            langlinksByTitle.computeIfAbsent(title, t -> new ArrayList<>()).addAll(urls);
         }
+    }
+
+    private static String[] lookupLanglinks(String entity) throws IOException{
+        return wikiApiCall(Collections.singletonList(entity), false, false).get(entity);
+    }
+
+    private static String[] lookupWikidata(String key) throws IOException{
+        String entity = key.substring(WIKIDATA_KEY_PREFIX.length());
+        return wikiApiCall(Collections.singletonList(entity), true, false).get(entity);
+    }
+
+    private static String cacheKey(String entity, boolean wikidata){
+        return wikidata ? WIKIDATA_KEY_PREFIX + entity : entity;
+    }
+
+    /**
+     * Resolves the langlinks of the entities of a query within the search time budget; the entities not resolved in
+     * time are left out, and the requests go on in the background to fill the langlinks cache.
+     */
+    private static Map<String, String[]> searchWikiApiCall(Collection<String> entities, DandelionLanglinksCache cache,
+                                                           boolean wikidata) throws IOException{
+        List<String> toResolve = new ArrayList<>(entities);
+        Map<String, String[]> resolved = DandelionTokenizer.withinSearchBudget(new FutureTask<>(() -> {
+            Map<String, String[]> result = wikiApiCall(toResolve, wikidata, true);
+            if(cache != null){
+                for(Map.Entry<String, String[]> langlinks : result.entrySet()){
+                    cache.put(cacheKey(langlinks.getKey(), wikidata), langlinks.getValue());
+                }
+            }
+            return result;
+        }));
+        return resolved == null ? Collections.<String, String[]>emptyMap() : resolved;
+    }
 
-        Iterator<String> iterator = page_ids.iterator();
-        String key = iterator.next();
-        JsonObject page = pages.getAsJsonObject(key);
-        if(Integer.parseInt(key) < 0 || page.getAsJsonArray("langlinks") == null){
+    /**
+     * Starts resolving the langlinks of the entities of the text, in batches, on the lookahead executor: the
+     * requests are in flight while the tokens before the entities are consumed.
+     */
+    private void startLookahead(DandelionAnnotations annotations) throws IOException{
+        ExecutorService executor = lookaheadExecutor;
+        if(executor == null || annotations == null || searchMode){
             return;
         }
+        DandelionLanglinksCache cache = langlinksCache;
+        Set<String> toResolve = new LinkedHashSet<>();
+        for(int i = 0; i < annotations.size() && lookaheadResolved.size() + toResolve.size() < MAX_LOOKAHEAD_ENTITIES; i++){
+            String entity = annotations.type(i);
+            if(lookaheadResolved.containsKey(entity) || toResolve.contains(entity)){
+                continue;
+            }
+            String[] local = tableLanglinks(annotations.lang(i), annotations.title(i), wikidata);
+            String[] cached = local != null || cache == null ? local : cache.getIfPresent(cacheKey(entity, wikidata),
+                wikidata ? DandelionTokenFilter::lookupWikidata : DandelionTokenFilter::lookupLanglinks);
+            if(cached != null){
+                lookaheadResolved.put(entity, cached);
+            } else {
+                toResolve.add(entity);
+            }
+        }
+        List<String> entities = new ArrayList<>(toResolve);
+
+        boolean wikidata = this.wikidata;
+        for(int from = 0; from < entities.size(); from += MAX_TITLES_PER_REQUEST){
+            List<String> batch = entities.subList(from, Math.min(from + MAX_TITLES_PER_REQUEST, entities.size()));
+            FutureTask<Map<String, String[]>> task = new FutureTask<>(() -> {
+                Map<String, String[]> result = wikiApiCall(batch, wikidata, false);
+                if(cache != null){
+                    for(Map.Entry<String, String[]> langlinks : result.entrySet()){
+                        cache.put(cacheKey(langlinks.getKey(), wikidata), langlinks.getValue());
+                    }
+                }
+                return result;
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException | EsRejectedExecutionException e) {
+                // the rest of the entities are resolved when the tokens are reached
+                return;
+            }
+            for(String entity : batch){
+                lookahead.put(entity, task);
+            }
+        }
+    }
+
+    /**
+     * Returns the langlinks of an entity resolved by the lookahead, or null if it was not looked ahead or its batch
+     * failed (it is then resolved again, and the failure handled, by {@link #fillWindow()}). A batch still waiting
+     * for a thread is run by the caller.
+     */
+    private String[] lookaheadLanglinks(String entity) throws IOException{
+        String[] langlinks = lookaheadResolved.get(entity);
+        if(langlinks != null){
+            return langlinks;
+        }
+        FutureTask<Map<String, String[]>> task = lookahead.get(entity);
+        if(task == null){
+            return null;
+        }
+        task.run();
+        try {
+            return task.get().get(entity);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while resolving the langlinks of " + entity, e);
+        } catch (ExecutionException | CancellationException e) {
+            lookahead.remove(entity);
+            return null;
+        }
+    }
 
-        JsonArray langlinks = page.getAsJsonArray("langlinks");
+    private void cancelLookahead(){
+        for(FutureTask<Map<String, String[]>> task : lookahead.values()){
+            // the requests already sent still fill the cache
+            task.cancel(false);
+        }
+        lookahead.clear();
+        lookaheadResolved.clear();
+    }
 
-        int size = langlinks.size();
-        for(int index = 0; index < size; index++){
-            JsonObject lang_obj = (JsonObject) langlinks.get(index);
-            if(ALLOWED_LANGUAGES.contains(lang_obj.get("lang").getAsString())){
-                extraTokens.add(lang_obj.get("url").getAsString());
+    private boolean isEntity(){
+        // the tokenizers other than the Dandelion one carry the url of the entity in the type of the token
+        return entityAtt.isEntity() || (typeAtt.type().startsWith("https://") && typeAtt.type().contains(WIKIPEDIA_PATH));
+    }
+
+    private String entityUrl(){
+        return entityAtt.isEntity() ? entityAtt.url() : typeAtt.type();
+    }
+
+    private boolean isMarker(){
+        return typeAtt.type().equals(DandelionTokenizer.MARKER_TYPE);
+    }
+
+    private void setMarkerToken(){
+        posIncrAtt.setPositionIncrement(posIncrAtt.getPositionIncrement()+skipped_positions);
+        skipped_positions = 0;
+    }
+
+    private void setEntityToken(){
+        if(entityAtt.isEntity()){
+            termAtt.setEmpty().append(compact ? entityAtt.compact() : entityAtt.url());
+        } else {
+            termAtt.setEmpty().append(compact ? compactEntity(typeAtt.type()) : typeAtt.type());
+        }
+        typeAtt.setType(TypeAttribute.DEFAULT_TYPE);
+        posIncrAtt.setPositionIncrement(posIncrAtt.getPositionIncrement()+skipped_positions);
+        skipped_positions = 0;
+    }
+
+    /**
+     * Buffers the next entity tokens until {@link #MAX_TITLES_PER_REQUEST} entities with unknown langlinks are found
+     * (or the input ends), then resolves their langlinks with batched requests.
+     */
+    private void fillWindow() throws IOException{
+        DandelionLanglinksCache cache = langlinksCache;
+        windowLanglinks.clear();
+        Set<String> toResolve = new LinkedHashSet<>();
+
+        while (toResolve.size() < MAX_TITLES_PER_REQUEST && windowStates.size() < MAX_WINDOW_TOKENS && input.incrementToken()) {
+            if(isEntity()){
+                String entity = entityUrl();
+                setEntityToken();
+                windowStates.add(captureState());
+                windowEntities.add(entity);
+
+                if(!windowLanglinks.containsKey(entity) && !toResolve.contains(entity)){
+                    String[] resolved = lookaheadLanglinks(entity);
+                    if(resolved != null){
+                        windowLanglinks.put(entity, resolved);
+                        continue;
+                    }
+                    String[] local = tableLanglinks(entityAtt.lang(), entityAtt.title(), wikidata);
+                    String[] cached = local != null || cache == null ? local : cache.getIfPresent(cacheKey(entity, wikidata),
+                        wikidata ? DandelionTokenFilter::lookupWikidata : DandelionTokenFilter::lookupLanglinks);
+                    if(cached != null){
+                        windowLanglinks.put(entity, cached);
+                    } else {
+                        toResolve.add(entity);
+                    }
+                }
+            } else if(isMarker()){
+                // markers have no langlinks
+                setMarkerToken();
+                windowStates.add(captureState());
+                windowEntities.add(typeAtt.type());
+            } else {
+                skipped_positions+=posIncrAtt.getPositionIncrement();
             }
         }
 
+        if(!toResolve.isEmpty() && searchMode){
+            windowLanglinks.putAll(searchWikiApiCall(toResolve, cache, wikidata));
+        } else if(!toResolve.isEmpty()){
+            Map<String, String[]> resolved;
+            try {
+                resolved = wikiApiCall(toResolve, wikidata, false);
+            } catch (DandelionUnavailableException e) {
+                if(!degradeWhenUnavailable){
+                    throw e;
+                }
+                // the entities are indexed without langlinks, which are not cached so that they are resolved later
+                multilangDegraded = true;
+                return;
+            }
+            for(Map.Entry<String, String[]> langlinks : resolved.entrySet()){
+                if(cache != null){
+                    cache.put(cacheKey(langlinks.getKey(), wikidata), langlinks.getValue());
+                }
+                windowLanglinks.put(langlinks.getKey(), langlinks.getValue());
+            }
+        }
     }
 
     public final boolean incrementToken() throws IOException {
 
+        if(passThrough){
+            return input.incrementToken();
+        }
+
         if(!extraTokens.isEmpty()){
             clearAttributes();
 
@@ -181,17 +779,38 @@ public class DandelionTokenFilter extends TokenFilter {
             return true;
         }
 
-        while (input.incrementToken()) {
-            if(typeAtt.type().startsWith("https://") && typeAtt.type().contains("wikipedia.org")){
-                if(multilang) {
-                    wikiApiCall(typeAtt.type());
-                    startOffset = offsAtt.startOffset();
-                    endOffset = offsAtt.endOffset();
+        if(multilang || wikidata) {
+            if(windowStates.isEmpty()){
+                fillWindow();
+                if(windowStates.isEmpty()){
+                    return multilangDegraded && addMultilangDegradedMarker();
+                }
+            }
+            restoreState(windowStates.removeFirst());
+            String[] langlinks = windowLanglinks.get(windowEntities.removeFirst());
+            if(wikidata){
+                // the entities without item (or not resolved) are kept
+                if(langlinks != null && langlinks.length > 0){
+                    termAtt.setEmpty().append(compact ? compactEntity(langlinks[0]) : langlinks[0]);
                 }
-                termAtt.setEmpty().append(typeAtt.type());
-                typeAtt.setType(TypeAttribute.DEFAULT_TYPE);
-                posIncrAtt.setPositionIncrement(posIncrAtt.getPositionIncrement()+skipped_positions);
-                skipped_positions = 0;
+            } else if(langlinks != null && compact){
+                for(String langlink : langlinks){
+                    extraTokens.add(compactEntity(langlink));
+                }
+            } else if(langlinks != null){
+                Collections.addAll(extraTokens, langlinks);
+            }
+            startOffset = offsAtt.startOffset();
+            endOffset = offsAtt.endOffset();
+            return true;
+        }
+
+        while (input.incrementToken()) {
+            if(isEntity()){
+                setEntityToken();
+                return true;
+            } else if(isMarker()){
+                setMarkerToken();
                 return true;
             } else {
                 skipped_positions+=posIncrAtt.getPositionIncrement();
@@ -201,4 +820,40 @@ public class DandelionTokenFilter extends TokenFilter {
         return false;
     }
 
+    private boolean addMultilangDegradedMarker(){
+        multilangDegraded = false;
+        clearAttributes();
+        termAtt.append(MULTILANG_DEGRADED_MARKER);
+        offsAtt.setOffset(endOffset, endOffset);
+        typeAtt.setType(DandelionTokenizer.MARKER_TYPE);
+        posIncrAtt.setPositionIncrement(1 + skipped_positions);
+        skipped_positions = 0;
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        extraTokens.clear();
+        windowStates.clear();
+        windowEntities.clear();
+        windowLanglinks.clear();
+        skipped_positions = 0;
+        multilangDegraded = false;
+        cancelLookahead();
+        // a query without entities (the search budget ran out, or the API is unavailable) keeps its text, which is
+        // better than matching nothing
+        DandelionAnnotations annotations = annotationsAtt.annotations();
+        passThrough = searchMode && annotations != null && annotations.size() == 0;
+        if((multilang || wikidata) && !passThrough){
+            startLookahead(annotations);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        cancelLookahead();
+    }
+
 }
@@ -8,14 +8,20 @@ import org.elasticsearch.index.IndexSettings;
 public class DandelionTokenFilterFactory extends AbstractTokenFilterFactory {
 
     private String multilang;
+    private String onUnavailable;
+    private String mode;
+    private String encoding;
 
     public DandelionTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
         super(indexSettings, name, settings);
         multilang = settings.get("multilang");
+        onUnavailable = settings.get("on_unavailable");
+        mode = settings.get("mode");
+        encoding = settings.get("encoding");
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
-		return new DandelionTokenFilter(tokenStream,multilang);
+		return new DandelionTokenFilter(tokenStream,multilang,onUnavailable,mode,encoding);
     }
 }
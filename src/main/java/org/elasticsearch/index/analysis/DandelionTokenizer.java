@@ -2,25 +2,33 @@ package org.elasticsearch.index.analysis;
 
 import java.io.*;
 
-import org.elasticsearch.SpecialPermission;
-import java.security.AccessController;
-import java.security.PrivilegedExceptionAction;
-import java.security.PrivilegedActionException;
-
 import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 
-import java.net.URLEncoder;
 import java.net.HttpURLConnection;
-import java.net.URL;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonArray;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
 import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
 
@@ -30,22 +38,273 @@ public final class DandelionTokenizer extends Tokenizer {
     private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
     private final PositionIncrementAttribute posIncrAtt = addAttribute(PositionIncrementAttribute.class);
     private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    private final DandelionAnnotationsAttribute annotationsAtt = addAttribute(DandelionAnnotationsAttribute.class);
+    private final DandelionEntityAttribute entityAtt = addAttribute(DandelionEntityAttribute.class);
+
+    public static final String NEX_URL = "https://api.dandelion.eu/datatxt/nex/v1";
+
+    /**
+     * Maximum time the search-time analysis of a query waits for an API (Dandelion API, then Wikipedia).
+     */
+    public static final Setting<TimeValue> SEARCH_TIMEOUT_SETTING =
+        Setting.positiveTimeSetting("dandelion.search.timeout", TimeValue.timeValueMillis(250), Property.NodeScope);
+
+    /**
+     * Thread pool of the search-time requests, separate from the one of the index-time requests.
+     */
+    public static final String SEARCH_THREAD_POOL_NAME = "dandelion_search";
+
+    private static DandelionHttpClient httpClient = new DandelionHttpClient(Settings.EMPTY);
+
+    public static void setHttpClient(DandelionHttpClient httpClient){
+        DandelionTokenizer.httpClient = httpClient;
+    }
+
+    private static DandelionHttpClient searchHttpClient = null;
+
+    /**
+     * Sets the client of the search-time requests; without it, they are sent by the client of the index-time requests.
+     */
+    public static void setSearchHttpClient(DandelionHttpClient searchHttpClient){
+        DandelionTokenizer.searchHttpClient = searchHttpClient;
+    }
+
+    private static DandelionAnnotationCache annotationCache = null;
+
+    private static DandelionAnnotationStore annotationStore = null;
+
+    public static void setAnnotationCache(DandelionAnnotationCache annotationCache){
+        DandelionTokenizer.annotationCache = annotationCache;
+    }
+
+    public static void setAnnotationStore(DandelionAnnotationStore annotationStore){
+        DandelionTokenizer.annotationStore = annotationStore;
+    }
+
+    private static DandelionRequestCoalescer requestCoalescer = null;
+
+    private static DandelionRateLimiter rateLimiter = null;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    public static void setRateLimiter(DandelionRateLimiter rateLimiter){
+        DandelionTokenizer.rateLimiter = rateLimiter;
+    }
+
+    private static DandelionCircuitBreaker circuitBreaker = null;
+
+    public static void setCircuitBreaker(DandelionCircuitBreaker circuitBreaker){
+        DandelionTokenizer.circuitBreaker = circuitBreaker;
+    }
+
+    public static void setRequestCoalescer(DandelionRequestCoalescer requestCoalescer){
+        DandelionTokenizer.requestCoalescer = requestCoalescer;
+    }
+
+    private static DandelionStats stats = null;
+
+    public static void setStats(DandelionStats stats){
+        DandelionTokenizer.stats = stats;
+    }
+
+    private static ExecutorService executor = null;
+
+    private static final DandelionSingleFlight<DandelionFormBody, DandelionAnnotations> inFlightRequests = new DandelionSingleFlight<>();
+
+    private static DandelionAnnotationCache queryCache = null;
+
+    private static ExecutorService searchExecutor = null;
+
+    private static long searchTimeoutNanos = SEARCH_TIMEOUT_SETTING.getDefault(Settings.EMPTY).nanos();
+
+    /**
+     * Sets the cache of the annotations of the queries analyzed in search mode, separate from the one of the texts.
+     */
+    public static void setQueryCache(DandelionAnnotationCache queryCache){
+        DandelionTokenizer.queryCache = queryCache;
+    }
+
+    /**
+     * Sets the executor of the search-time requests; without it, they are sent by the calling thread without time budget.
+     */
+    public static void setSearchExecutor(ExecutorService searchExecutor){
+        DandelionTokenizer.searchExecutor = searchExecutor;
+    }
+
+    public static void setSearchTimeout(TimeValue searchTimeout){
+        DandelionTokenizer.searchTimeoutNanos = searchTimeout.nanos();
+    }
+
+    private static Map<String, DandelionDictionary> dictionaries = Collections.emptyMap();
+
+    /**
+     * Sets the dictionaries (by language) used by the tokenizers with the "dictionary" source.
+     */
+    public static void setDictionaries(Map<String, DandelionDictionary> dictionaries){
+        DandelionTokenizer.dictionaries = dictionaries == null ? Collections.<String, DandelionDictionary>emptyMap() : dictionaries;
+    }
+
+    /**
+     * Sets the executor used to annotate the segments of a text concurrently.
+     */
+    public static void setExecutor(ExecutorService executor){
+        DandelionTokenizer.executor = executor;
+    }
 
-    private final int maxChars = 1048576;
+    public static final int MAX_CHARS = 1048576;
+
+    /**
+     * Maximum length of the texts annotated in segments.
+     */
+    public static final int MAX_SEGMENTED_CHARS = 16 * MAX_CHARS;
+
+    /**
+     * Maximum segment size: even if all the characters of a segment are url-encoded as 3 byte sequences,
+     * the request body stays below 1MiB.
+     */
+    public static final int MAX_SEGMENT_SIZE = 100000;
+
+    /**
+     * Token added at the end of the texts indexed without entities because Dandelion API was unavailable, so that
+     * the documents can be found (with a term query) and annotated again later.
+     */
+    public static final String DEGRADED_MARKER = "_dandelion_degraded_";
+
+    /**
+     * Type of the marker tokens, which are kept by {@link DandelionTokenFilter}.
+     */
+    public static final String MARKER_TYPE = "dandelion_marker";
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Read buffers larger than this are released when the tokenizer is closed, since Lucene keeps a tokenizer
+     * per thread and per field.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 16384;
+
+    private final int maxChars;
 
     private String auth_token;
     private String lang;
-
+    private boolean fromIngest;
+    private DandelionDictionary dictionary = null;
+    private int segmentSize;
+    private int segmentOverlap;
+    private boolean degradeWhenUnavailable;
+    private boolean searchMode;
+    private float minConfidence;
+    private int minLength;
+    private int topEntities;
+    private String indexName = null;
+
+    private char[] buffer = new char[INITIAL_BUFFER_SIZE];
+    private int length;
     private String inputString;
-    private JsonArray annotations;
+    private DandelionAnnotations annotations;
     private int size;
     private int index;
     private int offset;
+    private boolean degraded;
 
 
     public DandelionTokenizer(String auth_token, String lang) {
+        this(auth_token, lang, null);
+    }
+
+    /**
+     * @param source where the annotations come from: "api" (the default) calls Dandelion API, "ingest" reads the
+     *               annotations written inline in the field value by the dandelion ingest processor, "dictionary"
+     *               links the entities offline with the {@link DandelionDictionary} of the language
+     */
+    public DandelionTokenizer(String auth_token, String lang, String source) {
+        this(auth_token, lang, source, 0, 0);
+    }
+
+    /**
+     * @param segmentSize if greater than 0, the texts longer than segmentSize characters are split in segments
+     *                    (with segmentOverlap characters of overlap) annotated concurrently, and texts up to
+     *                    {@link #MAX_SEGMENTED_CHARS} characters are accepted
+     */
+    public DandelionTokenizer(String auth_token, String lang, String source, int segmentSize, int segmentOverlap) {
+        this(auth_token, lang, source, segmentSize, segmentOverlap, null);
+    }
+
+    /**
+     * @param onUnavailable what to do while the circuit breaker of Dandelion API is open: "fail" (the default)
+     *                      fails the document, "degrade" indexes the text without entities followed by
+     *                      {@link #DEGRADED_MARKER}
+     */
+    public DandelionTokenizer(String auth_token, String lang, String source, int segmentSize, int segmentOverlap,
+                              String onUnavailable) {
+        this(auth_token, lang, source, segmentSize, segmentOverlap, onUnavailable, null);
+    }
+
+    /**
+     * @param mode "index" (the default) or "search": in search mode the texts are short queries, whose annotations
+     *             are cached in the query cache and waited for at most the search timeout, after which the query is
+     *             analyzed without entities
+     */
+    public DandelionTokenizer(String auth_token, String lang, String source, int segmentSize, int segmentOverlap,
+                              String onUnavailable, String mode) {
+        this(auth_token, lang, source, segmentSize, segmentOverlap, onUnavailable, mode, Float.NaN, 0, 0);
+    }
+
+    /**
+     * @param minConfidence if not NaN, sent to Dandelion API as min_confidence, and the annotations with a lower
+     *                      confidence are dropped whatever their source
+     * @param minLength if greater than 0, sent to Dandelion API as min_length, and the spots shorter than minLength
+     *                  characters are dropped whatever their source
+     * @param topEntities if greater than 0, only the annotations of the topEntities entities of the text with the
+     *                    best confidence are kept
+     */
+    public DandelionTokenizer(String auth_token, String lang, String source, int segmentSize, int segmentOverlap,
+                              String onUnavailable, String mode, float minConfidence, int minLength, int topEntities) {
         super();
-        if(auth_token == null || auth_token.isEmpty()){
+        this.degradeWhenUnavailable = parseOnUnavailable(onUnavailable);
+        this.searchMode = parseMode(mode);
+        if(minConfidence < 0 || minConfidence > 1){
+            throw new IllegalArgumentException("Illegal min_confidence parameter value: it must be between 0 and 1!");
+        }
+        if(minLength != 0 && minLength < 2){
+            throw new IllegalArgumentException("Illegal min_length parameter value: it must be 0 (disabled) or at least 2!");
+        }
+        if(topEntities < 0){
+            throw new IllegalArgumentException("Illegal top_entities parameter value: it must be 0 (disabled) or greater!");
+        }
+        this.minConfidence = minConfidence;
+        this.minLength = minLength;
+        this.topEntities = topEntities;
+        if(segmentSize != 0 && (segmentSize < 1000 || segmentSize > MAX_SEGMENT_SIZE)){
+            throw new IllegalArgumentException("Illegal segment_size parameter value: it must be 0 (disabled) or between 1000 and " + MAX_SEGMENT_SIZE + "!");
+        }
+        if(segmentOverlap < 0 || segmentOverlap > segmentSize / 2){
+            throw new IllegalArgumentException("Illegal segment_overlap parameter value: it must be between 0 and half the segment_size!");
+        }
+        this.segmentSize = segmentSize;
+        this.segmentOverlap = segmentOverlap;
+
+        boolean fromDictionary = false;
+        if(source == null || source.isEmpty() || source.equals("api")){
+            this.fromIngest = false;
+        } else if(source.equals("ingest")){
+            this.fromIngest = true;
+        } else if(source.equals("dictionary")){
+            this.fromIngest = false;
+            fromDictionary = true;
+        } else {
+            throw new IllegalArgumentException("Illegal source parameter value: only api/ingest/dictionary are allowed!");
+        }
+        // the dictionary has no request size limit
+        this.maxChars = segmentSize > 0 || fromDictionary ? MAX_SEGMENTED_CHARS : MAX_CHARS;
+
+        if(fromDictionary){
+            this.dictionary = dictionaries.get(lang);
+            if(dictionary == null){
+                throw new IllegalArgumentException("No dictionary loaded for the language (lang) [" + lang + "]: the dictionary source " +
+                    "needs a specific language, whose dictionary is in the " + DandelionDictionary.PATH_SETTING.getKey() + " directory!");
+            }
+        } else if(!fromIngest && (auth_token == null || auth_token.isEmpty())){
             throw new IllegalArgumentException("No authorization token (auth) specified!");
         }else {
             this.auth_token = auth_token;
@@ -59,136 +318,459 @@ public final class DandelionTokenizer extends Tokenizer {
         }
     }
 
+    /**
+     * Sets the index whose documents are analyzed, to report them in the stats of the index.
+     */
+    public void setIndexName(String indexName) {
+        this.indexName = indexName;
+    }
+
+    static boolean parseOnUnavailable(String onUnavailable) {
+        if(onUnavailable == null || onUnavailable.isEmpty() || onUnavailable.equals("fail")){
+            return false;
+        } else if(onUnavailable.equals("degrade")){
+            return true;
+        }
+        throw new IllegalArgumentException("Illegal on_unavailable parameter value: only fail/degrade are allowed!");
+    }
+
+    /**
+     * @return whether the mode is "search"
+     */
+    static boolean parseMode(String mode) {
+        if(mode == null || mode.isEmpty() || mode.equals("index")){
+            return false;
+        } else if(mode.equals("search")){
+            return true;
+        }
+        throw new IllegalArgumentException("Illegal mode parameter value: only index/search are allowed!");
+    }
+
     @Override
     public void reset() throws IOException {
         super.reset();
         setInputString();
-        dandelionApiCall();
-        offset = 0;
+        degraded = false;
+        if(fromIngest){
+            int headerLength = DandelionAnnotations.inlineHeaderLength(inputString);
+            annotations = DandelionAnnotations.decodeInline(inputString, headerLength);
+            offset = headerLength;
+        } else if(dictionary != null){
+            annotations = dictionary.annotate(inputString);
+            offset = 0;
+        } else if(searchMode){
+            annotations = annotateQuery(inputString, auth_token, lang, minConfidence, minLength);
+            offset = 0;
+        } else {
+            DandelionStats stats = DandelionTokenizer.stats;
+            DandelionStats.Index indexStats = stats == null || indexName == null ? null : stats.index(indexName);
+            long start = System.nanoTime();
+            try {
+                annotations = annotate(inputString, auth_token, lang, minConfidence, minLength, segmentSize, segmentOverlap);
+            } catch (DandelionUnavailableException e) {
+                if(!degradeWhenUnavailable){
+                    if(indexStats != null){
+                        indexStats.onFailed(System.nanoTime() - start);
+                    }
+                    throw e;
+                }
+                annotations = DandelionAnnotations.EMPTY;
+                degraded = true;
+            } catch (IOException | RuntimeException e) {
+                if(indexStats != null){
+                    indexStats.onFailed(System.nanoTime() - start);
+                }
+                throw e;
+            }
+            if(indexStats != null){
+                if(degraded){
+                    indexStats.onDegraded(System.nanoTime() - start);
+                } else {
+                    indexStats.onAnnotated(annotations.size(), System.nanoTime() - start);
+                }
+            }
+            offset = 0;
+        }
+        // the pruned entities are neither indexed nor expanded by the filters downstream
+        annotations = annotations.prune(minConfidence, minLength, topEntities);
+        size = annotations.size();
+        index = 0;
+        // the filters downstream can start working on the entities before they reach them
+        annotationsAtt.setAnnotations(annotations);
     }
 
-    private void setInputString() throws IOException {
-        inputString = null;
-        char[] characters = new char[maxChars+1];
+    /**
+     * Returns the annotations of the text; if segmentSize is greater than 0 and the text is longer, the text is
+     * split in segments that are annotated concurrently.
+     */
+    public static DandelionAnnotations annotate(String text, String auth_token, String lang, int segmentSize,
+                                                int segmentOverlap) throws IOException {
+        return annotate(text, auth_token, lang, Float.NaN, 0, segmentSize, segmentOverlap);
+    }
+
+    /**
+     * Returns the annotations of the text, requested with the min_confidence and min_length parameters when they
+     * are set (minConfidence not NaN, minLength greater than 0).
+     */
+    public static DandelionAnnotations annotate(String text, String auth_token, String lang, float minConfidence,
+                                                int minLength, int segmentSize, int segmentOverlap) throws IOException {
+        if(segmentSize <= 0 || text.length() <= segmentSize){
+            return annotateText(text, auth_token, lang, minConfidence, minLength);
+        }
+
+        int[] bounds = DandelionTextSegmenter.split(text, segmentSize, segmentOverlap);
+        List<FutureTask<DandelionAnnotations>> tasks = new ArrayList<>(bounds.length / 2);
+        for(int i = 0; i < bounds.length; i += 2){
+            String segment = text.substring(bounds[i], bounds[i + 1]);
+            tasks.add(new FutureTask<>(() -> annotateText(segment, auth_token, lang, minConfidence, minLength)));
+        }
+
+        ExecutorService executor = DandelionTokenizer.executor;
+        if(executor != null){
+            for(int i = 1; i < tasks.size(); i++){
+                try {
+                    executor.execute(tasks.get(i));
+                } catch (RejectedExecutionException | EsRejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+        // the segments not taken by the executor yet are annotated by the calling thread, so that it never waits
+        // for queued tasks (the executor may be the one running this very method)
+        for(FutureTask<DandelionAnnotations> task : tasks){
+            task.run();
+        }
+
+        DandelionAnnotations[] segments = new DandelionAnnotations[tasks.size()];
+        for(int i = 0; i < segments.length; i++){
+            try {
+                segments[i] = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while annotating the text segments", e);
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException){
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return DandelionTextSegmenter.merge(bounds, segments);
+    }
+
+    /**
+     * Returns the annotations of the text, looking them up in the node level cache and store before calling the API.
+     */
+    public static DandelionAnnotations annotate(String text, String auth_token, String lang) throws IOException {
+        return annotateText(text, auth_token, lang, Float.NaN, 0);
+    }
+
+    private static DandelionAnnotations annotateText(String text, String auth_token, String lang, float minConfidence,
+                                                     int minLength) throws IOException {
+        DandelionAnnotationCache cache = annotationCache;
+        DandelionAnnotationStore store = annotationStore;
+        String parameters = pruningParameters(minConfidence, minLength);
+
+        String key = null;
+        DandelionAnnotations result = null;
+        if(cache != null || store != null){
+            key = cacheKey(text, lang, auth_token, parameters);
+            if(cache != null){
+                result = cache.get(key);
+            }
+            if(result == null && store != null){
+                result = store.get(key);
+                if(result != null && cache != null){
+                    cache.put(key, result);
+                }
+            }
+        }
+
+        if(result == null){
+            DandelionRequestCoalescer coalescer = requestCoalescer;
+            if(coalescer != null){
+                result = coalescer.annotate(text, auth_token, lang, parameters,
+                    (batch, token, language) -> dandelionApiCall(batch, token, language, minConfidence, minLength, false));
+            } else {
+                result = dandelionApiCall(text, auth_token, lang, minConfidence, minLength, false);
+            }
+            if(cache != null){
+                cache.put(key, result);
+            }
+            if(store != null){
+                store.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the annotations of a query, from the query cache or from Dandelion API within the search time budget.
+     * When the budget runs out, or the API is unavailable or saturated, the query is analyzed without entities; the
+     * request goes on in the background and fills the cache for the next occurrences of the query.
+     */
+    static DandelionAnnotations annotateQuery(String query, String auth_token, String lang, float minConfidence,
+                                              int minLength) throws IOException {
+        StringBuilder normalized = new StringBuilder(query.length());
+        int[] offsets = normalizeQuery(query, normalized);
+        if(normalized.length() == 0){
+            return DandelionAnnotations.EMPTY;
+        }
+        String text = normalized.toString();
+
+        DandelionAnnotationCache cache = queryCache;
+        String key = cache == null ? null : cacheKey(text, lang, auth_token, pruningParameters(minConfidence, minLength));
+        DandelionAnnotations annotations = cache == null ? null : cache.get(key);
+        if(annotations == null){
+            annotations = withinSearchBudget(new FutureTask<>(() -> {
+                DandelionAnnotations result = dandelionApiCall(text, auth_token, lang, minConfidence, minLength, true);
+                if(cache != null){
+                    cache.put(key, result);
+                }
+                return result;
+            }));
+            if(annotations == null){
+                return DandelionAnnotations.EMPTY;
+            }
+        }
+
+        DandelionAnnotations.Builder builder = new DandelionAnnotations.Builder();
+        for(int i = 0; i < annotations.size(); i++){
+            builder.add(offsets[annotations.start(i)], offsets[annotations.end(i) - 1] + 1, annotations, i);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Trims the query and collapses its runs of whitespaces into single spaces, so that the queries that differ only
+     * in whitespaces share their cache entry.
+     * @return the offset in the query of each character of the normalized query
+     */
+    static int[] normalizeQuery(String query, StringBuilder normalized) {
+        int[] offsets = new int[query.length()];
+        int space = -1;
+        for(int i = 0; i < query.length(); i++){
+            char c = query.charAt(i);
+            if(Character.isWhitespace(c)){
+                if(space == -1 && normalized.length() > 0){
+                    space = i;
+                }
+                continue;
+            }
+            if(space != -1){
+                offsets[normalized.length()] = space;
+                normalized.append(' ');
+                space = -1;
+            }
+            offsets[normalized.length()] = i;
+            normalized.append(c);
+        }
+        return offsets;
+    }
 
-        int readChars = input.read(characters, 0, maxChars+1);
-        if(readChars <= maxChars && input.read()==-1){
-            inputString = new String(characters,0,Integer.max(readChars,0));
+    /**
+     * Runs a search-time request on the search executor and waits for it at most the search timeout.
+     * @return the result of the request, or null if it did not complete in time, was rejected (by the executor or
+     *         by the rate limiter), or its API is unavailable
+     */
+    static <T> T withinSearchBudget(FutureTask<T> task) throws IOException {
+        ExecutorService executor = searchExecutor;
+        if(executor == null){
+            task.run();
         } else {
-            throw new IOException("request body too large, the current limit is set to 1MiB");
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException | EsRejectedExecutionException e) {
+                // the JDK executors and the thread pools of Elasticsearch do not throw the same exception
+                return null;
+            }
+        }
+        try {
+            return task.get(searchTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a search-time request", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof DandelionUnavailableException || e.getCause() instanceof EsRejectedExecutionException
+                || e.getCause() instanceof RejectedExecutionException){
+                return null;
+            }
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
         }
     }
 
+    private void setInputString() throws IOException {
+        inputString = null;
+        // in ingest mode the value also contains the inline annotations
+        int maxChars = fromIngest ? 4 * this.maxChars : this.maxChars;
+
+        length = 0;
+        int readChars;
+        while ((readChars = input.read(buffer, length, buffer.length - length)) != -1) {
+            length += readChars;
+            if(length > maxChars){
+                throw new IOException("request body too large, the current limit is set to " + (this.maxChars / MAX_CHARS) + "MiB");
+            }
+            if(length == buffer.length){
+                // doubling, rather than growing by 1/8 like ArrayUtil, to copy large texts only a few times
+                buffer = Arrays.copyOf(buffer, Math.min(2 * length, maxChars + 1));
+            }
+        }
+        inputString = new String(buffer, 0, length);
+    }
+
     @Override
     public boolean incrementToken() {
 
         clearAttributes();
 
         if(index<size) {
-            JsonObject entity = (JsonObject) annotations.get(index);
-            int begin = entity.get("start").getAsInt();
+            int begin = annotations.start(index);
 
             if (begin <= offset) {
-                int end = entity.get("end").getAsInt();
-                String uri = entity.get("uri").getAsString();
-                termAtt.setEmpty().append(inputString.substring(begin, end));
+                int end = annotations.end(index);
+                termAtt.copyBuffer(buffer, begin, end - begin);
                 offsetAtt.setOffset(begin, end);
                 offset = Integer.max(end, offset);
-                typeAtt.setType("https://".concat(uri.substring(7)));
+                typeAtt.setType(annotations.type(index));
+                entityAtt.setEntity(annotations, index, buffer);
                 index++;
                 return true;
             } else {
-                termAtt.setEmpty().append(inputString.substring(offset, begin));
+                termAtt.copyBuffer(buffer, offset, begin - offset);
                 offsetAtt.setOffset(offset, begin);
                 offset = begin;
                 typeAtt.setType("");
                 return true;
             }
-        } else if (offset != inputString.length()){
-            int end = inputString.length();
-            termAtt.setEmpty().append(inputString.substring(offset, end));
+        } else if (offset != length){
+            int end = length;
+            termAtt.copyBuffer(buffer, offset, end - offset);
             offsetAtt.setOffset(offset, end);
             offset = end;
             typeAtt.setType("");
             return true;
+        } else if (degraded){
+            degraded = false;
+            termAtt.append(DEGRADED_MARKER);
+            offsetAtt.setOffset(length, length);
+            typeAtt.setType(MARKER_TYPE);
+            return true;
         } else {
             return false;
         }
     }
 
-    private void dandelionApiCall() throws IOException {
-        final String url = "https://api.dandelion.eu/datatxt/nex/v1";
-        String parameters = "text=" + URLEncoder.encode(inputString, "utf-8") + "&token=" + URLEncoder.encode(auth_token, "utf-8") + "&lang=" + URLEncoder.encode(lang, "utf-8");
-        final byte[] parametersBytes = parameters.getBytes("UTF-8");
+    /**
+     * Returns the pruning parameters that are set, in the form they are sent, or an empty string: the requests with
+     * the default parameters keep the cache keys they always had.
+     */
+    static String pruningParameters(float minConfidence, int minLength) {
+        String parameters = Float.isNaN(minConfidence) ? "" : "min_confidence=" + minConfidence;
+        if(minLength > 0){
+            parameters = (parameters.isEmpty() ? "" : parameters + "&") + "min_length=" + minLength;
+        }
+        return parameters;
+    }
 
-        if(parametersBytes.length > maxChars){
+    private static String cacheKey(String text, String lang, String auth_token, String parameters) {
+        if(parameters.isEmpty()){
+            return DandelionAnnotationCache.key(text, NEX_URL, lang, auth_token);
+        }
+        return DandelionAnnotationCache.key(text, NEX_URL, lang, auth_token, parameters);
+    }
+
+    /**
+     * @param search whether the request is sent for a search-time analysis, which has priority on the rate limiter
+     */
+    private static DandelionAnnotations dandelionApiCall(String text, String auth_token, String lang, float minConfidence,
+                                                         int minLength, boolean search) throws IOException {
+        // the limit applies to the text, not to its percent-encoding (up to 9 bytes per char)
+        if(text.length() > MAX_CHARS){
             throw new IOException("request body too large, the current limit is set to 1MiB");
         }
+        DandelionFormBody body = new DandelionFormBody().add("text", text).add("token", auth_token).add("lang", lang);
+        if(!Float.isNaN(minConfidence)){
+            body.add("min_confidence", Float.toString(minConfidence));
+        }
+        if(minLength > 0){
+            body.add("min_length", Integer.toString(minLength));
+        }
 
-        SecurityManager sm = System.getSecurityManager();
-        if (sm != null) {
-            sm.checkPermission(new SpecialPermission());
-        }
-        try{
-            annotations = AccessController.doPrivileged(new PrivilegedExceptionAction<JsonArray>() {
-                public JsonArray run() throws IOException {
-                    URL urlObj = new URL(url);
-                    HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-                    connection.setDoOutput(true);
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("User-Agent", "Mozilla/5.0");
-                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
-
-                    OutputStream out = connection.getOutputStream();
-                    out.write(parametersBytes);
-                    out.flush();
-                    out.close();
-
-                    int responseCode = connection.getResponseCode();
-
-                    BufferedReader in;
-                    if (responseCode == HttpURLConnection.HTTP_OK){
-                        in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                    }else{
-                        in = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                    }
+        // the identical requests that arrive meanwhile share the response, and do not take tokens from the limiter
+        return inFlightRequests.execute(body, httpClient.stats(), () -> send(body, search));
+    }
 
-                    String inputLine;
-                    StringBuffer response = new StringBuffer();
-                    while ((inputLine = in.readLine()) != null) {
-                        response.append(inputLine);
-                    }
-                    in.close();
-
-                    Gson gson = new Gson();
-                    JsonElement element;
-                    try{
-                        element = gson.fromJson(response.toString(), JsonElement.class);
-                    } catch (Exception ex){
-                        throw new IOException("Tokenizer exception: malformed dandelion response!");
-                    }
-                    JsonObject jsonObject = element.getAsJsonObject();
-
-                    connection.disconnect();
-
-                    switch (responseCode) {
-                        case HttpURLConnection.HTTP_OK:
-                            return jsonObject.getAsJsonArray("annotations");
-                        case HttpURLConnection.HTTP_UNAUTHORIZED:
-                        case HttpURLConnection.HTTP_FORBIDDEN:
-                            String exMessage = jsonObject.get("message").getAsString() + " , if you have any problem please contact us at sales@spaziodati.eu";
-                            throw new IOException(exMessage);
-                        default:
-                            String message = jsonObject.get("message").getAsString();
-                            throw new IOException(message);
-                    }
+    private static DandelionAnnotations send(DandelionFormBody body, boolean search) throws IOException {
+        DandelionRateLimiter limiter = rateLimiter;
+        DandelionCircuitBreaker breaker = circuitBreaker;
+        DandelionHttpClient client = search && searchHttpClient != null ? searchHttpClient : httpClient;
+        if(limiter == null){
+            return post(client, breaker, body, DandelionTokenizer::parseResponse);
+        }
+
+        // the actual units consumed by the request are only known from the response
+        limiter.acquire(1, search);
+        return post(client, breaker, body, response -> {
+            if(response.status() == HTTP_TOO_MANY_REQUESTS){
+                limiter.onQuotaExhausted();
+            }
+            limiter.onResponse(1, response.header(DandelionRateLimiter.UNITS_HEADER), response.header(DandelionRateLimiter.UNITS_LEFT_HEADER));
+            return parseResponse(response);
+        });
+    }
+
+    private static DandelionAnnotations post(DandelionHttpClient client, DandelionCircuitBreaker breaker, DandelionHttpClient.RequestBody body,
+                                             DandelionHttpClient.ResponseHandler<DandelionAnnotations> handler) throws IOException {
+        if(breaker == null){
+            return client.post(NEX_URL, body, handler);
+        }
+        return breaker.execute(client, NEX_URL, body, handler);
+    }
+
+    /**
+     * Parses a nex response as a stream, without building the whole JSON tree.
+     */
+    private static DandelionAnnotations parseResponse(DandelionHttpClient.Response response) throws IOException {
+        int status = response.status();
+        DandelionAnnotations annotations = null;
+        String message = null;
+        try {
+            JsonReader reader = new JsonReader(response.body());
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if(status == HttpURLConnection.HTTP_OK && name.equals("annotations")){
+                    annotations = DandelionAnnotations.fromJson(reader);
+                } else if(name.equals("message") && reader.peek() == JsonToken.STRING){
+                    message = reader.nextString();
+                } else {
+                    reader.skipValue();
                 }
-            });
-        } catch (PrivilegedActionException e) {
-            throw (IOException) e.getException();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException | EOFException ex){
+            throw new IOException("Tokenizer exception: malformed dandelion response!");
+        }
+
+        if(status == HttpURLConnection.HTTP_OK ? annotations == null : message == null){
+            throw new IOException("Tokenizer exception: malformed dandelion response!");
+        }
+        switch (status) {
+            case HttpURLConnection.HTTP_OK:
+                return annotations;
+            case HttpURLConnection.HTTP_UNAUTHORIZED:
+            case HttpURLConnection.HTTP_FORBIDDEN:
+                String exMessage = message + " , if you have any problem please contact us at sales@spaziodati.eu";
+                throw new IOException(exMessage);
+            default:
+                throw new IOException(message);
         }
-        size = annotations.size();
-        index = 0;
     }
 
     public void end() throws IOException {
@@ -196,4 +778,18 @@ public final class DandelionTokenizer extends Tokenizer {
         offsetAtt.setOffset(offset, offset);
     }
 
+    @Override
+    public void close() throws IOException {
+        super.close();
+        // the tokenizer is reused for the next documents of the same field: do not keep the last one in memory
+        inputString = null;
+        annotations = null;
+        degraded = false;
+        size = 0;
+        index = 0;
+        if(buffer.length > MAX_RETAINED_BUFFER_SIZE){
+            buffer = new char[INITIAL_BUFFER_SIZE];
+        }
+    }
+
 }
@@ -18,6 +18,14 @@ public class DandelionTokenizerFactory extends AbstractTokenizerFactory {
 
     private String dandelion_auth_token;
     private String lang;
+    private String source;
+    private int segmentSize;
+    private int segmentOverlap;
+    private String onUnavailable;
+    private String mode;
+    private float minConfidence;
+    private int minLength;
+    private int topEntities;
 
     public DandelionTokenizerFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
         super(indexSettings, name, settings);
@@ -30,10 +38,21 @@ public class DandelionTokenizerFactory extends AbstractTokenizerFactory {
         }
 
         lang = settings.get("lang");
+        source = settings.get("source");
+        segmentSize = settings.getAsInt("segment_size", 0);
+        segmentOverlap = settings.getAsInt("segment_overlap", segmentSize > 0 ? 200 : 0);
+        onUnavailable = settings.get("on_unavailable");
+        mode = settings.get("mode");
+        minConfidence = settings.getAsFloat("min_confidence", Float.NaN);
+        minLength = settings.getAsInt("min_length", 0);
+        topEntities = settings.getAsInt("top_entities", 0);
     }
 
     @Override
     public Tokenizer create() {
-        return new DandelionTokenizer(dandelion_auth_token, lang);
+        DandelionTokenizer tokenizer = new DandelionTokenizer(dandelion_auth_token, lang, source, segmentSize, segmentOverlap, onUnavailable, mode,
+            minConfidence, minLength, topEntities);
+        tokenizer.setIndexName(index().getName());
+        return tokenizer;
     }
 }
@@ -0,0 +1,13 @@
+package org.elasticsearch.index.analysis;
+
+import java.io.IOException;
+
+/**
+ * Thrown without calling an API when its circuit breaker is open, or when no connection to it is free.
+ */
+public class DandelionUnavailableException extends IOException {
+
+    public DandelionUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,189 @@
+package org.elasticsearch.ingest.dandelion;
+
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.analysis.DandelionAnnotations;
+import org.elasticsearch.index.analysis.DandelionStats;
+import org.elasticsearch.index.analysis.DandelionTokenizer;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import static org.elasticsearch.plugin.analysis.DandelionAnalysisPlugin.ALLOWED_LANGUAGES;
+
+/**
+ * Ingest processor that annotates the configured fields through Dandelion API and writes each annotated value,
+ * in the inline format read by the tokenizer with "source":"ingest", into the field named field + target_suffix.
+ * <p>
+ * The fields of a document are annotated concurrently on the "dandelion" thread pool, whose size bounds the number
+ * of requests in flight on the node; the fields not taken by the pool yet are annotated on the calling thread.
+ */
+public final class DandelionProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "dandelion";
+
+    public static final String THREAD_POOL_NAME = "dandelion";
+
+    private static ExecutorService executor = null;
+
+    public static void setExecutor(ExecutorService executor){
+        DandelionProcessor.executor = executor;
+    }
+
+    private static DandelionStats stats = null;
+
+    public static void setStats(DandelionStats stats){
+        DandelionProcessor.stats = stats;
+    }
+
+    private final List<String> fields;
+    private final String targetSuffix;
+    private final String auth_token;
+    private final String lang;
+    private final boolean ignoreMissing;
+    private final int segmentSize;
+    private final int segmentOverlap;
+
+    DandelionProcessor(String tag, List<String> fields, String targetSuffix, String auth_token, String lang,
+                       boolean ignoreMissing, int segmentSize, int segmentOverlap) {
+        super(tag);
+        this.fields = fields;
+        this.targetSuffix = targetSuffix;
+        this.auth_token = auth_token;
+        this.lang = lang;
+        this.ignoreMissing = ignoreMissing;
+        this.segmentSize = segmentSize;
+        this.segmentOverlap = segmentOverlap;
+    }
+
+    @Override
+    public void execute(IngestDocument document) throws Exception {
+        long start = System.nanoTime();
+        DandelionStats.Index indexStats = null;
+        Object index = document.getSourceAndMetadata().get(IngestDocument.MetaData.INDEX.getFieldName());
+        if(stats != null && index != null){
+            indexStats = stats.index(index.toString());
+        }
+
+        List<String> annotatedFields = new ArrayList<>(fields.size());
+        List<String> texts = new ArrayList<>(fields.size());
+        for(String field : fields){
+            String text = document.getFieldValue(field, String.class, ignoreMissing);
+            if(text != null){
+                annotatedFields.add(field);
+                texts.add(text);
+            }
+        }
+
+        List<FutureTask<DandelionAnnotations>> results = new ArrayList<>(texts.size());
+        for(String text : texts){
+            results.add(new FutureTask<>(() -> DandelionTokenizer.annotate(text, auth_token, lang, segmentSize, segmentOverlap)));
+        }
+        ExecutorService executor = DandelionProcessor.executor;
+        if(executor != null){
+            for(int i = 1; i < results.size(); i++){
+                try {
+                    executor.execute(results.get(i));
+                } catch (EsRejectedExecutionException e) {
+                    break;
+                }
+            }
+        }
+        // the fields not taken by the pool yet are annotated by the calling thread
+        for(FutureTask<DandelionAnnotations> task : results){
+            task.run();
+        }
+
+        int entities = 0;
+        for(int i = 0; i < results.size(); i++){
+            DandelionAnnotations annotations;
+            try {
+                annotations = results.get(i).get();
+            } catch (ExecutionException e) {
+                if(indexStats != null){
+                    indexStats.onFailed(System.nanoTime() - start);
+                }
+                if(e.getCause() instanceof Exception){
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+            entities += annotations.size();
+            document.setFieldValue(annotatedFields.get(i) + targetSuffix, annotations.encodeInline(texts.get(i)));
+        }
+        if(indexStats != null){
+            indexStats.onAnnotated(entities, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    List<String> getFields() {
+        return fields;
+    }
+
+    String getTargetSuffix() {
+        return targetSuffix;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final String keystore_auth_token;
+
+        public Factory(String keystore_auth_token) {
+            this.keystore_auth_token = keystore_auth_token;
+        }
+
+        @Override
+        public DandelionProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                         Map<String, Object> config) throws Exception {
+            List<String> fields = ConfigurationUtils.readOptionalList(TYPE, processorTag, config, "fields");
+            if(fields == null){
+                fields = Collections.singletonList(ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field"));
+            } else if(fields.isEmpty()){
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "fields", "must not be empty");
+            }
+            String targetSuffix = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_suffix", "_annotated");
+            boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "ignore_missing", false);
+
+            String auth_token = ConfigurationUtils.readOptionalStringProperty(TYPE, processorTag, config, "auth");
+            if(auth_token == null || auth_token.isEmpty()){
+                auth_token = keystore_auth_token;
+            }
+            if(auth_token == null || auth_token.isEmpty()){
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "auth", "No authorization token (auth) specified!");
+            }
+
+            String lang = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "lang", "auto");
+            if(!ALLOWED_LANGUAGES.contains(lang)){
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "lang",
+                    "Illegal language (lang) parameter! Check on dandelion.eu the possible values; if not specified auto will be used.");
+            }
+
+            int segmentSize = ConfigurationUtils.readIntProperty(TYPE, processorTag, config, "segment_size", 0);
+            int segmentOverlap = ConfigurationUtils.readIntProperty(TYPE, processorTag, config, "segment_overlap", segmentSize > 0 ? 200 : 0);
+            if(segmentSize != 0 && (segmentSize < 1000 || segmentSize > DandelionTokenizer.MAX_SEGMENT_SIZE)){
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "segment_size",
+                    "must be 0 (disabled) or between 1000 and " + DandelionTokenizer.MAX_SEGMENT_SIZE);
+            }
+            if(segmentOverlap < 0 || segmentOverlap > segmentSize / 2){
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "segment_overlap",
+                    "must be between 0 and half the segment_size");
+            }
+
+            return new DandelionProcessor(processorTag, fields, targetSuffix, auth_token, lang, ignoreMissing,
+                segmentSize, segmentOverlap);
+        }
+    }
+}
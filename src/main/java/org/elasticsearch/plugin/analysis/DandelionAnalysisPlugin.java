@@ -1,31 +1,83 @@
 package org.elasticsearch.plugin.analysis;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.dandelion.DandelionStatsAction;
+import org.elasticsearch.action.dandelion.TransportDandelionStatsAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.SecureSetting;
 import org.elasticsearch.common.settings.SecureString;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.*;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.ingest.dandelion.DandelionProcessor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
 import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.rest.action.dandelion.RestDandelionStatsAction;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 import org.apache.lucene.analysis.Analyzer;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
 import static java.util.Collections.singletonMap;
 
-public class DandelionAnalysisPlugin extends Plugin implements AnalysisPlugin {
+public class DandelionAnalysisPlugin extends Plugin implements AnalysisPlugin, IngestPlugin, ActionPlugin {
 
-    public static final List<String> ALLOWED_LANGUAGES = Arrays.asList("auto","de","en","es","fr","it","pt","ru","af",
+    public static final Set<String> ALLOWED_LANGUAGES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("auto","de","en","es","fr","it","pt","ru","af",
         "sq","ar","bn","bg","hr","cs","da","nl","et","fi","el","gu","he","hi","hu","id","ja","kn","ko","lv","lt",
-        "mk","ml","mr","ne","no","pa","fa","pl","ro","sk","sl","sw","sv","tl","ta","te","th","tr","uk","ur","vi");
+        "mk","ml","mr","ne","no","pa","fa","pl","ro","sk","sl","sw","sv","tl","ta","te","th","tr","uk","ur","vi")));
 
     private final Setting<SecureString> ACCESS_KEY_SETTING = SecureSetting.secureString("dandelion.auth", null);
 
+    private final Settings settings;
+
+    private final String auth_token;
+
+    private DandelionAnnotationStore annotationStore = null;
+
+    private volatile DandelionStats stats = null;
+
+    private Map<String, DandelionLanglinksTable> langlinksTables = Collections.emptyMap();
+
     public DandelionAnalysisPlugin(Settings settings){
-        String auth_token = ACCESS_KEY_SETTING.get(settings).toString();
+        this.settings = settings;
+        auth_token = ACCESS_KEY_SETTING.get(settings).toString();
         if(auth_token == null || auth_token.isEmpty()){
             System.err.println(
                 "\n\n-------------------------------------------------------------------------------------------------------------------------------------------\n"+
@@ -43,9 +95,230 @@ public class DandelionAnalysisPlugin extends Plugin implements AnalysisPlugin {
     public List<Setting<?>> getSettings() {
         List<Setting<?>> settings = new ArrayList<>();
         settings.add(ACCESS_KEY_SETTING);
+        settings.add(DandelionAnnotationCache.CACHE_SIZE_SETTING);
+        settings.add(DandelionAnnotationCache.QUERY_CACHE_SIZE_SETTING);
+        settings.add(DandelionTokenizer.SEARCH_TIMEOUT_SETTING);
+        settings.add(DandelionAnnotationStore.STORE_ENABLED_SETTING);
+        settings.add(DandelionAnnotationStore.STORE_MAX_SIZE_SETTING);
+        settings.add(DandelionAnnotationStore.STORE_SEGMENT_SIZE_SETTING);
+        settings.add(DandelionAnnotationStore.STORE_COMPACTION_INTERVAL_SETTING);
+        settings.add(DandelionLanglinksCache.CACHE_SIZE_SETTING);
+        settings.add(DandelionLanglinksCache.CACHE_TTL_SETTING);
+        settings.add(DandelionLanglinksCache.CACHE_NEGATIVE_TTL_SETTING);
+        settings.add(DandelionLanglinksCache.CACHE_REFRESH_AHEAD_SETTING);
+        settings.add(DandelionHttpClient.MAX_CONNECTIONS_PER_HOST_SETTING);
+        settings.add(DandelionHttpClient.CONNECTION_WAIT_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.CONNECT_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.READ_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.KEEP_ALIVE_SETTING);
+        settings.add(DandelionHttpClient.PREWARM_SETTING);
+        settings.add(DandelionHttpClient.MAX_RESPONSE_SIZE_SETTING);
+        settings.add(DandelionHttpClient.WIKIPEDIA_CONNECT_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.WIKIPEDIA_READ_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.SEARCH_MAX_CONNECTIONS_PER_HOST_SETTING);
+        settings.add(DandelionHttpClient.SEARCH_CONNECT_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.SEARCH_READ_TIMEOUT_SETTING);
+        settings.add(DandelionHttpClient.MAX_RETRIES_SETTING);
+        settings.add(DandelionHttpClient.RETRY_INITIAL_BACKOFF_SETTING);
+        settings.add(DandelionHttpClient.RETRY_MAX_BACKOFF_SETTING);
+        settings.add(DandelionHttpClient.HEDGE_ENABLED_SETTING);
+        settings.add(DandelionHttpClient.HEDGE_MIN_DELAY_SETTING);
+        settings.add(DandelionRequestCoalescer.MAX_WAIT_SETTING);
+        settings.add(DandelionRequestCoalescer.MAX_SIZE_SETTING);
+        settings.add(DandelionRateLimiter.REQUESTS_PER_SEC_SETTING);
+        settings.add(DandelionRateLimiter.UNITS_PER_SEC_SETTING);
+        settings.add(DandelionRateLimiter.WIKIPEDIA_REQUESTS_PER_SEC_SETTING);
+        settings.add(DandelionRateLimiter.ADMISSION_CONTROL_SETTING);
+        settings.add(DandelionRateLimiter.MAX_WAIT_SETTING);
+        settings.add(DandelionRateLimiter.EXHAUSTED_BACKOFF_SETTING);
+        settings.add(DandelionRateLimiter.SEARCH_RESERVE_SETTING);
+        settings.add(DandelionCircuitBreaker.ENABLED_SETTING);
+        settings.add(DandelionCircuitBreaker.FAILURE_RATE_SETTING);
+        settings.add(DandelionCircuitBreaker.SLOW_CALL_DURATION_SETTING);
+        settings.add(DandelionCircuitBreaker.WINDOW_SIZE_SETTING);
+        settings.add(DandelionCircuitBreaker.MINIMUM_CALLS_SETTING);
+        settings.add(DandelionCircuitBreaker.OPEN_DURATION_SETTING);
+        settings.add(DandelionCircuitBreaker.HALF_OPEN_CALLS_SETTING);
+        settings.add(DandelionDictionary.PATH_SETTING);
+        settings.add(DandelionLanglinksTable.PATH_SETTING);
+        settings.add(DandelionLanglinksTable.FALLBACK_SETTING);
         return settings;
     }
 
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // bounds the number of annotation requests in flight issued by the ingest processor and by segmented texts
+        ExecutorBuilder<?> indexing = new FixedExecutorBuilder(settings, DandelionProcessor.THREAD_POOL_NAME,
+            EsExecutors.numberOfProcessors(settings) * 4, 1000, "thread_pool." + DandelionProcessor.THREAD_POOL_NAME);
+        // search-time requests never queue behind the index-time ones
+        ExecutorBuilder<?> search = new FixedExecutorBuilder(settings, DandelionTokenizer.SEARCH_THREAD_POOL_NAME,
+            EsExecutors.numberOfProcessors(settings) * 2, 100, "thread_pool." + DandelionTokenizer.SEARCH_THREAD_POOL_NAME);
+        // langlinks requested ahead of the tokens: when the queue is full they are requested when the tokens are reached
+        ExecutorBuilder<?> lookahead = new FixedExecutorBuilder(settings, DandelionTokenFilter.LOOKAHEAD_THREAD_POOL_NAME,
+            EsExecutors.numberOfProcessors(settings) * 2, 200, "thread_pool." + DandelionTokenFilter.LOOKAHEAD_THREAD_POOL_NAME);
+        return Arrays.asList(indexing, search, lookahead);
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        List<Object> components = new ArrayList<>();
+
+        DandelionProcessor.setExecutor(threadPool.executor(DandelionProcessor.THREAD_POOL_NAME));
+        DandelionTokenizer.setExecutor(threadPool.executor(DandelionProcessor.THREAD_POOL_NAME));
+        DandelionTokenizer.setSearchExecutor(threadPool.executor(DandelionTokenizer.SEARCH_THREAD_POOL_NAME));
+        DandelionTokenFilter.setLookaheadExecutor(threadPool.executor(DandelionTokenFilter.LOOKAHEAD_THREAD_POOL_NAME));
+        DandelionTokenizer.setSearchTimeout(DandelionTokenizer.SEARCH_TIMEOUT_SETTING.get(settings));
+
+        // hedged requests are sent on the generic pool, which never rejects them
+        DandelionHttpClient httpClient = DandelionHttpClient.dandelion(settings, threadPool.generic());
+        DandelionTokenizer.setHttpClient(httpClient);
+        DandelionHttpClient wikipediaHttpClient = DandelionHttpClient.wikipedia(settings, threadPool.generic());
+        DandelionTokenFilter.setHttpClient(wikipediaHttpClient);
+        DandelionTokenizer.setSearchHttpClient(DandelionHttpClient.search(settings, httpClient));
+        DandelionTokenFilter.setSearchHttpClient(DandelionHttpClient.search(settings, wikipediaHttpClient));
+        if(DandelionHttpClient.PREWARM_SETTING.get(settings)) {
+            threadPool.generic().execute(() -> httpClient.prewarm(DandelionTokenizer.NEX_URL));
+        }
+        components.add(httpClient);
+
+        DandelionAnnotationCache annotationCache = null;
+        if(DandelionAnnotationCache.CACHE_SIZE_SETTING.get(settings).getBytes() > 0) {
+            annotationCache = new DandelionAnnotationCache(settings);
+            DandelionTokenizer.setAnnotationCache(annotationCache);
+            components.add(annotationCache);
+        }
+
+        // not added to the components, which are bound by class
+        DandelionAnnotationCache queryCache = null;
+        if(DandelionAnnotationCache.QUERY_CACHE_SIZE_SETTING.get(settings).getBytes() > 0) {
+            queryCache = new DandelionAnnotationCache(DandelionAnnotationCache.QUERY_CACHE_SIZE_SETTING.get(settings).getBytes());
+            DandelionTokenizer.setQueryCache(queryCache);
+        }
+
+        // the limiter of Dandelion API is always installed, to learn the quota from the responses
+        DandelionRateLimiter dandelionRateLimiter = DandelionRateLimiter.dandelion(settings);
+        DandelionTokenizer.setRateLimiter(dandelionRateLimiter);
+        components.add(dandelionRateLimiter);
+        if(DandelionRateLimiter.WIKIPEDIA_REQUESTS_PER_SEC_SETTING.get(settings) > 0) {
+            DandelionRateLimiter wikipediaRateLimiter = DandelionRateLimiter.wikipedia(settings);
+            DandelionTokenFilter.setRateLimiter(wikipediaRateLimiter);
+        }
+
+        DandelionCircuitBreaker dandelionCircuitBreaker = null;
+        DandelionCircuitBreaker wikipediaCircuitBreaker = null;
+        if(DandelionCircuitBreaker.ENABLED_SETTING.get(settings)) {
+            dandelionCircuitBreaker = new DandelionCircuitBreaker("dandelion", settings);
+            DandelionTokenizer.setCircuitBreaker(dandelionCircuitBreaker);
+            components.add(dandelionCircuitBreaker);
+            wikipediaCircuitBreaker = new DandelionCircuitBreaker("wikipedia", settings);
+            DandelionTokenFilter.setCircuitBreaker(wikipediaCircuitBreaker);
+        }
+
+        if(DandelionRequestCoalescer.MAX_WAIT_SETTING.get(settings).nanos() > 0) {
+            DandelionRequestCoalescer requestCoalescer = new DandelionRequestCoalescer(settings);
+            DandelionTokenizer.setRequestCoalescer(requestCoalescer);
+            components.add(requestCoalescer);
+        }
+
+        DandelionLanglinksCache langlinksCache = null;
+        if(DandelionLanglinksCache.CACHE_SIZE_SETTING.get(settings).getBytes() > 0) {
+            langlinksCache = new DandelionLanglinksCache(settings, threadPool.generic());
+            DandelionTokenFilter.setLanglinksCache(langlinksCache);
+            components.add(langlinksCache);
+        }
+
+        if(DandelionAnnotationStore.STORE_ENABLED_SETTING.get(settings)) {
+            try {
+                annotationStore = new DandelionAnnotationStore(nodeEnvironment.nodeDataPaths()[0].resolve("dandelion"), settings);
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to open the dandelion annotation store", e);
+            }
+            threadPool.scheduleWithFixedDelay(annotationStore::compact,
+                DandelionAnnotationStore.STORE_COMPACTION_INTERVAL_SETTING.get(settings), ThreadPool.Names.GENERIC);
+            DandelionTokenizer.setAnnotationStore(annotationStore);
+            components.add(annotationStore);
+        }
+
+        try {
+            DandelionTokenizer.setDictionaries(DandelionDictionary.loadAll(
+                environment.configFile().resolve(DandelionDictionary.PATH_SETTING.get(settings))));
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to load the dandelion dictionaries", e);
+        }
+
+        try {
+            langlinksTables = DandelionLanglinksTable.loadAll(
+                environment.configFile().resolve(DandelionLanglinksTable.PATH_SETTING.get(settings)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to load the dandelion langlinks tables", e);
+        }
+        DandelionTokenFilter.setLanglinksTables(langlinksTables, DandelionLanglinksTable.FALLBACK_SETTING.get(settings));
+
+        stats = new DandelionStats(httpClient, wikipediaHttpClient, dandelionCircuitBreaker, wikipediaCircuitBreaker,
+            annotationCache, langlinksCache, annotationStore, queryCache);
+        DandelionTokenizer.setStats(stats);
+        DandelionProcessor.setStats(stats);
+        components.add(stats);
+
+        return components;
+    }
+
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                DandelionStats current = stats;
+                if(current != null) {
+                    current.removeIndex(index.getName());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        DandelionProcessor.setExecutor(null);
+        DandelionTokenizer.setExecutor(null);
+        DandelionTokenizer.setSearchExecutor(null);
+        DandelionTokenizer.setSearchHttpClient(null);
+        DandelionTokenFilter.setSearchHttpClient(null);
+        DandelionTokenFilter.setLookaheadExecutor(null);
+        DandelionTokenizer.setQueryCache(null);
+        DandelionTokenizer.setAnnotationCache(null);
+        DandelionTokenizer.setAnnotationStore(null);
+        DandelionTokenizer.setRequestCoalescer(null);
+        DandelionTokenizer.setRateLimiter(null);
+        DandelionTokenFilter.setRateLimiter(null);
+        DandelionTokenizer.setCircuitBreaker(null);
+        DandelionTokenFilter.setCircuitBreaker(null);
+        DandelionTokenizer.setStats(null);
+        DandelionTokenizer.setDictionaries(null);
+        DandelionProcessor.setStats(null);
+        DandelionTokenFilter.setLanglinksCache(null);
+        DandelionTokenFilter.setLanglinksTables(null, true);
+        DandelionLanglinksTable.closeAll(langlinksTables.values());
+        if(annotationStore != null) {
+            annotationStore.close();
+        }
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(DandelionStatsAction.INSTANCE, TransportDandelionStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestDandelionStatsAction(settings, restController));
+    }
+
     @Override
     public Map<String, AnalysisProvider<TokenizerFactory>> getTokenizers() {
         return singletonMap("dandelion-t", DandelionTokenizerFactory::new);
@@ -53,11 +326,19 @@ public class DandelionAnalysisPlugin extends Plugin implements AnalysisPlugin {
 
     @Override
     public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
-        return singletonMap("dandelion-tf", DandelionTokenFilterFactory::new);
+        Map<String, AnalysisProvider<TokenFilterFactory>> tokenFilters = new HashMap<>();
+        tokenFilters.put("dandelion-tf", DandelionTokenFilterFactory::new);
+        tokenFilters.put("dandelion-entity", DandelionEntityFilterFactory::new);
+        return tokenFilters;
     }
 
     @Override
     public Map<String, AnalysisProvider<AnalyzerProvider<? extends Analyzer>>> getAnalyzers() {
         return singletonMap("dandelion-a", DandelionAnalyzerProvider::new);
     }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return singletonMap(DandelionProcessor.TYPE, new DandelionProcessor.Factory(auth_token));
+    }
 }
@@ -0,0 +1,37 @@
+package org.elasticsearch.rest.action.dandelion;
+
+import org.elasticsearch.action.dandelion.DandelionStatsAction;
+import org.elasticsearch.action.dandelion.DandelionStatsRequest;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions.NodesResponseRestListener;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+public class RestDandelionStatsAction extends BaseRestHandler {
+
+    public RestDandelionStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_nodes/dandelion/stats", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/dandelion/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "dandelion_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+        DandelionStatsRequest statsRequest = new DandelionStatsRequest(nodesIds);
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(DandelionStatsAction.INSTANCE, statsRequest, new NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,68 @@
+package org.elasticsearch.action.dandelion;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.analysis.DandelionAnnotationCache;
+import org.elasticsearch.index.analysis.DandelionAnnotations;
+import org.elasticsearch.index.analysis.DandelionHttpClient;
+import org.elasticsearch.index.analysis.DandelionStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class DandelionNodeStatsTests extends ESTestCase {
+
+    @Test
+    public void testSerialization() throws IOException {
+        DandelionAnnotationCache cache = new DandelionAnnotationCache(1024 * 1024);
+        cache.put("key", DandelionAnnotations.EMPTY);
+        cache.get("key");
+        cache.get("missing");
+        DandelionStats stats = new DandelionStats(new DandelionHttpClient(Settings.EMPTY), null, null, null, cache, null, null, null);
+        stats.index("index").onAnnotated(3, 1000000);
+        stats.index("index").onFailed(1000000);
+
+        DiscoveryNode node = new DiscoveryNode("node", buildNewFakeTransportAddress(), Version.CURRENT);
+        DandelionNodeStats nodeStats = new DandelionNodeStats(node, stats);
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        nodeStats.writeTo(out);
+        StreamInput in = out.bytes().streamInput();
+        DandelionNodeStats read = DandelionNodeStats.readNodeStats(in);
+
+        assertEquals(node, read.getNode());
+        assertEquals(0, read.getEndpoints().get("dandelion").getRequests());
+        assertFalse(read.getEndpoints().containsKey("wikipedia"));
+        assertEquals(1, read.getCaches().get("annotations").getHits());
+        assertEquals(1, read.getCaches().get("annotations").getMisses());
+        assertEquals(2, read.getIndices().get("index").getDocuments());
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        read.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        String json = builder.string();
+        assertTrue(json.contains("\"index\":{\"documents\":2,\"failed\":1,\"degraded\":0,\"entities\":3,\"time_in_millis\":2}"));
+        assertTrue(json.contains("\"p95_in_millis\":0"));
+    }
+
+    @Test
+    public void testRemovedIndicesAreNotReported() {
+        DandelionStats stats = new DandelionStats(new DandelionHttpClient(Settings.EMPTY), null, null, null, null, null, null, null);
+        stats.index("logs-2018.05.01").onAnnotated(3, 1000000);
+        stats.index("logs-2018.05.02").onAnnotated(2, 1000000);
+
+        stats.removeIndex("logs-2018.05.01");
+        DiscoveryNode node = new DiscoveryNode("node", buildNewFakeTransportAddress(), Version.CURRENT);
+        DandelionNodeStats nodeStats = new DandelionNodeStats(node, stats);
+        assertFalse(nodeStats.getIndices().containsKey("logs-2018.05.01"));
+        assertEquals(1, nodeStats.getIndices().get("logs-2018.05.02").getDocuments());
+        assertEquals(1, stats.indices().size());
+    }
+}
@@ -0,0 +1,184 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DandelionAnnotationStoreTests extends ESTestCase {
+
+    private DandelionAnnotations annotations(String... uris) {
+        int[] starts = new int[uris.length];
+        int[] ends = new int[uris.length];
+        for (int i = 0; i < uris.length; i++) {
+            starts[i] = 10 * i;
+            ends[i] = 10 * i + 5;
+        }
+        return new DandelionAnnotations(starts, ends, uris);
+    }
+
+    private void assertSameAnnotations(DandelionAnnotations expected, DandelionAnnotations actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.start(i), actual.start(i));
+            assertEquals(expected.end(i), actual.end(i));
+            assertEquals(expected.uri(i), actual.uri(i));
+            assertEquals(expected.id(i), actual.id(i));
+            assertEquals(expected.confidence(i), actual.confidence(i), 0f);
+        }
+    }
+
+    @Test
+    public void testStoreSurvivesReopening() throws IOException {
+        Path directory = createTempDir();
+        String gioconda = DandelionAnnotationCache.key("La Gioconda è un quadro.", "it");
+        String empty = DandelionAnnotationCache.key("Di a da in con su per tra fra.", "it");
+        DandelionAnnotations giocondaAnnotations = annotations("http://it.wikipedia.org/wiki/Gioconda", "http://it.wikipedia.org/wiki/Pittura");
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            store.put(gioconda, giocondaAnnotations);
+            store.put(empty, DandelionAnnotations.EMPTY);
+            assertSameAnnotations(giocondaAnnotations, store.get(gioconda));
+            assertSameAnnotations(DandelionAnnotations.EMPTY, store.get(empty));
+            assertNull(store.get(DandelionAnnotationCache.key("Mona Lisa.", "en")));
+        }
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            assertEquals(2, store.count());
+            assertSameAnnotations(giocondaAnnotations, store.get(gioconda));
+            assertSameAnnotations(DandelionAnnotations.EMPTY, store.get(empty));
+        }
+    }
+
+    @Test
+    public void testStoreKeepsIdsAndConfidences() throws IOException {
+        Path directory = createTempDir();
+        String gioconda = DandelionAnnotationCache.key("La Gioconda è un quadro.", "it");
+        DandelionAnnotations giocondaAnnotations = new DandelionAnnotations.Builder()
+            .add(3, 11, "http://it.wikipedia.org/wiki/Gioconda", 10664, 0.907f)
+            .add(17, 23, "http://it.wikipedia.org/wiki/Pittura", 3197, 0.74f)
+            .build();
+        String louvre = DandelionAnnotationCache.key("Il Louvre.", "it");
+        DandelionAnnotations louvreAnnotations = annotations("http://it.wikipedia.org/wiki/Louvre");
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            store.put(gioconda, giocondaAnnotations);
+            store.put(louvre, louvreAnnotations);
+        }
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            assertSameAnnotations(giocondaAnnotations, store.get(gioconda));
+            // the records without them are read as before
+            assertSameAnnotations(louvreAnnotations, store.get(louvre));
+            assertTrue(Float.isNaN(store.get(louvre).confidence(0)));
+        }
+    }
+
+    @Test
+    public void testStoreTruncatesTornRecords() throws IOException {
+        Path directory = createTempDir();
+        String first = DandelionAnnotationCache.key("first", "en");
+        String second = DandelionAnnotationCache.key("second", "en");
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024 * 1024)) {
+            store.put(first, annotations("http://en.wikipedia.org/wiki/First"));
+            store.put(second, annotations("http://en.wikipedia.org/wiki/Second"));
+        }
+
+        Path segment;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            segment = stream.iterator().next();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024 * 1024)) {
+            assertEquals(1, store.count());
+            assertSameAnnotations(annotations("http://en.wikipedia.org/wiki/First"), store.get(first));
+            assertNull(store.get(second));
+        }
+    }
+
+    @Test
+    public void testCompactionDropsOldestSegments() throws IOException {
+        Path directory = createTempDir();
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 4096, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                store.put(DandelionAnnotationCache.key("text " + i, "en"), annotations("http://en.wikipedia.org/wiki/Entity_" + i));
+            }
+            assertTrue(store.totalSize() > 4096);
+
+            store.compact();
+
+            assertTrue(store.totalSize() <= 4096 + 1024);
+            assertNull(store.get(DandelionAnnotationCache.key("text 0", "en")));
+            assertSameAnnotations(annotations("http://en.wikipedia.org/wiki/Entity_99"),
+                store.get(DandelionAnnotationCache.key("text 99", "en")));
+        }
+    }
+
+    @Test
+    public void testCompactionRewritesSparseSegmentsWhileTheyAreRead() throws Exception {
+        Path directory = createTempDir();
+        int keys = 60;
+
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            for (int i = 0; i < keys; i++) {
+                store.put(DandelionAnnotationCache.key("text " + i, "en"), annotations("http://en.wikipedia.org/wiki/Old_" + i));
+            }
+            // three records out of four are superseded: the first segments are sparse
+            for (int i = 0; i < keys; i++) {
+                if (i % 4 != 0) {
+                    store.put(DandelionAnnotationCache.key("text " + i, "en"), annotations("http://en.wikipedia.org/wiki/New_" + i));
+                }
+            }
+            long size = store.totalSize();
+
+            AtomicBoolean compacted = new AtomicBoolean();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread reader = new Thread(() -> {
+                try {
+                    while (!compacted.get()) {
+                        assertStored(store, keys);
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            reader.start();
+            store.compact();
+            compacted.set(true);
+            reader.join();
+            assertNull(failure.get());
+
+            assertTrue(store.totalSize() < size);
+            assertEquals(keys, store.count());
+            assertStored(store, keys);
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.tmp")) {
+            assertFalse(stream.iterator().hasNext());
+        }
+        // the rewritten records are still older than the ones that superseded them
+        try (DandelionAnnotationStore store = new DandelionAnnotationStore(directory, 1024 * 1024, 1024)) {
+            assertEquals(keys, store.count());
+            assertStored(store, keys);
+        }
+    }
+
+    private void assertStored(DandelionAnnotationStore store, int keys) {
+        for (int i = 0; i < keys; i++) {
+            String entity = (i % 4 == 0 ? "Old_" : "New_") + i;
+            assertSameAnnotations(annotations("http://en.wikipedia.org/wiki/" + entity), store.get(DandelionAnnotationCache.key("text " + i, "en")));
+        }
+    }
+}
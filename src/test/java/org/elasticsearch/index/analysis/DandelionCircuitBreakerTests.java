@@ -0,0 +1,151 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class DandelionCircuitBreakerTests extends ESTestCase {
+
+    private static DandelionCircuitBreaker breaker(TimeValue openDuration) {
+        return new DandelionCircuitBreaker("dandelion", 0.5, TimeValue.timeValueSeconds(1), 10, 4, openDuration, 2);
+    }
+
+    @Test
+    public void testBreakerOpensWhenTheFailureRateIsReached() {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueMinutes(1));
+
+        // below the minimum number of calls
+        breaker.onResult(true, 0);
+        breaker.onResult(true, 0);
+        breaker.onResult(false, 0);
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        assertTrue(breaker.tryAcquire());
+
+        breaker.onResult(false, 0);
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void testFailureRateMustBeGreaterThanZeroAndAtMostOne() {
+        for (String failureRate : new String[] {"0", "-0.5", "1.01", "2", "NaN"}) {
+            Settings settings = Settings.builder().put("dandelion.circuit_breaker.failure_rate", failureRate).build();
+            expectThrows(IllegalArgumentException.class, () -> DandelionCircuitBreaker.FAILURE_RATE_SETTING.get(settings));
+        }
+        assertEquals(1.0, DandelionCircuitBreaker.FAILURE_RATE_SETTING.get(
+            Settings.builder().put("dandelion.circuit_breaker.failure_rate", 1).build()), 0.0);
+        assertEquals(0.01, DandelionCircuitBreaker.FAILURE_RATE_SETTING.get(
+            Settings.builder().put("dandelion.circuit_breaker.failure_rate", 0.01).build()), 0.0);
+        assertEquals(0.5, DandelionCircuitBreaker.FAILURE_RATE_SETTING.get(Settings.EMPTY), 0.0);
+    }
+
+    @Test
+    public void testBreakerWithFailureRateOneOpensOnlyWhenAllCallsFail() {
+        DandelionCircuitBreaker breaker = new DandelionCircuitBreaker("dandelion", 1.0, TimeValue.timeValueSeconds(1), 10, 4,
+            TimeValue.timeValueMinutes(1), 2);
+        breaker.onResult(false, 0);
+        for (int i = 0; i < 9; i++) {
+            breaker.onResult(true, 0);
+        }
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+
+        // the good call leaves the window of 10 calls
+        breaker.onResult(true, 0);
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void testSlowCallsAreCountedAsFailures() {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueMinutes(1));
+
+        for (int i = 0; i < 3; i++) {
+            breaker.onResult(false, TimeValue.timeValueMillis(10).nanos());
+        }
+        breaker.onResult(false, TimeValue.timeValueSeconds(2).nanos());
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        breaker.onResult(false, TimeValue.timeValueSeconds(2).nanos());
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        breaker.onResult(false, TimeValue.timeValueSeconds(2).nanos());
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void testOldOutcomesLeaveTheWindow() {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueMinutes(1));
+
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(false, 0);
+            breaker.onResult(false, 0);
+            breaker.onResult(true, 0);
+        }
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        // the window holds the last 10 calls: the oldest one dropped is a failure, so still 4 failures out of 10
+        breaker.onResult(true, 0);
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        // then 5 failures out of 10
+        breaker.onResult(true, 0);
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void testHalfOpenBreakerClosesAfterSuccessfulTrialCalls() {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueNanos(1));
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(true, 0);
+        }
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+
+        // only the trial calls are let through
+        assertTrue(breaker.tryAcquire());
+        assertEquals(DandelionCircuitBreaker.State.HALF_OPEN, breaker.state());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onResult(false, 0);
+        assertEquals(DandelionCircuitBreaker.State.HALF_OPEN, breaker.state());
+        breaker.onResult(false, 0);
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+
+        // the window starts again empty
+        breaker.onResult(true, 0);
+        breaker.onResult(true, 0);
+        breaker.onResult(true, 0);
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testTrialCallsNotSentAreGivenBack() throws Exception {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueMillis(1));
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(true, 0);
+        }
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+        Thread.sleep(10);
+
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        // a trial call waited too long for a connection and was not sent
+        breaker.onNotCalled();
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(false, 0);
+        breaker.onResult(false, 0);
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+        // nothing to give back once closed
+        breaker.onNotCalled();
+        assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testHalfOpenBreakerOpensAgainAfterAFailedTrialCall() {
+        DandelionCircuitBreaker breaker = breaker(TimeValue.timeValueNanos(1));
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(true, 0);
+        }
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onResult(true, 0);
+        assertEquals(DandelionCircuitBreaker.State.OPEN, breaker.state());
+    }
+}
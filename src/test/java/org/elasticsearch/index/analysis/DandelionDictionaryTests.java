@@ -0,0 +1,168 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class DandelionDictionaryTests extends ESTestCase {
+
+    @After
+    public void resetDictionaries() {
+        DandelionTokenizer.setDictionaries(null);
+    }
+
+    private static DandelionDictionary dictionary() throws IOException {
+        return new DandelionDictionary.Builder("it")
+            .add("Gioconda", "Gioconda", 20)
+            .add("Leonardo", "Leonardo da Vinci", 8)
+            .add("Leonardo", "Leonardo (Tartarughe Ninja)", 2)
+            .add("Leonardo da Vinci", "Leonardo da Vinci", 10)
+            .add("Vinci", "Vinci (Italia)", 5)
+            .add("Louvre", "Museo del Louvre", 7)
+            .add("Parigi", "Parigi", 30)
+            .add("Parigi", "Parigi (mitologia)", 1)
+            .build();
+    }
+
+    @Test
+    public void testLongestMatch() throws IOException {
+        String text = "La gioconda di Leonardo  da Vinci è al Louvre.";
+        DandelionAnnotations annotations = dictionary().annotate(text);
+
+        assertEquals(3, annotations.size());
+        assertEquals("gioconda", text.substring(annotations.start(0), annotations.end(0)));
+        assertEquals("http://it.wikipedia.org/wiki/Gioconda", annotations.uri(0));
+        assertEquals("Leonardo  da Vinci", text.substring(annotations.start(1), annotations.end(1)));
+        assertEquals("http://it.wikipedia.org/wiki/Leonardo_da_Vinci", annotations.uri(1));
+        assertEquals("Louvre", text.substring(annotations.start(2), annotations.end(2)));
+        assertEquals("http://it.wikipedia.org/wiki/Museo_del_Louvre", annotations.uri(2));
+    }
+
+    @Test
+    public void testSurfaceFormsMatchWholeWords() throws IOException {
+        DandelionDictionary dictionary = dictionary();
+        assertEquals(0, dictionary.annotate("Leonardesco, Parigina e Vincitore").size());
+        assertEquals(0, dictionary.annotate("").size());
+
+        DandelionAnnotations annotations = dictionary.annotate("Leonardo da Vincio");
+        assertEquals(1, annotations.size());
+        assertEquals(0, annotations.start(0));
+        assertEquals(8, annotations.end(0));
+    }
+
+    @Test
+    public void testEntitiesLinkedEarlierInTheTextArePreferred() throws IOException {
+        DandelionDictionary dictionary = new DandelionDictionary.Builder("en")
+            .add("Jordan", "Jordan", 60)
+            .add("Jordan", "Michael Jordan", 40)
+            .add("Michael Jordan", "Michael Jordan", 50)
+            .build();
+
+        DandelionAnnotations annotations = dictionary.annotate("Jordan is in the Middle East.");
+        assertEquals("http://en.wikipedia.org/wiki/Jordan", annotations.uri(0));
+
+        annotations = dictionary.annotate("Michael Jordan played for the Bulls. Jordan won six titles.");
+        assertEquals(2, annotations.size());
+        assertEquals("http://en.wikipedia.org/wiki/Michael_Jordan", annotations.uri(0));
+        assertEquals("http://en.wikipedia.org/wiki/Michael_Jordan", annotations.uri(1));
+    }
+
+    @Test
+    public void testCandidates() throws IOException {
+        DandelionDictionary dictionary = new DandelionDictionary.Builder("it")
+            .setMinCount(2)
+            .setMaxCandidates(2)
+            .add("Leonardo", "Leonardo da Vinci", 60)
+            .add("Leonardo", "Leonardo (Tartarughe Ninja)", 30)
+            .add("Leonardo", "Leonardo DiCaprio", 9)
+            .add("leonardo", "Leonardo Fibonacci", 1)
+            .add("Vinci", "Vinci (Italia)", 1)
+            .build();
+
+        assertEquals(1, dictionary.size());
+        Map<String, Float> candidates = dictionary.candidates("LEONARDO");
+        assertEquals(Arrays.asList("http://it.wikipedia.org/wiki/Leonardo_da_Vinci",
+            "http://it.wikipedia.org/wiki/Leonardo_%28Tartarughe_Ninja%29"), Arrays.asList(candidates.keySet().toArray()));
+        assertEquals(0.6f, candidates.get("http://it.wikipedia.org/wiki/Leonardo_da_Vinci"), 0.0001f);
+        assertEquals(0, dictionary.candidates("Vinci").size());
+    }
+
+    @Test
+    public void testWriteAndLoad() throws IOException {
+        Path directory = createTempDir();
+        dictionary().write(directory.resolve("it.fst"));
+        new DandelionDictionary.Builder("en").build().write(directory.resolve("en.fst"));
+        Files.write(directory.resolve("xx.fst"), "ignored".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, DandelionDictionary> dictionaries = DandelionDictionary.loadAll(directory);
+        assertEquals(2, dictionaries.size());
+        assertEquals(0, dictionaries.get("en").annotate("Leonardo").size());
+        DandelionDictionary dictionary = dictionaries.get("it");
+        assertEquals(dictionary().size(), dictionary.size());
+        DandelionAnnotations annotations = dictionary.annotate("La Gioconda di Leonardo da Vinci è al Louvre.");
+        assertEquals(3, annotations.size());
+        assertEquals("http://it.wikipedia.org/wiki/Leonardo_da_Vinci", annotations.uri(1));
+
+        assertEquals(0, DandelionDictionary.loadAll(directory.resolve("missing")).size());
+    }
+
+    @Test
+    public void testToolReadsTabSeparatedLinks() throws IOException {
+        Path input = createTempDir().resolve("anchors.tsv");
+        Files.write(input, ("Gioconda\tGioconda\t20\nLouvre\tMuseo del Louvre\nLouvre\tMuseo del Louvre\n"
+            + "malformed line\n").getBytes(StandardCharsets.UTF_8));
+        DandelionDictionary.Builder builder = new DandelionDictionary.Builder("it").setMinCount(2);
+        assertEquals(4, DandelionDictionaryTool.read(input, builder));
+
+        DandelionDictionary dictionary = builder.build();
+        assertEquals(2, dictionary.size());
+        assertEquals(1.0f, dictionary.candidates("Louvre").get("http://it.wikipedia.org/wiki/Museo_del_Louvre"), 0.0f);
+    }
+
+    @Test
+    public void testTokenizerWithDictionary() throws IOException {
+        DandelionTokenizer.setDictionaries(Collections.singletonMap("it", dictionary()));
+        String text = "La Gioconda è a Parigi.";
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, "it", "dictionary");
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"La ","Gioconda"," è a ","Parigi","."},
+            new int[] {0,3,11,16,22},
+            new int[] {3,11,16,22,23},
+            new String[] {"","https://it.wikipedia.org/wiki/Gioconda","","https://it.wikipedia.org/wiki/Parigi",""},
+            new int[] {1,1,1,1,1}
+        );
+
+        dandelionTokenizer = new DandelionTokenizer(null, "it", "dictionary");
+        dandelionTokenizer.setReader(new StringReader(text));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "false");
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"https://it.wikipedia.org/wiki/Gioconda","https://it.wikipedia.org/wiki/Parigi"},
+            new int[] {3,16},
+            new int[] {11,22},
+            new String[] {"word","word"},
+            new int[] {2,2}
+        );
+    }
+
+    @Test
+    public void testTokenizerShouldThrowExceptionIfDictionaryIsMissing() {
+        DandelionTokenizer.setDictionaries(Collections.singletonMap("it", null));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> new DandelionTokenizer(null, "en", "dictionary"));
+        assertTrue(e.getMessage().startsWith("No dictionary loaded for the language (lang) [en]"));
+        expectThrows(IllegalArgumentException.class, () -> new DandelionTokenizer(null, "auto", "dictionary"));
+    }
+}
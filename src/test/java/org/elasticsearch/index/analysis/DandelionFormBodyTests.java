@@ -0,0 +1,50 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+public class DandelionFormBodyTests extends ESTestCase {
+
+    private static String write(DandelionFormBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertEquals(body.length(), out.size());
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testEncodingIsTheOneOfURLEncoder() throws IOException {
+        String[] texts = {"", "La Gioconda è un quadro.", "Мона Лиза", "蒙娜丽莎", "a+b=c&d%e*f~g/h", "😀 emoji",
+            "unpaired \uD800 surrogate \uDC00", randomUnicodeOfLength(100), randomRealisticUnicodeOfLength(10000)};
+        for (String text : texts) {
+            DandelionFormBody body = new DandelionFormBody().add("text", text).add("token", "token").add("lang", "auto");
+            assertEquals("text=" + URLEncoder.encode(text, "UTF-8") + "&token=token&lang=auto", write(body));
+        }
+    }
+
+    @Test
+    public void testLongTextsAreWrittenAcrossBuffers() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("Леонардо да Винчи ").append(i).append(' ');
+        }
+        DandelionFormBody body = new DandelionFormBody().add("text", text.toString()).add("lang", "ru");
+        String encoded = write(body);
+        assertEquals("text=" + URLEncoder.encode(text.toString(), "UTF-8") + "&lang=ru", encoded);
+        // the same body can be written again, for a retry
+        assertEquals(encoded, write(body));
+    }
+
+    @Test
+    public void testBodiesWithTheSameParametersAreEqual() {
+        DandelionFormBody body = new DandelionFormBody().add("text", "Mona Lisa").add("lang", "en");
+        assertEquals(body, new DandelionFormBody().add("text", "Mona Lisa").add("lang", "en"));
+        assertEquals(body.hashCode(), new DandelionFormBody().add("text", "Mona Lisa").add("lang", "en").hashCode());
+        assertNotEquals(body, new DandelionFormBody().add("text", "Mona Lisa").add("lang", "it"));
+    }
+}
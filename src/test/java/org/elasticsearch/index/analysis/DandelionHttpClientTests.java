@@ -0,0 +1,316 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+public class DandelionHttpClientTests extends ESTestCase {
+
+    @Test
+    public void testOnlyTooManyRequestsAndServerErrorsAreRetried() {
+        DandelionHttpClient client = new DandelionHttpClient(Settings.EMPTY);
+
+        assertEquals(-1, client.retryDelayNanos(200, null, 0));
+        assertEquals(-1, client.retryDelayNanos(401, null, 0));
+        assertTrue(client.retryDelayNanos(429, null, 0) >= 0);
+        assertTrue(client.retryDelayNanos(503, null, 1) >= 0);
+        // max_retries is 2 by default
+        assertEquals(-1, client.retryDelayNanos(503, null, 2));
+    }
+
+    @Test
+    public void testBackoffGrowsUpToTheMaximum() {
+        DandelionHttpClient client = new DandelionHttpClient(Settings.builder()
+            .put(DandelionHttpClient.MAX_RETRIES_SETTING.getKey(), 10)
+            .put(DandelionHttpClient.RETRY_INITIAL_BACKOFF_SETTING.getKey(), "100ms")
+            .put(DandelionHttpClient.RETRY_MAX_BACKOFF_SETTING.getKey(), "1s")
+            .build());
+
+        long first = client.retryDelayNanos(503, null, 0);
+        assertTrue(first >= TimeValue.timeValueMillis(50).nanos() && first <= TimeValue.timeValueMillis(100).nanos());
+        long third = client.retryDelayNanos(503, null, 2);
+        assertTrue(third >= TimeValue.timeValueMillis(200).nanos() && third <= TimeValue.timeValueMillis(400).nanos());
+        long last = client.retryDelayNanos(503, null, 9);
+        assertTrue(last >= TimeValue.timeValueMillis(500).nanos() && last <= TimeValue.timeValueSeconds(1).nanos());
+    }
+
+    @Test
+    public void testRetryAfterIsHonored() {
+        DandelionHttpClient client = new DandelionHttpClient(Settings.EMPTY);
+
+        assertEquals(TimeValue.timeValueSeconds(3).nanos(), client.retryDelayNanos(429, "3", 0));
+        // longer than max_backoff
+        assertEquals(-1, client.retryDelayNanos(429, "60", 0));
+
+        String date = ZonedDateTime.now().plusSeconds(5).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        long nanos = DandelionHttpClient.parseRetryAfter(date);
+        assertTrue(nanos > 0 && nanos <= TimeValue.timeValueSeconds(5).nanos());
+        assertEquals(-1, DandelionHttpClient.parseRetryAfter("soon"));
+    }
+
+    /**
+     * A local HTTP/1.1 server, which answers each request once the given latch (if any) is released.
+     */
+    private static final class MockServer implements Closeable {
+
+        private final ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private final List<Thread> threads = new CopyOnWriteArrayList<>();
+        private final Thread acceptor;
+
+        MockServer(CountDownLatch respond) throws IOException {
+            acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        sockets.add(socket);
+                        Thread connection = new Thread(() -> serve(socket, respond));
+                        threads.add(connection);
+                        connection.start();
+                    }
+                } catch (IOException e) {
+                    // the server socket is closed
+                }
+            });
+            acceptor.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getLocalPort() + "/datatxt/nex/v1";
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            try {
+                acceptor.join();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of an accepted connection with a small JSON body, keeping the connection open unless the
+     * request asks to close it.
+     */
+    private static void serve(Socket socket, CountDownLatch respond) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            while (true) {
+                int contentLength = 0;
+                boolean close = false;
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    String header = line.toLowerCase(Locale.ROOT);
+                    if (header.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring(15).trim());
+                    } else if (header.equals("connection: close")) {
+                        close = true;
+                    }
+                }
+                for (int i = 0; i < contentLength; i++) {
+                    if (in.read() == -1) {
+                        return;
+                    }
+                }
+                if (respond != null) {
+                    try {
+                        respond.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                byte[] body = "{\"annotations\":[]}".getBytes(StandardCharsets.UTF_8);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + body.length
+                    + (close ? "\r\nConnection: close" : "") + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client closed the connection
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testConnectionIsReusedOnceTheResponseIsConsumed() throws Exception {
+        try (MockServer server = new MockServer(null)) {
+            DandelionHttpClient client = new DandelionHttpClient(Settings.EMPTY);
+            for (int i = 0; i < 3; i++) {
+                String response = client.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                assertEquals("{\"annotations\":[]}", response);
+            }
+            // the handler reads the whole response, and the client closes it: the connection goes back to the pool
+            assertEquals(1, server.sockets.size());
+            assertEquals(3, client.stats().requests());
+        }
+    }
+
+    @Test
+    public void testWaitingForAConnectionIsNotAnApiFailure() throws Exception {
+        CountDownLatch respond = new CountDownLatch(1);
+        try (MockServer server = new MockServer(respond)) {
+            DandelionHttpClient client = new DandelionHttpClient(Settings.builder()
+                .put("dandelion.http.max_connections_per_host", 1)
+                .put("dandelion.http.connection_wait_timeout", "100ms")
+                .build());
+            DandelionCircuitBreaker breaker = new DandelionCircuitBreaker("dandelion", 0.5, TimeValue.timeValueMillis(500), 10, 1,
+                TimeValue.timeValueMinutes(1), 1);
+            Thread pending = new Thread(() -> {
+                try {
+                    client.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            pending.start();
+            try {
+                assertBusy(() -> assertEquals(1, server.sockets.size()));
+
+                // the only connection is busy: the request fails without being sent, and the breaker does not count it
+                expectThrows(DandelionConnectionWaitException.class,
+                    () -> breaker.execute(client, server.url(), body(), r -> new BufferedReader(r.body()).readLine()));
+                assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+                assertEquals(1, client.stats().requests());
+            } finally {
+                respond.countDown();
+                pending.join();
+            }
+        }
+    }
+
+    @Test
+    public void testSearchClientHasItsOwnConnections() throws Exception {
+        CountDownLatch respond = new CountDownLatch(1);
+        try (MockServer server = new MockServer(respond)) {
+            Settings settings = Settings.builder()
+                .put("dandelion.http.max_connections_per_host", 1)
+                .put("dandelion.http.connection_wait_timeout", "100ms")
+                .build();
+            DandelionHttpClient client = new DandelionHttpClient(settings);
+            DandelionHttpClient searchClient = DandelionHttpClient.search(settings, client);
+            Thread pending = new Thread(() -> {
+                try {
+                    client.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            Thread search = new Thread(() -> {
+                try {
+                    searchClient.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            pending.start();
+            try {
+                assertBusy(() -> assertEquals(1, server.sockets.size()));
+
+                // the only connection of the index-time requests is busy, the search-time request is sent anyway
+                search.start();
+                assertBusy(() -> assertEquals(2, server.sockets.size()));
+                expectThrows(DandelionConnectionWaitException.class,
+                    () -> client.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine()));
+            } finally {
+                respond.countDown();
+                pending.join();
+                search.join();
+            }
+            assertEquals(2, client.stats().requests());
+            assertSame(client.stats(), searchClient.stats());
+        }
+    }
+
+    @Test
+    public void testWaitingForAConnectionIsNotPartOfTheDurationOfTheCall() throws Exception {
+        CountDownLatch respond = new CountDownLatch(1);
+        try (MockServer server = new MockServer(respond)) {
+            DandelionHttpClient client = new DandelionHttpClient(Settings.builder()
+                .put("dandelion.http.max_connections_per_host", 1)
+                .build());
+            DandelionCircuitBreaker breaker = new DandelionCircuitBreaker("dandelion", 0.5, TimeValue.timeValueMillis(200), 10, 1,
+                TimeValue.timeValueMinutes(1), 1);
+            Thread pending = new Thread(() -> {
+                try {
+                    client.post(server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+            pending.start();
+            Thread waiting = null;
+            try {
+                assertBusy(() -> assertEquals(1, server.sockets.size()));
+                String[] response = new String[1];
+                waiting = new Thread(() -> {
+                    try {
+                        response[0] = breaker.execute(client, server.url(), body(), r -> new BufferedReader(r.body()).readLine());
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                });
+                waiting.start();
+                // the call waits for the connection longer than slow_call_duration, then gets a fast response
+                Thread.sleep(400);
+                respond.countDown();
+                waiting.join();
+                assertEquals("{\"annotations\":[]}", response[0]);
+                assertEquals(DandelionCircuitBreaker.State.CLOSED, breaker.state());
+            } finally {
+                respond.countDown();
+                pending.join();
+                if (waiting != null) {
+                    waiting.join();
+                }
+            }
+        }
+    }
+
+    private static DandelionHttpClient.RequestBody body() {
+        return DandelionHttpClient.RequestBody.of("text=Mona+Lisa".getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,212 @@
+package org.elasticsearch.index.analysis;
+
+import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class DandelionLanglinksTableTests extends ESTestCase {
+
+    @After
+    public void resetLanglinksTables() {
+        DandelionTokenFilter.setLanglinksTables(null, true);
+    }
+
+    private static Map<String, String> langlinks(String... langTitles) {
+        Map<String, String> langlinks = new TreeMap<>();
+        for (int i = 0; i < langTitles.length; i += 2) {
+            langlinks.put(langTitles[i], langTitles[i + 1]);
+        }
+        return langlinks;
+    }
+
+    private static Path writeTable(Path directory, String lang, Map<String, Map<String, String>> pages) throws IOException {
+        Path path = directory.resolve(lang + DandelionLanglinksTable.FILE_SUFFIX);
+        Map<BytesRef, Map<String, String>> sorted = new TreeMap<>();
+        for (Map.Entry<String, Map<String, String>> page : pages.entrySet()) {
+            sorted.put(new BytesRef(DandelionLanglinksTable.key(page.getKey())), page.getValue());
+        }
+        try (DandelionLanglinksTable.Writer writer = new DandelionLanglinksTable.Writer(path, lang)) {
+            for (Map.Entry<BytesRef, Map<String, String>> page : sorted.entrySet()) {
+                writer.add(page.getKey().utf8ToString(), page.getValue());
+            }
+        }
+        return path;
+    }
+
+    @Test
+    public void testLookups() throws IOException {
+        Map<String, Map<String, String>> pages = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            pages.put(String.format(Locale.ROOT, "Pagina %04d", i), i % 3 == 0 ? langlinks()
+                : langlinks("en", "Page " + i, "de", "Seite " + i));
+        }
+        pages.put("Città del Vaticano", langlinks("en", "Vatican City", "ru", "Ватикан"));
+
+        try (DandelionLanglinksTable table = DandelionLanglinksTable.open(writeTable(createTempDir(), "it", pages))) {
+            assertEquals("it", table.lang());
+            assertEquals(1001, table.size());
+            for (int i = 0; i < 1000; i++) {
+                String[] urls = table.get(String.format(Locale.ROOT, "Pagina_%04d", i));
+                if (i % 3 == 0) {
+                    assertEquals(0, urls.length);
+                } else {
+                    assertArrayEquals(new String[] {"https://de.wikipedia.org/wiki/Seite_" + i,
+                        "https://en.wikipedia.org/wiki/Page_" + i}, urls);
+                }
+            }
+            assertArrayEquals(new String[] {"https://en.wikipedia.org/wiki/Vatican_City",
+                "https://ru.wikipedia.org/wiki/%D0%92%D0%B0%D1%82%D0%B8%D0%BA%D0%B0%D0%BD"}, table.get("Città del Vaticano"));
+
+            assertNull(table.get("Aaa"));
+            assertNull(table.get("Pagina 0500 bis"));
+            assertNull(table.get("Pagina 10000"));
+            assertNull(table.get("Zzz"));
+        }
+    }
+
+    @Test
+    public void testUrlsAreEncodedAsMediaWikiDoes() {
+        assertEquals("https://en.wikipedia.org/wiki/Leonardo_da_Vinci", DandelionLanglinksTable.url("en", "Leonardo da Vinci"));
+        assertEquals("https://fr.wikipedia.org/wiki/Mus%C3%A9e_du_Louvre", DandelionLanglinksTable.url("fr", "Musée du Louvre"));
+        assertEquals("https://en.wikipedia.org/wiki/Paris_(mythology)", DandelionLanglinksTable.url("en", "Paris (mythology)"));
+        assertEquals("https://en.wikipedia.org/wiki/AC/DC:_Let_There_Be_Rock", DandelionLanglinksTable.url("en", "AC/DC: Let There Be Rock"));
+        assertEquals("https://en.wikipedia.org/wiki/Ender%27s_Game%3F", DandelionLanglinksTable.url("en", "Ender's Game?"));
+    }
+
+    @Test
+    public void testWriterRejectsUnsortedTitles() throws IOException {
+        try (DandelionLanglinksTable.Writer writer = new DandelionLanglinksTable.Writer(createTempDir().resolve("it.langlinks"), "it")) {
+            writer.add("Roma", langlinks());
+            expectThrows(IllegalArgumentException.class, () -> writer.add("Parigi", langlinks()));
+            expectThrows(IllegalArgumentException.class, () -> writer.add("Roma", langlinks()));
+        }
+    }
+
+    @Test
+    public void testLoadAll() throws IOException {
+        Path directory = createTempDir();
+        writeTable(directory, "it", Collections.singletonMap("Roma", langlinks("en", "Rome")));
+        writeTable(directory, "en", Collections.emptyMap());
+        Files.write(directory.resolve("xx.langlinks"), "ignored".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, DandelionLanglinksTable> tables = DandelionLanglinksTable.loadAll(directory);
+        try {
+            assertEquals(2, tables.size());
+            assertNull(tables.get("en").get("Rome"));
+            assertArrayEquals(new String[] {"https://en.wikipedia.org/wiki/Rome"}, tables.get("it").get("Roma"));
+        } finally {
+            DandelionLanglinksTable.closeAll(tables.values());
+        }
+        assertEquals(0, DandelionLanglinksTable.loadAll(directory.resolve("missing")).size());
+
+        Path corrupted = createTempDir();
+        Path path = writeTable(corrupted, "it", Collections.singletonMap("Roma", langlinks("en", "Rome")));
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(path, bytes);
+        expectThrows(IOException.class, () -> DandelionLanglinksTable.loadAll(corrupted));
+    }
+
+    @Test
+    public void testToolReadsSqlDumps() throws IOException {
+        Path directory = createTempDir();
+        Path pageDump = directory.resolve("itwiki-latest-page.sql");
+        Files.write(pageDump, ("-- MySQL dump\n"
+            + "INSERT INTO `page` VALUES (1,0,'Roma',0,0,0.1,'20180101000000',NULL,1,10,'wikitext',NULL),"
+            + "(2,0,'L\\'Aquila',0,0,0.2,'20180101000000',NULL,2,20,'wikitext',NULL),(3,14,'Città',0,0,0.3,'20180101000000',NULL,3,30,'wikitext',NULL);\n"
+            + "INSERT INTO `page` VALUES (4,0,'Isola_d\\'Elba',0,0,0.4,'20180101000000',NULL,4,40,'wikitext',NULL);\n"
+            + "UNLOCK TABLES;\n").getBytes(StandardCharsets.UTF_8));
+        Path langlinksDump = directory.resolve("itwiki-latest-langlinks.sql");
+        Files.write(langlinksDump, ("INSERT INTO `langlinks` VALUES (1,'de','Rom'),(1,'en','Rome'),(1,'la','Roma'),"
+            + "(2,'en','L\\'Aquila'),(3,'en','Category:City'),(4,'en','Elba'),(5,'en','Missing');\n").getBytes(StandardCharsets.UTF_8));
+        Path pagePropsDump = directory.resolve("itwiki-latest-page_props.sql");
+        Files.write(pagePropsDump, ("INSERT INTO `page_props` VALUES (1,'wikibase_item','Q220',NULL),(1,'page_image_free','Roma.jpg',NULL),"
+            + "(4,'wikibase_item','Q13275',NULL);\n").getBytes(StandardCharsets.UTF_8));
+
+        Map<BytesRef, Map<String, String>> pages = DandelionLanglinksTool.readSqlDumps(pageDump, langlinksDump, null);
+        assertEquals(Arrays.asList("Isola_d'Elba", "L'Aquila", "Roma"),
+            Arrays.asList(pages.keySet().stream().map(BytesRef::utf8ToString).toArray()));
+        assertEquals(langlinks("de", "Rom", "en", "Rome"), pages.get(new BytesRef("Roma")));
+        assertEquals(langlinks("en", "L'Aquila"), pages.get(new BytesRef("L'Aquila")));
+
+        pages = DandelionLanglinksTool.readSqlDumps(pageDump, langlinksDump, pagePropsDump);
+        assertEquals(langlinks("de", "Rom", "en", "Rome", "wikidata", "Q220"), pages.get(new BytesRef("Roma")));
+        assertEquals(langlinks("en", "Elba", "wikidata", "Q13275"), pages.get(new BytesRef("Isola_d'Elba")));
+
+        Path malformed = directory.resolve("malformed.sql");
+        Files.write(malformed, "INSERT INTO `langlinks` VALUES (1,'de','Rom".getBytes(StandardCharsets.UTF_8));
+        expectThrows(IOException.class, () -> DandelionLanglinksTool.readInserts(malformed, values -> {}));
+    }
+
+    @Test
+    public void testToolReadsTabSeparatedLanglinks() throws IOException {
+        Path input = createTempDir().resolve("langlinks.tsv");
+        Files.write(input, "Roma\ten\tRome\nRoma\tde\tRom\nRoma\txx\tRoma\nRoma\twikidata\tQ220\nTrento\n".getBytes(StandardCharsets.UTF_8));
+
+        Map<BytesRef, Map<String, String>> pages = DandelionLanglinksTool.readTsv(input);
+        assertEquals(2, pages.size());
+        assertEquals(langlinks("de", "Rom", "en", "Rome", "wikidata", "Q220"), pages.get(new BytesRef("Roma")));
+        assertEquals(langlinks(), pages.get(new BytesRef("Trento")));
+    }
+
+    @Test
+    public void testTokenFilterWithLanglinksTable() throws IOException {
+        Map<String, Map<String, String>> pages = new TreeMap<>();
+        pages.put("Mona Lisa", langlinks("fr", "La Joconde", "it", "Gioconda", "wikidata", "Q12418"));
+        pages.put("Louvre", langlinks());
+        DandelionLanglinksTable table = DandelionLanglinksTable.open(writeTable(createTempDir(), "en", pages));
+        DandelionTokenFilter.setLanglinksTables(Collections.singletonMap("en", table), false);
+
+        String text = "Mona Lisa, Louvre, Paris.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 11, 19}, new int[] {9, 17, 24},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa", "http://en.wikipedia.org/wiki/Louvre",
+                "http://en.wikipedia.org/wiki/Paris"});
+        String value = annotations.encodeInline(text);
+        int headerLength = value.length() - text.length();
+
+        try {
+            // all the entities are resolved by the table (Paris is missing and has no fallback), without requests
+            Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+            dandelionTokenizer.setReader(new StringReader(value));
+            TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true");
+            BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+                new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa", "https://fr.wikipedia.org/wiki/La_Joconde",
+                    "https://it.wikipedia.org/wiki/Gioconda", "https://en.wikipedia.org/wiki/Louvre", "https://en.wikipedia.org/wiki/Paris"},
+                new int[] {headerLength, headerLength, headerLength, headerLength + 11, headerLength + 19},
+                new int[] {headerLength + 9, headerLength + 9, headerLength + 9, headerLength + 17, headerLength + 24},
+                new String[] {"word", "word", "word", "word", "word"},
+                new int[] {1, 0, 0, 2, 2}
+            );
+
+            // the Wikidata items come from the same table
+            dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+            dandelionTokenizer.setReader(new StringReader(value));
+            tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "wikidata");
+            BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+                new String[] {"https://www.wikidata.org/wiki/Q12418", "https://en.wikipedia.org/wiki/Louvre",
+                    "https://en.wikipedia.org/wiki/Paris"},
+                new int[] {headerLength, headerLength + 11, headerLength + 19},
+                new int[] {headerLength + 9, headerLength + 17, headerLength + 24},
+                new String[] {"word", "word", "word"},
+                new int[] {1, 2, 2}
+            );
+        } finally {
+            table.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class DandelionRateLimiterTests extends ESTestCase {
+
+    @Test
+    public void testAdmissionControlRejectsRequestsAboveTheRate() throws IOException {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 2, 0, true,
+            TimeValue.timeValueSeconds(30), TimeValue.timeValueMinutes(1));
+
+        limiter.acquire(1);
+        limiter.acquire(1);
+        EsRejectedExecutionException e = expectThrows(EsRejectedExecutionException.class, () -> limiter.acquire(1));
+        assertEquals(RestStatus.TOO_MANY_REQUESTS, e.status());
+    }
+
+    @Test
+    public void testRequestsWaitForTokens() throws IOException {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 20, 0, false,
+            TimeValue.timeValueSeconds(30), TimeValue.timeValueMinutes(1));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire(1);
+        }
+        // 20 requests of burst, then 10 requests at 20 per second
+        assertTrue(System.nanoTime() - start >= TimeValue.timeValueMillis(400).nanos());
+    }
+
+    @Test
+    public void testRequestsWaitingMoreThanMaxWaitAreRejected() throws IOException {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 0, 1, false,
+            TimeValue.timeValueMillis(100), TimeValue.timeValueMinutes(1));
+
+        limiter.acquire(1);
+        expectThrows(EsRejectedExecutionException.class, () -> limiter.acquire(1));
+    }
+
+    @Test
+    public void testQuotaIsLearnedFromTheResponses() throws IOException {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 0, 10, true,
+            TimeValue.timeValueSeconds(30), TimeValue.timeValueMinutes(1));
+
+        // the request actually consumed 10 units instead of 1, that is the whole burst
+        limiter.acquire(1);
+        limiter.onResponse(1, "10", "1000");
+        expectThrows(EsRejectedExecutionException.class, () -> limiter.acquire(1));
+
+        DandelionRateLimiter unlimited = new DandelionRateLimiter("dandelion", 0, 0, true,
+            TimeValue.timeValueSeconds(30), TimeValue.timeValueMinutes(1));
+        unlimited.acquire(1);
+        unlimited.onResponse(1, "1", "0");
+        EsRejectedExecutionException e = expectThrows(EsRejectedExecutionException.class, () -> unlimited.acquire(1));
+        assertTrue(e.getMessage().contains("no units left"));
+    }
+
+    @Test
+    public void testSearchRequestsCanTakeTheReserve() throws IOException {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 0, 10, false,
+            TimeValue.timeValueMillis(10), TimeValue.timeValueMinutes(1), 0.5);
+
+        // index requests leave 5 of the 10 units of burst to the search requests
+        limiter.acquire(5);
+        expectThrows(EsRejectedExecutionException.class, () -> limiter.acquire(5));
+        limiter.acquire(5, true);
+        // search requests never wait for tokens
+        EsRejectedExecutionException e = expectThrows(EsRejectedExecutionException.class, () -> limiter.acquire(5, true));
+        assertTrue(e.getMessage().contains("rate limit exceeded"));
+    }
+}
@@ -0,0 +1,134 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class DandelionRequestCoalescerTests extends ESTestCase {
+
+    private static final String ENTITY = "Mona Lisa";
+    private static final String URI = "http://en.wikipedia.org/wiki/Mona_Lisa";
+
+    // annotates every occurrence of ENTITY, like Dandelion API would do
+    private DandelionAnnotations annotateEntity(String text) {
+        List<Integer> starts = new ArrayList<>();
+        for (int start = text.indexOf(ENTITY); start >= 0; start = text.indexOf(ENTITY, start + 1)) {
+            starts.add(start);
+        }
+        int[] startArray = new int[starts.size()];
+        int[] endArray = new int[starts.size()];
+        String[] uris = new String[starts.size()];
+        for (int i = 0; i < starts.size(); i++) {
+            startArray[i] = starts.get(i);
+            endArray[i] = starts.get(i) + ENTITY.length();
+            uris[i] = URI;
+        }
+        return new DandelionAnnotations(startArray, endArray, uris);
+    }
+
+    private void runConcurrently(int threads, DandelionRequestCoalescer coalescer, DandelionRequestCoalescer.Sender sender,
+                                 String lang, DandelionAnnotations[] results, Exception[] failures) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    barrier.await();
+                    results[index] = coalescer.annotate(index + ": " + ENTITY + ".", "token", lang, sender);
+                } catch (Exception e) {
+                    failures[index] = e;
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        int threads = 8;
+        AtomicInteger requests = new AtomicInteger();
+        DandelionRequestCoalescer.Sender sender = (text, auth_token, lang) -> {
+            requests.incrementAndGet();
+            return annotateEntity(text);
+        };
+        DandelionRequestCoalescer coalescer = new DandelionRequestCoalescer(TimeValue.timeValueMillis(500), 1024 * 1024);
+
+        DandelionAnnotations[] results = new DandelionAnnotations[threads];
+        Exception[] failures = new Exception[threads];
+        runConcurrently(threads, coalescer, sender, "en", results, failures);
+
+        assertTrue(requests.get() < threads);
+        for (int i = 0; i < threads; i++) {
+            assertNull(failures[i]);
+            String text = i + ": " + ENTITY + ".";
+            assertEquals(1, results[i].size());
+            assertEquals(text.indexOf(ENTITY), results[i].start(0));
+            assertEquals(text.indexOf(ENTITY) + ENTITY.length(), results[i].end(0));
+            assertEquals(URI, results[i].uri(0));
+        }
+    }
+
+    @Test
+    public void testRequestsWithAutomaticLanguageAreNotCoalesced() throws Exception {
+        int threads = 4;
+        AtomicInteger requests = new AtomicInteger();
+        DandelionRequestCoalescer.Sender sender = (text, auth_token, lang) -> {
+            requests.incrementAndGet();
+            return annotateEntity(text);
+        };
+        DandelionRequestCoalescer coalescer = new DandelionRequestCoalescer(TimeValue.timeValueMillis(500), 1024 * 1024);
+
+        DandelionAnnotations[] results = new DandelionAnnotations[threads];
+        Exception[] failures = new Exception[threads];
+        runConcurrently(threads, coalescer, sender, "auto", results, failures);
+
+        assertEquals(threads, requests.get());
+    }
+
+    @Test
+    public void testFailuresArePropagatedToAllTheRequests() throws Exception {
+        int threads = 4;
+        DandelionRequestCoalescer.Sender sender = (text, auth_token, lang) -> {
+            throw new IOException("no such token 'token'");
+        };
+        DandelionRequestCoalescer coalescer = new DandelionRequestCoalescer(TimeValue.timeValueMillis(500), 1024 * 1024);
+
+        DandelionAnnotations[] results = new DandelionAnnotations[threads];
+        Exception[] failures = new Exception[threads];
+        runConcurrently(threads, coalescer, sender, "en", results, failures);
+
+        for (int i = 0; i < threads; i++) {
+            assertNull(results[i]);
+            assertTrue(failures[i] instanceof IOException);
+            assertEquals("no such token 'token'", failures[i].getMessage());
+        }
+    }
+
+    @Test
+    public void testSplitDropsAnnotationsCrossingSegments() {
+        List<String> texts = new ArrayList<>();
+        texts.add("Mona");
+        texts.add("Lisa. " + ENTITY);
+        int[] bases = new int[] {0, 4 + DandelionRequestCoalescer.SEPARATOR.length()};
+        DandelionAnnotations combined = new DandelionAnnotations(new int[] {0, bases[1] + 6}, new int[] {bases[1] + 4, bases[1] + 15},
+            new String[] {URI, URI});
+
+        DandelionAnnotations[] split = DandelionRequestCoalescer.split(combined, texts, bases);
+
+        assertEquals(0, split[0].size());
+        assertEquals(1, split[1].size());
+        assertEquals(6, split[1].start(0));
+        assertEquals(15, split[1].end(0));
+    }
+}
@@ -0,0 +1,106 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DandelionSingleFlightTests extends ESTestCase {
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Test
+    public void testIdenticalRequestsInFlightShareTheResponse() throws Exception {
+        DandelionSingleFlight<String, String> singleFlight = new DandelionSingleFlight<>();
+        DandelionStats.Endpoint stats = new DandelionStats.Endpoint();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch sent = new CountDownLatch(1);
+        CountDownLatch response = new CountDownLatch(1);
+
+        int threads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(executor.submit(() -> singleFlight.execute("text=Mona+Lisa", stats, () -> {
+                calls.incrementAndGet();
+                sent.countDown();
+                await(response);
+                return "annotations";
+            })));
+            sent.await();
+            for (int i = 1; i < threads; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("text=Mona+Lisa", stats, () -> {
+                    calls.incrementAndGet();
+                    return "other annotations";
+                })));
+            }
+            assertBusy(() -> assertEquals(threads - 1, stats.deduplicated()));
+            // a different request is not held back
+            assertEquals("louvre", singleFlight.execute("text=Louvre", stats, () -> "louvre"));
+
+            response.countDown();
+            for (Future<String> result : results) {
+                assertEquals("annotations", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.size());
+
+        // completed requests are not kept
+        assertEquals("new annotations", singleFlight.execute("text=Mona+Lisa", stats, () -> "new annotations"));
+        assertEquals(threads - 1, stats.deduplicated());
+    }
+
+    @Test
+    public void testFailuresAreSharedAndNotKept() throws Exception {
+        DandelionSingleFlight<String, String> singleFlight = new DandelionSingleFlight<>();
+        DandelionStats.Endpoint stats = new DandelionStats.Endpoint();
+        CountDownLatch sent = new CountDownLatch(1);
+        CountDownLatch response = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> singleFlight.execute("text=Mona+Lisa", stats, () -> {
+                sent.countDown();
+                await(response);
+                throw new DandelionUnavailableException("dandelion is unavailable");
+            }));
+            sent.await();
+            Future<String> follower = executor.submit(() -> singleFlight.execute("text=Mona+Lisa", stats, () -> "annotations"));
+            assertBusy(() -> assertEquals(1, stats.deduplicated()));
+            response.countDown();
+
+            for (Future<String> result : Arrays.asList(leader, follower)) {
+                Exception e = expectThrows(Exception.class, () -> result.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof DandelionUnavailableException);
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        assertEquals("annotations", singleFlight.execute("text=Mona+Lisa", null, () -> "annotations"));
+        expectThrows(IOException.class, () -> singleFlight.execute("text=Louvre", null, () -> {
+            throw new IOException("connection reset");
+        }));
+        assertEquals(0, singleFlight.size());
+    }
+}
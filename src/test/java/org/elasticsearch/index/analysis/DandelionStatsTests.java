@@ -0,0 +1,57 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class DandelionStatsTests extends ESTestCase {
+
+    @Test
+    public void testLatencyPercentiles() {
+        DandelionStats.LatencyHistogram histogram = new DandelionStats.LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(0.5));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeValue.timeValueMillis(i).nanos());
+        }
+        assertEquals(50000, histogram.percentileMicros(0.50), 50000 * 0.15);
+        assertEquals(95000, histogram.percentileMicros(0.95), 95000 * 0.15);
+        assertEquals(99000, histogram.percentileMicros(0.99), 99000 * 0.15);
+        assertEquals(100000, histogram.maxMicros());
+        // percentiles never exceed the maximum
+        assertTrue(histogram.percentileMicros(1.0) <= 100000);
+    }
+
+    @Test
+    public void testBucketsAreContiguous() {
+        int previous = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = DandelionStats.LatencyHistogram.bucket(micros);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            previous = bucket;
+        }
+        assertEquals(DandelionStats.LatencyHistogram.bucket(Long.MAX_VALUE), DandelionStats.LatencyHistogram.bucket(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void testEndpointCounters() {
+        DandelionStats.Endpoint endpoint = new DandelionStats.Endpoint();
+        endpoint.onRequest(100);
+        endpoint.onRequest(200);
+        endpoint.onRequest(300);
+        assertEquals(3, endpoint.inFlight());
+
+        endpoint.onResponse(200, TimeValue.timeValueMillis(10).nanos(), 1000, "2.5");
+        endpoint.onResponse(503, TimeValue.timeValueMillis(20).nanos(), 50, null);
+        endpoint.onFailure(TimeValue.timeValueSeconds(5).nanos());
+
+        assertEquals(3, endpoint.requests());
+        assertEquals(0, endpoint.inFlight());
+        assertEquals(600, endpoint.requestBytes());
+        assertEquals(1050, endpoint.responseBytes());
+        assertEquals(2.5, endpoint.units(), 0.0);
+        assertEquals(Long.valueOf(1), endpoint.errors().get("503"));
+        assertEquals(Long.valueOf(1), endpoint.errors().get("io_error"));
+        assertEquals(2, endpoint.errors().size());
+    }
+}
@@ -0,0 +1,144 @@
+package org.elasticsearch.index.analysis;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DandelionTextSegmenterTests extends ESTestCase {
+
+    private static final String ENTITY = "Mona Lisa";
+    private static final String URI = "http://en.wikipedia.org/wiki/Mona_Lisa";
+
+    // annotates every occurrence of ENTITY, like Dandelion API would do
+    private DandelionAnnotations annotateEntity(String text) {
+        List<Integer> starts = new ArrayList<>();
+        for (int start = text.indexOf(ENTITY); start >= 0; start = text.indexOf(ENTITY, start + 1)) {
+            starts.add(start);
+        }
+        int[] startArray = new int[starts.size()];
+        int[] endArray = new int[starts.size()];
+        String[] uris = new String[starts.size()];
+        for (int i = 0; i < starts.size(); i++) {
+            startArray[i] = starts.get(i);
+            endArray[i] = starts.get(i) + ENTITY.length();
+            uris[i] = URI;
+        }
+        return new DandelionAnnotations(startArray, endArray, uris);
+    }
+
+    private String longText(int sentences) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < sentences; i++) {
+            text.append("Sentence number ").append(i).append(" talks about the ").append(ENTITY).append(" painting.");
+            text.append(i % 10 == 9 ? "\n\n" : " ");
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void testSegmentsCoverTheTextAndEndAtBoundaries() {
+        String text = longText(500);
+        int segmentSize = 1000;
+        int overlap = 200;
+
+        int[] bounds = DandelionTextSegmenter.split(text, segmentSize, overlap);
+
+        assertEquals(0, bounds[0]);
+        assertEquals(text.length(), bounds[bounds.length - 1]);
+        for (int i = 0; i < bounds.length; i += 2) {
+            assertTrue(bounds[i + 1] - bounds[i] <= segmentSize);
+            if (i > 0) {
+                assertTrue(bounds[i] > bounds[i - 2]);
+                assertTrue(bounds[i] <= bounds[i - 1]);
+                assertTrue(bounds[i - 1] - bounds[i] <= overlap);
+            }
+            if (bounds[i + 1] < text.length()) {
+                assertTrue(Character.isWhitespace(text.charAt(bounds[i + 1] - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void testMergedAnnotationsMatchTheWholeText() {
+        String text = longText(500);
+        int[] bounds = DandelionTextSegmenter.split(text, 1000, 200);
+
+        DandelionAnnotations[] segments = new DandelionAnnotations[bounds.length / 2];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = annotateEntity(text.substring(bounds[2 * i], bounds[2 * i + 1]));
+        }
+        DandelionAnnotations merged = DandelionTextSegmenter.merge(bounds, segments);
+
+        DandelionAnnotations expected = annotateEntity(text);
+        assertEquals(expected.size(), merged.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.start(i), merged.start(i));
+            assertEquals(expected.end(i), merged.end(i));
+            assertEquals(expected.uri(i), merged.uri(i));
+        }
+    }
+
+    @Test
+    public void testSegmentsRejectedByASaturatedPoolAreAnnotatedByTheCaller() throws Exception {
+        String text = longText(100);
+        int[] bounds = DandelionTextSegmenter.split(text, 1000, 200);
+        assertTrue(bounds.length > 2);
+
+        // the segments are served from the cache, so that no request is sent to Dandelion API
+        DandelionAnnotationCache annotationCache = new DandelionAnnotationCache(1024 * 1024);
+        for (int i = 0; i < bounds.length; i += 2) {
+            String segment = text.substring(bounds[i], bounds[i + 1]);
+            annotationCache.put(DandelionAnnotationCache.key(segment, DandelionTokenizer.NEX_URL, "en", "token"), annotateEntity(segment));
+        }
+
+        // the only thread and the queue of the pool are taken: it rejects the segments with its own exception
+        CountDownLatch release = new CountDownLatch(1);
+        EsThreadPoolExecutor executor = EsExecutors.newFixed("dandelion", 1, 1, EsExecutors.daemonThreadFactory("dandelion"),
+            new ThreadContext(Settings.EMPTY));
+        for (int i = 0; i < 2; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        DandelionTokenizer.setAnnotationCache(annotationCache);
+        DandelionTokenizer.setExecutor(executor);
+        DandelionAnnotations merged;
+        try {
+            merged = DandelionTokenizer.annotate(text, "token", "en", 1000, 200);
+        } finally {
+            DandelionTokenizer.setAnnotationCache(null);
+            DandelionTokenizer.setExecutor(null);
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        DandelionAnnotations expected = annotateEntity(text);
+        assertEquals(expected.size(), merged.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.start(i), merged.start(i));
+            assertEquals(expected.end(i), merged.end(i));
+        }
+    }
+
+    @Test
+    public void testTextWithoutBoundariesIsSplitAtTheSegmentSize() {
+        String text = new String(new char[2500]).replace('\0', 'x');
+
+        int[] bounds = DandelionTextSegmenter.split(text, 1000, 100);
+
+        assertArrayEquals(new int[] {0, 1000, 1000, 2000, 2000, 2500}, bounds);
+    }
+}
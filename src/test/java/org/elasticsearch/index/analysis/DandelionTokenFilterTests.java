@@ -4,9 +4,17 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import org.apache.lucene.analysis.BaseTokenStreamTestCase;
+import org.apache.lucene.analysis.CannedTokenStream;
 import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.analysis.Token;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.index.analysis.mock.HttpsUrlStreamHandler;
 import org.elasticsearch.test.ESTestCase;
 import org.junit.Before;
@@ -25,7 +33,12 @@ import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.mock.orig.Mockito.*;
 import static org.mockito.BDDMockito.given;
@@ -55,6 +68,9 @@ public class DandelionTokenFilterTests extends ESTestCase {
     @Before
     public void reset() {
         httpsUrlStreamHandler.resetConnections();
+        DandelionTokenFilter.setLanglinksCache(null);
+        DandelionTokenFilter.setCircuitBreaker(null);
+        DandelionTokenFilter.setLookaheadExecutor(null);
         tokenizerHttpUrlConnection = null;
         tokenFilterHttpUrlConnection = null;
         params_expected = "";
@@ -172,6 +188,26 @@ public class DandelionTokenFilterTests extends ESTestCase {
         );
     }
 
+    @Test
+    public void testTokenFilterReadsTheEntitiesFromTheTypesOfOtherTokenStreams() throws IOException{
+        Token trento = new Token("Trento", 0, 6);
+        trento.setType("https://it.wikipedia.org/wiki/Trento");
+        Token word = new Token("città", 13, 18);
+        Token italia = new Token("Italia", 28, 34);
+        italia.setType("https://it.wikipedia.org/wiki/Italia");
+
+        BaseTokenStreamTestCase.assertTokenStreamContents(new DandelionTokenFilter(new CannedTokenStream(trento, word, italia), "false"),
+            new String[] {"https://it.wikipedia.org/wiki/Trento", "https://it.wikipedia.org/wiki/Italia"},
+            new int[] {0, 28},
+            new int[] {6, 34},
+            new String[] {"word", "word"},
+            new int[] {1, 2}
+        );
+        BaseTokenStreamTestCase.assertTokenStreamContents(
+            new DandelionTokenFilter(new CannedTokenStream(trento, word, italia), "false", null, null, "title"),
+            new String[] {"it:Trento", "it:Italia"});
+    }
+
     @Test
     public void testTokenFilterWithEntityTokensAndStandardSettings() throws IOException{
         String text = "Trento è una città del Nord Italia.";
@@ -201,7 +237,7 @@ public class DandelionTokenFilterTests extends ESTestCase {
         String multilang = "Ciao";
 
         thrown.expect(IllegalArgumentException.class);
-        thrown.expectMessage("Illegal multilang parameter value: only true/false are allowed!");
+        thrown.expectMessage("Illegal multilang parameter value: only true/false/wikidata are allowed!");
 
         Tokenizer tokenizer = new MockTokenizer(); //whitespace
         tokenizer.setReader(new StringReader(text));
@@ -384,4 +420,319 @@ public class DandelionTokenFilterTests extends ESTestCase {
         verify(tokenFilterHttpUrlConnection,times(numberOfTimes)).getInputStream();
     }
 
+    @Test
+    public void testTokenFilterWithMultiLangEnabledAndLanglinksCache() throws IOException {
+        String text = "La Torre Eiffel è altissima.";
+        String auth_token = "token";
+        String langT = "auto";
+        String multilang = "true";
+
+        String responseDataT = "{\"time\":1,\"annotations\":[{\"start\":3,\"end\":15,\"spot\":\"Torre Eiffel\",\"confidence\":0.9219,\"id\":10357,\"title\":\"Torre Eiffel\",\"uri\":\"http://it.wikipedia.org/wiki/Torre_Eifel\",\"label\":\"Torre Eiffel\"}],\"lang\":\"it\",\"langConfidence\":0.5001,\"timestamp\":\"2018-04-12T07:23:44.406\"}";
+
+        String langTF= "it";
+        int status = 200;
+        String [] reqTitles = new String[] {"Torre_Eifel"};
+        String [] responseDataTF = new String[] {"{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Torre_Eifel\",\"to\":\"Torre Eifel\"}],\"pages\":{\"-1\":{\"ns\":0,\"title\":\"Torre Eifel\",\"missing\":\"\"}}}}"};
+        configTokenFilterMockResponse(langTF,status,reqTitles,responseDataTF);
+
+        DandelionLanglinksCache langlinksCache = new DandelionLanglinksCache(1024 * 1024, TimeValue.timeValueHours(1),
+            TimeValue.timeValueHours(1), 1.0, null);
+        DandelionTokenFilter.setLanglinksCache(langlinksCache);
+        try {
+            for (int i = 0; i < 3; i++) {
+                configTokenizerMockResponse(responseDataT);
+                Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, langT);
+                dandelionTokenizer.setReader(new StringReader(text));
+                TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, multilang);
+
+                BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+                    new String[]{"https://it.wikipedia.org/wiki/Torre_Eifel"},
+                    new int[]{3},
+                    new int[]{15},
+                    new String[]{"word"},
+                    new int[]{2}
+                );
+            }
+        } finally {
+            DandelionTokenFilter.setLanglinksCache(null);
+        }
+
+        verify(tokenFilterHttpUrlConnection,times(1)).getOutputStream();
+        assertEquals(params_expected, params_sent);
+        verify(tokenFilterHttpUrlConnection,times(1)).getInputStream();
+        assertEquals(2, langlinksCache.stats().getHits());
+    }
+
+    @Test
+    public void testTokenFilterWithMultiLangEnabledAndContinuedResponse() throws IOException {
+        String text = "La Torre Eiffel si trova a Parigi.";
+        String auth_token = "token";
+        String langT = "auto";
+        String multilang = "true";
+
+        String responseDataT = "{\"time\":2,\"annotations\":[{\"start\":3,\"end\":15,\"spot\":\"Torre Eiffel\",\"confidence\":0.9219,\"id\":10357,\"title\":\"Torre Eiffel\",\"uri\":\"http://it.wikipedia.org/wiki/Torre_Eiffel\",\"label\":\"Torre Eiffel\"},{\"start\":27,\"end\":33,\"spot\":\"Parigi\",\"confidence\":0.899,\"id\":3198,\"title\":\"Parigi\",\"uri\":\"http://it.wikipedia.org/wiki/Parigi\",\"label\":\"Parigi\"}],\"lang\":\"it\",\"langConfidence\":0.5001,\"timestamp\":\"2018-04-12T07:23:44.406\"}";
+        configTokenizerMockResponse(responseDataT);
+
+        String langTF= "it";
+        int status = 200;
+        String [] reqTitles = new String[] {"Torre_Eiffel%7CParigi", "Torre_Eiffel%7CParigi"};
+        String [] responseDataTF = new String[] {
+            "{\"continue\":{\"llcontinue\":\"3198|de\",\"continue\":\"||\"},\"query\":{\"normalized\":[{\"from\":\"Torre_Eiffel\",\"to\":\"Torre Eiffel\"}],\"pages\":{\"3198\":{\"pageid\":3198,\"ns\":0,\"title\":\"Parigi\",\"langlinks\":[{\"lang\":\"af\",\"url\":\"https://af.wikipedia.org/wiki/Parys\",\"*\":\"Parys\"}]},\"10357\":{\"pageid\":10357,\"ns\":0,\"title\":\"Torre Eiffel\",\"langlinks\":[{\"lang\":\"af\",\"url\":\"https://af.wikipedia.org/wiki/Eiffeltoring\",\"*\":\"Eiffeltoring\"}]}}}}",
+            "{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Torre_Eiffel\",\"to\":\"Torre Eiffel\"}],\"pages\":{\"3198\":{\"pageid\":3198,\"ns\":0,\"title\":\"Parigi\",\"langlinks\":[{\"lang\":\"de\",\"url\":\"https://de.wikipedia.org/wiki/Paris\",\"*\":\"Paris\"}]},\"10357\":{\"pageid\":10357,\"ns\":0,\"title\":\"Torre Eiffel\",\"langlinks\":[{\"lang\":\"de\",\"url\":\"https://de.wikipedia.org/wiki/Eiffelturm\",\"*\":\"Eiffelturm\"}]}}}}"
+        };
+        configTokenFilterMockResponse(langTF,status,reqTitles,responseDataTF);
+        params_expected = "action=query&titles=Torre_Eiffel%7CParigi&prop=langlinks&lllimit=500&llprop=url&format=json" +
+            "action=query&titles=Torre_Eiffel%7CParigi&prop=langlinks&lllimit=500&llprop=url&format=json&llcontinue=3198%7Cde&continue=%7C%7C";
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,langT);
+        dandelionTokenizer.setReader(new StringReader(text));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer,multilang);
+
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"https://it.wikipedia.org/wiki/Torre_Eiffel","https://af.wikipedia.org/wiki/Eiffeltoring","https://de.wikipedia.org/wiki/Eiffelturm",
+                "https://it.wikipedia.org/wiki/Parigi","https://af.wikipedia.org/wiki/Parys","https://de.wikipedia.org/wiki/Paris"},
+            new int[] {3,3,3,27,27,27},
+            new int[] {15,15,15,33,33,33},
+            new String[] {"word","word","word","word","word","word"},
+            new int[] {2,0,0,2,0,0}
+        );
+
+        verify(tokenFilterHttpUrlConnection,times(2)).getOutputStream();
+        assertEquals(params_expected, params_sent);
+        verify(tokenFilterHttpUrlConnection,times(2)).getInputStream();
+    }
+
+    @Test
+    public void testTokenFilterDegradesWhileWikipediaIsUnavailable() throws IOException {
+        String text = "Mona Lisa.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0}, new int[] {9},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa"});
+        String value = annotations.encodeInline(text);
+        int headerLength = value.length() - text.length();
+
+        DandelionCircuitBreaker breaker = new DandelionCircuitBreaker("wikipedia", 0.5, TimeValue.timeValueSeconds(10), 10, 1,
+            TimeValue.timeValueMinutes(1), 1);
+        breaker.onResult(true, 0);
+        DandelionTokenFilter.setCircuitBreaker(breaker);
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true", "degrade");
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa", DandelionTokenFilter.MULTILANG_DEGRADED_MARKER},
+            new int[] {headerLength, headerLength + 9},
+            new int[] {headerLength + 9, headerLength + 9},
+            new String[] {"word", DandelionTokenizer.MARKER_TYPE},
+            new int[] {1, 2}
+        );
+
+        thrown.expect(DandelionUnavailableException.class);
+        dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true");
+        tokenFilter.reset();
+        tokenFilter.incrementToken();
+    }
+
+    @Test
+    public void testCompactEntity() {
+        assertEquals("it:Trento", DandelionTokenFilter.compactEntity("https://it.wikipedia.org/wiki/Trento"));
+        assertEquals("it:L'Aquila", DandelionTokenFilter.compactEntity("http://it.wikipedia.org/wiki/L%27Aquila"));
+        // the encodings of Dandelion API and Wikipedia give the same compact form
+        assertEquals("it:Leonardo_(Tartarughe_Ninja)",
+            DandelionTokenFilter.compactEntity("http://it.wikipedia.org/wiki/Leonardo_%28Tartarughe_Ninja%29"));
+        assertEquals("it:Leonardo_(Tartarughe_Ninja)",
+            DandelionTokenFilter.compactEntity("https://it.wikipedia.org/wiki/Leonardo_(Tartarughe_Ninja)"));
+        assertEquals("ru:Ватикан", DandelionTokenFilter.compactEntity("https://ru.wikipedia.org/wiki/%D0%92%D0%B0%D1%82%D0%B8%D0%BA%D0%B0%D0%BD"));
+        assertEquals("en:C++", DandelionTokenFilter.compactEntity("https://en.wikipedia.org/wiki/C++"));
+        assertEquals("en:100%_(song)", DandelionTokenFilter.compactEntity("https://en.wikipedia.org/wiki/100%_(song)"));
+
+        assertEquals("it:Trento", DandelionTokenFilter.compactEntity("it:Trento"));
+        assertEquals("https://example.com/it.wikipedia.org/wiki/Trento",
+            DandelionTokenFilter.compactEntity("https://example.com/it.wikipedia.org/wiki/Trento"));
+    }
+
+    @Test
+    public void testTokenFilterWithTitleEncoding() throws IOException {
+        String text = "Trento è una città del Nord Italia.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 13}, new int[] {6, 18},
+            new String[] {"http://it.wikipedia.org/wiki/Trento", "http://it.wikipedia.org/wiki/L%27Aquila"});
+        String value = annotations.encodeInline(text);
+        int headerLength = value.length() - text.length();
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "false", null, null, "title");
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"it:Trento", "it:L'Aquila"},
+            new int[] {headerLength, headerLength + 13},
+            new int[] {headerLength + 6, headerLength + 18},
+            new String[] {"word", "word"},
+            new int[] {1, 2}
+        );
+
+        Tokenizer tokenizer = new MockTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+            () -> new DandelionTokenFilter(tokenizer, "false", null, null, "id"));
+        assertEquals("Illegal encoding parameter value: only url/title are allowed!", e.getMessage());
+    }
+
+    @Test
+    public void testEntityFilterRewritesUrlsInTheCompactForm() throws IOException {
+        Tokenizer tokenizer = new MockTokenizer(MockTokenizer.WHITESPACE, false);
+        tokenizer.setReader(new StringReader("https://it.wikipedia.org/wiki/L%27Aquila it:Trento http://example.com"));
+        BaseTokenStreamTestCase.assertTokenStreamContents(new DandelionEntityFilter(tokenizer),
+            new String[] {"it:L'Aquila", "it:Trento", "http://example.com"});
+    }
+
+    @Test
+    public void testTokenFilterWithWikidataIds() throws IOException {
+        String text = "Mona Lisa, Louvre.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 11}, new int[] {9, 17},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa", "http://en.wikipedia.org/wiki/Louvre"});
+        String value = annotations.encodeInline(text);
+        int headerLength = value.length() - text.length();
+
+        String responseDataTF = "{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Mona_Lisa\",\"to\":\"Mona Lisa\"}],\"pages\":{\"70889\":{\"pageid\":70889,\"ns\":0,\"title\":\"Mona Lisa\",\"pageprops\":{\"wikibase_item\":\"Q12418\"}},\"17914\":{\"pageid\":17914,\"ns\":0,\"title\":\"Louvre\"}}}}";
+        configTokenFilterMockResponse("en", HttpURLConnection.HTTP_OK, new String[] {"Mona_Lisa%7CLouvre"}, new String[] {responseDataTF});
+        DandelionLanglinksCache langlinksCache = new DandelionLanglinksCache(1024 * 1024, TimeValue.timeValueHours(1),
+            TimeValue.timeValueHours(1), 1.0, null);
+        DandelionTokenFilter.setLanglinksCache(langlinksCache);
+
+        // a single token for each entity, its Wikidata item if it has one
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "wikidata");
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"https://www.wikidata.org/wiki/Q12418", "https://en.wikipedia.org/wiki/Louvre"},
+            new int[] {headerLength, headerLength + 11},
+            new int[] {headerLength + 9, headerLength + 17},
+            new String[] {"word", "word"},
+            new int[] {1, 2}
+        );
+        assertEquals("action=query&titles=Mona_Lisa%7CLouvre&prop=pageprops&ppprop=wikibase_item&format=json", params_sent);
+
+        // the ids are cached apart from the langlinks of the same entities
+        dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "wikidata", null, null, "title");
+        BaseTokenStreamTestCase.assertTokenStreamContents(tokenFilter,
+            new String[] {"wikidata:Q12418", "en:Louvre"});
+        verify(tokenFilterHttpUrlConnection, times(1)).getInputStream();
+        assertEquals(2, langlinksCache.count());
+        assertNull(langlinksCache.getIfPresent("https://en.wikipedia.org/wiki/Mona_Lisa", entity -> null));
+
+        assertEquals("wikidata:Q12418", DandelionTokenFilter.compactEntity("http://www.wikidata.org/wiki/Q12418"));
+    }
+
+    @Test
+    public void testTokenFilterResolvesTheLanglinksOfTitlesWithSlashes() throws IOException {
+        String text = "AC/DC, Highway to Hell.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 7}, new int[] {5, 22},
+            new String[] {"http://en.wikipedia.org/wiki/AC/DC", "http://en.wikipedia.org/wiki/Highway_to_Hell"});
+        String value = annotations.encodeInline(text);
+
+        String responseDataTF = "{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Highway_to_Hell\",\"to\":\"Highway to Hell\"}],\"pages\":{\"1425\":{\"pageid\":1425,\"ns\":0,\"title\":\"AC/DC\",\"langlinks\":[{\"lang\":\"it\",\"url\":\"https://it.wikipedia.org/wiki/AC/DC\",\"*\":\"AC/DC\"}]},\"305312\":{\"pageid\":305312,\"ns\":0,\"title\":\"Highway to Hell\",\"langlinks\":[{\"lang\":\"it\",\"url\":\"https://it.wikipedia.org/wiki/Highway_to_Hell\",\"*\":\"Highway to Hell\"}]}}}}";
+        configTokenFilterMockResponse("en", HttpURLConnection.HTTP_OK, new String[] {"AC/DC%7CHighway_to_Hell"}, new String[] {responseDataTF});
+
+        // the whole title follows the path of the url, not only its last segment
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true", null, null, "title");
+        tokenFilter.reset();
+        assertEquals(Arrays.asList("en:AC/DC", "it:AC/DC", "en:Highway_to_Hell", "it:Highway_to_Hell"), terms(tokenFilter));
+        assertEquals(params_expected, params_sent);
+    }
+
+    private static List<String> terms(TokenFilter tokenFilter) throws IOException {
+        CharTermAttribute termAtt = tokenFilter.getAttribute(CharTermAttribute.class);
+        List<String> terms = new ArrayList<>();
+        while (tokenFilter.incrementToken()) {
+            terms.add(termAtt.toString());
+        }
+        tokenFilter.end();
+        tokenFilter.close();
+        return terms;
+    }
+
+    @Test
+    public void testTokenFilterResolvesLanglinksAhead() throws Exception {
+        String text = "Mona Lisa, Louvre.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 11}, new int[] {9, 17},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa", "http://en.wikipedia.org/wiki/Louvre"});
+        String value = annotations.encodeInline(text);
+
+        String responseDataTF = "{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Mona_Lisa\",\"to\":\"Mona Lisa\"}],\"pages\":{\"70889\":{\"pageid\":70889,\"ns\":0,\"title\":\"Mona Lisa\",\"langlinks\":[{\"lang\":\"it\",\"url\":\"https://it.wikipedia.org/wiki/Gioconda\",\"*\":\"Gioconda\"}]},\"17914\":{\"pageid\":17914,\"ns\":0,\"title\":\"Louvre\"}}}}";
+        configTokenFilterMockResponse("en", HttpURLConnection.HTTP_OK, new String[] {"Mona_Lisa%7CLouvre", "Mona_Lisa%7CLouvre"},
+            new String[] {responseDataTF, responseDataTF});
+        List<String> expected = Arrays.asList("https://en.wikipedia.org/wiki/Mona_Lisa", "https://it.wikipedia.org/wiki/Gioconda",
+            "https://en.wikipedia.org/wiki/Louvre");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        DandelionTokenFilter.setLookaheadExecutor(executor);
+        try {
+            // the langlinks of all the entities are requested as soon as the annotations are known
+            Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+            dandelionTokenizer.setReader(new StringReader(value));
+            TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true");
+            tokenFilter.reset();
+            assertBusy(() -> verify(tokenFilterHttpUrlConnection, times(1)).getInputStream());
+            assertEquals(expected, terms(tokenFilter));
+            verify(tokenFilterHttpUrlConnection, times(1)).getInputStream();
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        // the entities not looked ahead are resolved when they are reached
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true");
+        tokenFilter.reset();
+        assertEquals(expected, terms(tokenFilter));
+        verify(tokenFilterHttpUrlConnection, times(2)).getInputStream();
+        assertEquals(params_expected, params_sent);
+    }
+    @Test
+    public void testTokenFilterResolvesLanglinksWhenReachedIfTheLookaheadPoolIsSaturated() throws Exception {
+        String text = "Mona Lisa, Louvre.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0, 11}, new int[] {9, 17},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa", "http://en.wikipedia.org/wiki/Louvre"});
+        String value = annotations.encodeInline(text);
+
+        String responseDataTF = "{\"batchcomplete\":\"\",\"query\":{\"normalized\":[{\"from\":\"Mona_Lisa\",\"to\":\"Mona Lisa\"}],\"pages\":{\"70889\":{\"pageid\":70889,\"ns\":0,\"title\":\"Mona Lisa\",\"langlinks\":[{\"lang\":\"it\",\"url\":\"https://it.wikipedia.org/wiki/Gioconda\",\"*\":\"Gioconda\"}]},\"17914\":{\"pageid\":17914,\"ns\":0,\"title\":\"Louvre\"}}}}";
+        configTokenFilterMockResponse("en", HttpURLConnection.HTTP_OK, new String[] {"Mona_Lisa%7CLouvre"},
+            new String[] {responseDataTF});
+
+        // the only thread and the queue of the pool are taken: it rejects the lookahead with its own exception
+        CountDownLatch release = new CountDownLatch(1);
+        EsThreadPoolExecutor executor = EsExecutors.newFixed(DandelionTokenFilter.LOOKAHEAD_THREAD_POOL_NAME, 1, 1,
+            EsExecutors.daemonThreadFactory(DandelionTokenFilter.LOOKAHEAD_THREAD_POOL_NAME), new ThreadContext(Settings.EMPTY));
+        for (int i = 0; i < 2; i++) {
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        DandelionTokenFilter.setLookaheadExecutor(executor);
+        try {
+            Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+            dandelionTokenizer.setReader(new StringReader(value));
+            TokenFilter tokenFilter = new DandelionTokenFilter(dandelionTokenizer, "true");
+            tokenFilter.reset();
+            assertEquals(Arrays.asList("https://en.wikipedia.org/wiki/Mona_Lisa", "https://it.wikipedia.org/wiki/Gioconda",
+                "https://en.wikipedia.org/wiki/Louvre"), terms(tokenFilter));
+        } finally {
+            DandelionTokenFilter.setLookaheadExecutor(null);
+            release.countDown();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        verify(tokenFilterHttpUrlConnection, times(1)).getInputStream();
+        assertEquals(params_expected, params_sent);
+    }
 }
@@ -4,6 +4,11 @@ import static org.mockito.BDDMockito.*;
 
 import org.apache.lucene.analysis.BaseTokenStreamTestCase;
 import org.apache.lucene.analysis.Tokenizer;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
 import org.elasticsearch.index.analysis.mock.HttpsUrlStreamHandler;
 import org.elasticsearch.index.analysis.mock.URLStreamHandlerFactoryUtils;
 import org.elasticsearch.test.ESTestCase;
@@ -22,6 +27,11 @@ import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 public class DandelionTokenizerTests extends ESTestCase {
 
@@ -46,6 +56,11 @@ public class DandelionTokenizerTests extends ESTestCase {
     @Before
     public void reset() {
         httpsUrlStreamHandler.resetConnections();
+        DandelionTokenizer.setAnnotationCache(null);
+        DandelionTokenizer.setCircuitBreaker(null);
+        DandelionTokenizer.setQueryCache(null);
+        DandelionTokenizer.setSearchExecutor(null);
+        DandelionTokenizer.setSearchTimeout(DandelionTokenizer.SEARCH_TIMEOUT_SETTING.getDefault(Settings.EMPTY));
         httpUrlConnection = null;
         params_expected = "";
         params_sent = "";
@@ -173,6 +188,122 @@ public class DandelionTokenizerTests extends ESTestCase {
         verify(httpUrlConnection,times(1)).getInputStream();
     }
 
+    @Test
+    public void testTokenizerSetsTheEntityAttribute() throws IOException {
+        String text = "La Gioconda è un quadro.";
+        String auth_token = "token";
+        String lang = "it";
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":3,\"end\":11,\"spot\":\"Gioconda\",\"confidence\":0.907,\"id\":10664,\"title\":\"Gioconda\",\"uri\":\"http://it.wikipedia.org/wiki/Gioconda\",\"label\":\"Gioconda\"}],\"lang\":\"it\",\"timestamp\":\"2018-03-14T12:47:46.572\"}";
+        configMockResponse(text,auth_token,lang,HttpURLConnection.HTTP_OK,responseData);
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,lang);
+        DandelionEntityAttribute entityAtt = dandelionTokenizer.addAttribute(DandelionEntityAttribute.class);
+        dandelionTokenizer.setReader(new StringReader(text));
+        dandelionTokenizer.reset();
+
+        assertTrue(dandelionTokenizer.incrementToken());
+        assertFalse(entityAtt.isEntity());
+        assertNull(entityAtt.url());
+
+        assertTrue(dandelionTokenizer.incrementToken());
+        assertTrue(entityAtt.isEntity());
+        assertEquals("https://it.wikipedia.org/wiki/Gioconda", entityAtt.url());
+        assertEquals("it:Gioconda", entityAtt.compact());
+        assertEquals("it", entityAtt.lang());
+        assertEquals("Gioconda", entityAtt.title());
+        assertEquals(10664, entityAtt.pageId());
+        assertEquals(0.907f, entityAtt.confidence(), 0f);
+        assertEquals("Gioconda", entityAtt.spot().toString());
+
+        assertTrue(dandelionTokenizer.incrementToken());
+        assertFalse(entityAtt.isEntity());
+        assertFalse(dandelionTokenizer.incrementToken());
+        dandelionTokenizer.end();
+        dandelionTokenizer.close();
+    }
+
+    @Test
+    public void testTokenizerPrunesEntitiesBelowConfidenceAndOutsideTopEntities() throws IOException {
+        String text = "Leonardo, Mona Lisa, Florence, Mona Lisa.";
+        String auth_token = "token";
+        String lang = "en";
+        String responseData = "{\"time\":1,\"annotations\":[" +
+            "{\"start\":0,\"end\":8,\"spot\":\"Leonardo\",\"confidence\":0.8,\"id\":18079,\"uri\":\"http://en.wikipedia.org/wiki/Leonardo_da_Vinci\"}," +
+            "{\"start\":10,\"end\":19,\"spot\":\"Mona Lisa\",\"confidence\":0.7,\"id\":70889,\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\"}," +
+            "{\"start\":21,\"end\":29,\"spot\":\"Florence\",\"confidence\":0.5,\"id\":11525,\"uri\":\"http://en.wikipedia.org/wiki/Florence\"}," +
+            "{\"start\":31,\"end\":40,\"spot\":\"Mona Lisa\",\"confidence\":0.95,\"id\":70889,\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\"}" +
+            "],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+        configMockResponse(text,auth_token,lang,HttpURLConnection.HTTP_OK,responseData);
+
+        DandelionAnnotationCache annotationCache = new DandelionAnnotationCache(1024 * 1024);
+        DandelionTokenizer.setAnnotationCache(annotationCache);
+        try {
+            Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, lang, null, 0, 0, null, null, 0.6f, 3, 1);
+            DandelionAnnotationsAttribute annotationsAtt = dandelionTokenizer.addAttribute(DandelionAnnotationsAttribute.class);
+            dandelionTokenizer.setReader(new StringReader(text));
+            dandelionTokenizer.reset();
+            // Florence is below the confidence threshold, Leonardo is not the top entity: the filters never see them
+            assertEquals(2, annotationsAtt.annotations().size());
+            dandelionTokenizer.close();
+
+            // the cached annotations are pruned in the same way
+            dandelionTokenizer.setReader(new StringReader(text));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[]{"Leonardo, ", "Mona Lisa", ", Florence, ", "Mona Lisa", "."},
+                new int[]{0, 10, 19, 31, 40},
+                new int[]{10, 19, 31, 40, 41},
+                new String[]{"", "https://en.wikipedia.org/wiki/Mona_Lisa", "", "https://en.wikipedia.org/wiki/Mona_Lisa", ""},
+                new int[]{1, 1, 1, 1, 1}
+            );
+
+            // the requests with other thresholds do not share the cache entry
+            assertNull(annotationCache.get(DandelionAnnotationCache.key(text, DandelionTokenizer.NEX_URL, lang, auth_token)));
+            assertEquals(1, annotationCache.count());
+        } finally {
+            DandelionTokenizer.setAnnotationCache(null);
+        }
+
+        // the thresholds are sent to Dandelion API as well
+        verify(httpUrlConnection,times(1)).getOutputStream();
+        assertEquals(params_expected + "&min_confidence=0.6&min_length=3", params_sent);
+    }
+
+    @Test
+    public void testPruneCopiesTheAnnotationsOnlyWhenOneIsDropped() {
+        DandelionAnnotations annotations = new DandelionAnnotations.Builder()
+            .add(0, 8, "http://en.wikipedia.org/wiki/Leonardo_da_Vinci", 18079, 0.8f)
+            .add(10, 19, "http://en.wikipedia.org/wiki/Mona_Lisa", 70889, 0.7f)
+            .add(21, 29, "http://en.wikipedia.org/wiki/Florence", 11525, 0.5f)
+            .build();
+
+        // the defaults and the thresholds that keep every annotation return the same instance
+        assertSame(annotations, annotations.prune(Float.NaN, 0, 0));
+        assertSame(annotations, annotations.prune(0.5f, 8, 3));
+
+        DandelionAnnotations pruned = annotations.prune(0.6f, 0, 0);
+        assertEquals(2, pruned.size());
+        assertEquals(10, pruned.start(1));
+        assertEquals(70889, pruned.id(1));
+        assertEquals(0.7f, pruned.confidence(1), 0f);
+
+        pruned = annotations.prune(Float.NaN, 9, 0);
+        assertEquals(1, pruned.size());
+        assertEquals("http://en.wikipedia.org/wiki/Mona_Lisa", pruned.uri(0));
+    }
+
+    @Test
+    public void testTokenizerShouldThrowExceptionIfPruningParametersAreIllegal() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+            () -> new DandelionTokenizer("token", "en", null, 0, 0, null, null, 1.5f, 0, 0));
+        assertEquals("Illegal min_confidence parameter value: it must be between 0 and 1!", e.getMessage());
+        e = expectThrows(IllegalArgumentException.class,
+            () -> new DandelionTokenizer("token", "en", null, 0, 0, null, null, Float.NaN, 1, 0));
+        assertEquals("Illegal min_length parameter value: it must be 0 (disabled) or at least 2!", e.getMessage());
+        e = expectThrows(IllegalArgumentException.class,
+            () -> new DandelionTokenizer("token", "en", null, 0, 0, null, null, Float.NaN, 0, -1));
+        assertEquals("Illegal top_entities parameter value: it must be 0 (disabled) or greater!", e.getMessage());
+    }
+
     @Test
     public void testTokenizerShouldThrowExceptionIfPayloadSizeIsExcessive() throws IOException{
         String text = new String(new char[1048577]);
@@ -252,4 +383,440 @@ public class DandelionTokenizerTests extends ESTestCase {
         verify(httpUrlConnection,times(1)).getInputStream();
     }
 
+    @Test
+    public void testTokenizerWithAnnotationCache() throws IOException {
+        String text = "Mona Lisa.";
+        String auth_token = "token";
+        String lang = "en";
+        int responseCode = HttpURLConnection.HTTP_OK;
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":0,\"end\":9,\"spot\":\"Mona Lisa\",\"confidence\":0.7962,\"id\":70889,\"title\":\"Mona Lisa\",\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\",\"label\":\"Mona Lisa\"}],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+
+        configMockResponse(text,auth_token,lang,responseCode,responseData);
+
+        DandelionAnnotationCache annotationCache = new DandelionAnnotationCache(1024 * 1024);
+        DandelionTokenizer.setAnnotationCache(annotationCache);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, lang);
+                dandelionTokenizer.setReader(new StringReader(text));
+                BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                    new String[]{"Mona Lisa", "."},
+                    new int[]{0, 9},
+                    new int[]{9, 10},
+                    new String[]{"https://en.wikipedia.org/wiki/Mona_Lisa", ""},
+                    new int[]{1, 1}
+                );
+            }
+        } finally {
+            DandelionTokenizer.setAnnotationCache(null);
+        }
+
+        verify(httpUrlConnection,times(1)).getOutputStream();
+        assertEquals(params_expected, params_sent);
+        verify(httpUrlConnection,times(1)).getInputStream();
+
+        assertEquals(1, annotationCache.count());
+        assertEquals(2, annotationCache.stats().getHits());
+        assertEquals(1, annotationCache.stats().getMisses());
+    }
+
+    @Test
+    public void testTokenizerWithIngestSource() throws IOException {
+        String text = "Mona Lisa.";
+        DandelionAnnotations annotations = new DandelionAnnotations(new int[] {0}, new int[] {9},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa"});
+        String value = annotations.encodeInline(text);
+        int headerLength = value.length() - text.length();
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(value));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa","."},
+            new int[] {headerLength, headerLength + 9},
+            new int[] {headerLength + 9, headerLength + 10},
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa",""},
+            new int[] {1,1}
+        );
+
+        dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa."},
+            new int[] {0},
+            new int[] {10},
+            new String[] {""},
+            new int[] {1}
+        );
+    }
+
+    @Test
+    public void testTokenizerShouldThrowExceptionIfInlineAnnotationsAreMalformed() throws IOException {
+        thrown.expect(IOException.class);
+        thrown.expectMessage("Tokenizer exception: malformed dandelion inline annotations!");
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        dandelionTokenizer.setReader(new StringReader("dandelion:0,90,http://en.wikipedia.org/wiki/Mona_Lisa\nMona Lisa."));
+        dandelionTokenizer.reset();
+    }
+
+    @Test
+    public void testTokenizerDecodesResponseWithDeclaredCharset() throws IOException {
+        String text = "Il Museo del Louvre è a Parigi.";
+        String auth_token = "token";
+        String lang = "it";
+        int responseCode = HttpURLConnection.HTTP_OK;
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":3,\"end\":19,\"spot\":\"Museo del Louvre\",\"confidence\":0.8,\"id\":1,\"title\":\"Museo del Louvre\",\"uri\":\"http://it.wikipedia.org/wiki/Museo_del_Louvre_(è)\",\"label\":\"Louvre\",\"categories\":[\"Musei\"],\"lod\":{\"wikipedia\":\"x\"}}],\"lang\":\"it\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+
+        configMockResponse(text,auth_token,lang,responseCode,responseData);
+        given(httpUrlConnection.getContentType()).willReturn("application/json; charset=ISO-8859-1");
+        given(httpUrlConnection.getInputStream()).willReturn(new ByteArrayInputStream(responseData.getBytes("ISO-8859-1")));
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,lang);
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Il ","Museo del Louvre"," è a Parigi."},
+            new int[] {0,3,19},
+            new int[] {3,19,31},
+            new String[] {"","https://it.wikipedia.org/wiki/Museo_del_Louvre_(è)",""},
+            new int[] {1,1,1}
+        );
+    }
+
+    @Test
+    public void testTokenizerDecodesGzippedResponse() throws IOException {
+        String text = "La Gioconda è un quadro.";
+        String auth_token = "token";
+        String lang = "it";
+        int responseCode = HttpURLConnection.HTTP_OK;
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":3,\"end\":11,\"spot\":\"Gioconda\",\"confidence\":0.907,\"id\":10664,\"title\":\"Gioconda\",\"uri\":\"http://it.wikipedia.org/wiki/Gioconda\",\"label\":\"Gioconda\"}],\"lang\":\"it\",\"timestamp\":\"2018-03-14T12:47:46.572\"}";
+
+        configMockResponse(text,auth_token,lang,responseCode,responseData);
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(responseData.getBytes("UTF-8"));
+        }
+        given(httpUrlConnection.getContentEncoding()).willReturn("gzip");
+        given(httpUrlConnection.getInputStream()).willReturn(new ByteArrayInputStream(gzipped.toByteArray()));
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,lang);
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"La ","Gioconda"," è un quadro."},
+            new int[] {0,3,11},
+            new int[] {3,11,24},
+            new String[] {"","https://it.wikipedia.org/wiki/Gioconda",""},
+            new int[] {1,1,1}
+        );
+        verify(httpUrlConnection,times(1)).setRequestProperty("Accept-Encoding", "gzip");
+    }
+
+    @Test
+    public void testTokenizerLimitsTheTextRatherThanItsEncoding() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 150000) {
+            builder.append("蒙娜丽莎 ");
+        }
+        String text = builder.toString();
+        String auth_token = "token";
+        String lang = "auto";
+
+        configMockResponse(text,auth_token,lang,HttpURLConnection.HTTP_OK,"{\"time\":1,\"annotations\":[],\"lang\":\"zh\"}");
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        given(httpUrlConnection.getOutputStream()).willReturn(sent);
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,lang);
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer, new String[] {text});
+
+        // the percent-encoded body is larger than 1MiB
+        assertTrue(sent.size() > DandelionTokenizer.MAX_CHARS);
+        assertEquals(params_expected, sent.toString("UTF-8"));
+        verify(httpUrlConnection,times(1)).setFixedLengthStreamingMode((long) sent.size());
+    }
+
+    @Test
+    public void testTokenizerIsReusedAcrossDocumentsOfDifferentSize() throws IOException {
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() < 40000) {
+            longText.append("Mona Lisa. ");
+        }
+        DandelionAnnotations longAnnotations = new DandelionAnnotations(new int[] {0, longText.length() - 11},
+            new int[] {9, longText.length() - 2},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa", "http://en.wikipedia.org/wiki/Mona_Lisa"});
+        String longValue = longAnnotations.encodeInline(longText.toString());
+        int longHeader = longValue.length() - longText.length();
+
+        String shortText = "Mona Lisa.";
+        DandelionAnnotations shortAnnotations = new DandelionAnnotations(new int[] {0}, new int[] {9},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa"});
+        String shortValue = shortAnnotations.encodeInline(shortText);
+        int shortHeader = shortValue.length() - shortText.length();
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(null, null, "ingest");
+        for (int i = 0; i < 2; i++) {
+            dandelionTokenizer.setReader(new StringReader(longValue));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[] {"Mona Lisa", longText.substring(9, longText.length() - 11), "Mona Lisa", ". "},
+                new int[] {longHeader, longHeader + 9, longValue.length() - 11, longValue.length() - 2},
+                new int[] {longHeader + 9, longValue.length() - 11, longValue.length() - 2, longValue.length()},
+                new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa", "", "https://en.wikipedia.org/wiki/Mona_Lisa", ""},
+                new int[] {1, 1, 1, 1}
+            );
+
+            dandelionTokenizer.setReader(new StringReader(shortValue));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[] {"Mona Lisa", "."},
+                new int[] {shortHeader, shortHeader + 9},
+                new int[] {shortHeader + 9, shortHeader + 10},
+                new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa", ""},
+                new int[] {1, 1}
+            );
+        }
+    }
+
+    @Test
+    public void testTokenizerDegradesWhileDandelionIsUnavailable() throws IOException {
+        String text = "Mona Lisa.";
+        DandelionCircuitBreaker breaker = new DandelionCircuitBreaker("dandelion", 0.5, TimeValue.timeValueSeconds(10), 10, 1,
+            TimeValue.timeValueMinutes(1), 1);
+        breaker.onResult(true, 0);
+        DandelionTokenizer.setCircuitBreaker(breaker);
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer("token", "en", null, 0, 0, "degrade");
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa.", DandelionTokenizer.DEGRADED_MARKER},
+            new int[] {0, 10},
+            new int[] {10, 10},
+            new String[] {"", DandelionTokenizer.MARKER_TYPE},
+            new int[] {1, 1}
+        );
+
+        thrown.expect(DandelionUnavailableException.class);
+        dandelionTokenizer = new DandelionTokenizer("token", "en", null, 0, 0, "fail");
+        dandelionTokenizer.setReader(new StringReader(text));
+        dandelionTokenizer.reset();
+    }
+
+    @Test
+    public void testTokenizerRetriesServerErrors() throws IOException {
+        String text = "Mona Lisa.";
+        String auth_token = "token";
+        String lang = "en";
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":0,\"end\":9,\"spot\":\"Mona Lisa\",\"confidence\":0.8,\"id\":1,\"title\":\"Mona Lisa\",\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\",\"label\":\"Mona Lisa\"}],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+
+        configMockResponse(text,auth_token,lang,HttpURLConnection.HTTP_OK,responseData);
+        given(httpUrlConnection.getResponseCode()).willReturn(HttpURLConnection.HTTP_UNAVAILABLE, HttpURLConnection.HTTP_OK);
+        given(httpUrlConnection.getHeaderField("Retry-After")).willReturn("0");
+        given(httpUrlConnection.getErrorStream()).willReturn(new ByteArrayInputStream("{\"message\":\"unavailable\"}".getBytes()));
+
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token,lang);
+        dandelionTokenizer.setReader(new StringReader(text));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa","."},
+            new int[] {0,9},
+            new int[] {9,10},
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa",""},
+            new int[] {1,1}
+        );
+    }
+
+    @Test
+    public void testNormalizeQuery() {
+        StringBuilder normalized = new StringBuilder();
+        int[] offsets = DandelionTokenizer.normalizeQuery("  Mona \t Lisa\n", normalized);
+        assertEquals("Mona Lisa", normalized.toString());
+        assertEquals(2, offsets[0]);
+        assertEquals(6, offsets[4]);
+        assertEquals(9, offsets[5]);
+        assertEquals(12, offsets[8]);
+
+        normalized.setLength(0);
+        DandelionTokenizer.normalizeQuery(" \n ", normalized);
+        assertEquals(0, normalized.length());
+    }
+
+    @Test
+    public void testTokenizerInSearchModeWithQueryCache() throws IOException {
+        String auth_token = "token";
+        String lang = "en";
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":0,\"end\":9,\"spot\":\"Mona Lisa\",\"confidence\":0.8,\"id\":1,\"title\":\"Mona Lisa\",\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\",\"label\":\"Mona Lisa\"}],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+
+        configMockResponse("Mona Lisa.",auth_token,lang,HttpURLConnection.HTTP_OK,responseData);
+        DandelionAnnotationCache queryCache = new DandelionAnnotationCache(1024 * 1024);
+        DandelionTokenizer.setQueryCache(queryCache);
+
+        // the offsets of the annotations of the normalized query are mapped back to the query
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, lang, null, 0, 0, null, "search");
+        dandelionTokenizer.setReader(new StringReader(" Mona  Lisa."));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {" ","Mona  Lisa","."},
+            new int[] {0,1,11},
+            new int[] {1,11,12},
+            new String[] {"","https://en.wikipedia.org/wiki/Mona_Lisa",""},
+            new int[] {1,1,1}
+        );
+
+        dandelionTokenizer = new DandelionTokenizer(auth_token, lang, null, 0, 0, null, "search");
+        dandelionTokenizer.setReader(new StringReader("Mona Lisa. "));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa",". "},
+            new int[] {0,9},
+            new int[] {9,11},
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa",""},
+            new int[] {1,1}
+        );
+
+        verify(httpUrlConnection,times(1)).getInputStream();
+        assertEquals(1, queryCache.count());
+        assertEquals(1, queryCache.stats().getHits());
+    }
+
+    /**
+     * Returns a fixed thread pool of Elasticsearch with its only thread and its queue taken until release is counted
+     * down: the next tasks are rejected.
+     */
+    private static EsThreadPoolExecutor saturatedPool(String name, CountDownLatch release) {
+        EsThreadPoolExecutor pool = EsExecutors.newFixed(name, 1, 1, EsExecutors.daemonThreadFactory(name),
+            new ThreadContext(Settings.EMPTY));
+        for (int i = 0; i < 2; i++) {
+            pool.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        return pool;
+    }
+
+    @Test
+    public void testTokenizerInSearchModeFallsThroughWhenTheSearchPoolIsSaturated() throws Exception {
+        DandelionTokenizer.setSearchTimeout(TimeValue.timeValueSeconds(10));
+        CountDownLatch release = new CountDownLatch(1);
+        EsThreadPoolExecutor searchExecutor = saturatedPool(DandelionTokenizer.SEARCH_THREAD_POOL_NAME, release);
+        DandelionTokenizer.setSearchExecutor(searchExecutor);
+        try {
+            // the pool rejects the request with its own exception: the query is analyzed without entities
+            Tokenizer dandelionTokenizer = new DandelionTokenizer("token", "en", null, 0, 0, null, "search");
+            dandelionTokenizer.setReader(new StringReader("Mona Lisa."));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[] {"Mona Lisa."},
+                new int[] {0},
+                new int[] {10},
+                new String[] {""},
+                new int[] {1}
+            );
+        } finally {
+            release.countDown();
+            searchExecutor.shutdown();
+            assertTrue(searchExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testAnalyzerInSearchModeKeepsTheTextOfTheQueriesWithoutEntities() throws Exception {
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":0,\"end\":9,\"spot\":\"Mona Lisa\",\"confidence\":0.8,\"id\":1,\"title\":\"Mona Lisa\",\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\",\"label\":\"Mona Lisa\"}],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+        configMockResponse("Mona Lisa.", "token", "en", HttpURLConnection.HTTP_OK, responseData);
+        DandelionAnalyzer analyzer = new DandelionAnalyzer("token", "en", "false", null, 0, 0, null, "search");
+
+        CountDownLatch release = new CountDownLatch(1);
+        EsThreadPoolExecutor searchExecutor = saturatedPool(DandelionTokenizer.SEARCH_THREAD_POOL_NAME, release);
+        DandelionTokenizer.setSearchExecutor(searchExecutor);
+        try {
+            // the filter drops the text of the queries with entities, but the query would match nothing without them
+            BaseTokenStreamTestCase.assertTokenStreamContents(analyzer.tokenStream("text", "Mona Lisa."),
+                new String[] {"Mona Lisa."});
+        } finally {
+            release.countDown();
+            searchExecutor.shutdown();
+            assertTrue(searchExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        DandelionTokenizer.setSearchExecutor(null);
+        BaseTokenStreamTestCase.assertTokenStreamContents(analyzer.tokenStream("text", "Mona Lisa."),
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa"});
+    }
+
+    @Test
+    public void testTokenizerInSearchModeFallsThroughWhenTheRateLimitIsExceeded() throws Exception {
+        DandelionRateLimiter limiter = new DandelionRateLimiter("dandelion", 1, 0, false,
+            TimeValue.timeValueSeconds(30), TimeValue.timeValueMinutes(1));
+        limiter.acquire(1);
+        DandelionTokenizer.setRateLimiter(limiter);
+        try {
+            // the search requests are rejected rather than waiting for a token
+            Tokenizer dandelionTokenizer = new DandelionTokenizer("token", "en", null, 0, 0, null, "search");
+            dandelionTokenizer.setReader(new StringReader("Mona Lisa."));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[] {"Mona Lisa."},
+                new int[] {0},
+                new int[] {10},
+                new String[] {""},
+                new int[] {1}
+            );
+        } finally {
+            DandelionTokenizer.setRateLimiter(null);
+        }
+    }
+
+    @Test
+    public void testTokenizerInSearchModeFallsThroughWhenTheBudgetRunsOut() throws Exception {
+        String auth_token = "token";
+        String lang = "en";
+        String responseData = "{\"time\":1,\"annotations\":[{\"start\":0,\"end\":9,\"spot\":\"Mona Lisa\",\"confidence\":0.8,\"id\":1,\"title\":\"Mona Lisa\",\"uri\":\"http://en.wikipedia.org/wiki/Mona_Lisa\",\"label\":\"Mona Lisa\"}],\"lang\":\"en\",\"timestamp\":\"2018-03-14T12:45:44.766\"}";
+
+        configMockResponse("Mona Lisa.",auth_token,lang,HttpURLConnection.HTTP_OK,responseData);
+        DandelionAnnotationCache queryCache = new DandelionAnnotationCache(1024 * 1024);
+        DandelionTokenizer.setQueryCache(queryCache);
+        DandelionTokenizer.setSearchTimeout(TimeValue.timeValueMillis(10));
+        ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+        DandelionTokenizer.setSearchExecutor(searchExecutor);
+        CountDownLatch busy = new CountDownLatch(1);
+        try {
+            // the request waits behind a busy thread: the query is analyzed without entities
+            searchExecutor.execute(() -> {
+                try {
+                    busy.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, lang, null, 0, 0, null, "search");
+            dandelionTokenizer.setReader(new StringReader("Mona Lisa."));
+            BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+                new String[] {"Mona Lisa."},
+                new int[] {0},
+                new int[] {10},
+                new String[] {""},
+                new int[] {1}
+            );
+        } finally {
+            busy.countDown();
+            searchExecutor.shutdown();
+            assertTrue(searchExecutor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+
+        // but it completes in the background and fills the cache for the next occurrences of the query
+        assertEquals(1, queryCache.count());
+        DandelionTokenizer.setSearchExecutor(null);
+        Tokenizer dandelionTokenizer = new DandelionTokenizer(auth_token, lang, null, 0, 0, null, "search");
+        dandelionTokenizer.setReader(new StringReader("Mona Lisa."));
+        BaseTokenStreamTestCase.assertTokenStreamContents(dandelionTokenizer,
+            new String[] {"Mona Lisa","."},
+            new int[] {0,9},
+            new int[] {9,10},
+            new String[] {"https://en.wikipedia.org/wiki/Mona_Lisa",""},
+            new int[] {1,1}
+        );
+        verify(httpUrlConnection,times(1)).getInputStream();
+    }
+
+    @Test
+    public void testTokenizerShouldThrowExceptionIfModeNotExists() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+            () -> new DandelionTokenizer("token", "en", null, 0, 0, null, "query"));
+        assertEquals("Illegal mode parameter value: only index/search are allowed!", e.getMessage());
+    }
 }
@@ -0,0 +1,107 @@
+package org.elasticsearch.ingest.dandelion;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.index.analysis.DandelionAnnotationCache;
+import org.elasticsearch.index.analysis.DandelionAnnotations;
+import org.elasticsearch.index.analysis.DandelionTokenizer;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DandelionProcessorTests extends ESTestCase {
+
+    private DandelionAnnotationCache annotationCache;
+    private ExecutorService executor;
+
+    @Before
+    public void setupAnnotationCache() {
+        // the annotations are served from the cache, so that no request is sent to Dandelion API
+        annotationCache = new DandelionAnnotationCache(1024 * 1024);
+        DandelionTokenizer.setAnnotationCache(annotationCache);
+        executor = Executors.newFixedThreadPool(2);
+        DandelionProcessor.setExecutor(executor);
+    }
+
+    @After
+    public void resetAnnotationCache() throws InterruptedException {
+        DandelionTokenizer.setAnnotationCache(null);
+        DandelionProcessor.setExecutor(null);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private DandelionProcessor createProcessor(Map<String, Object> config) throws Exception {
+        return new DandelionProcessor.Factory("token").create(null, "tag", config);
+    }
+
+    @Test
+    public void testProcessorAnnotatesAllFields() throws Exception {
+        String title = "Mona Lisa.";
+        String text = "La Gioconda è un quadro.";
+        DandelionAnnotations titleAnnotations = new DandelionAnnotations(new int[] {0}, new int[] {9},
+            new String[] {"http://en.wikipedia.org/wiki/Mona_Lisa"});
+        DandelionAnnotations textAnnotations = new DandelionAnnotations(new int[] {3, 17}, new int[] {11, 23},
+            new String[] {"http://it.wikipedia.org/wiki/Gioconda", "http://it.wikipedia.org/wiki/Pittura"});
+        annotationCache.put(DandelionAnnotationCache.key(title, DandelionTokenizer.NEX_URL, "auto", "token"), titleAnnotations);
+        annotationCache.put(DandelionAnnotationCache.key(text, DandelionTokenizer.NEX_URL, "auto", "token"), textAnnotations);
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("fields", Arrays.asList("title", "text"));
+        DandelionProcessor processor = createProcessor(config);
+
+        Map<String, Object> source = new HashMap<>();
+        source.put("title", title);
+        source.put("text", text);
+        IngestDocument document = new IngestDocument(source, new HashMap<>());
+        processor.execute(document);
+
+        assertEquals(title, document.getFieldValue("title", String.class));
+        assertEquals(text, document.getFieldValue("text", String.class));
+        assertEquals("dandelion:0,9,http://en.wikipedia.org/wiki/Mona_Lisa\n" + title,
+            document.getFieldValue("title_annotated", String.class));
+        assertEquals("dandelion:3,11,http://it.wikipedia.org/wiki/Gioconda|17,23,http://it.wikipedia.org/wiki/Pittura\n" + text,
+            document.getFieldValue("text_annotated", String.class));
+        assertEquals(2, annotationCache.stats().getHits());
+    }
+
+    @Test
+    public void testProcessorWithMissingField() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "text");
+        config.put("ignore_missing", true);
+        DandelionProcessor processor = createProcessor(config);
+
+        IngestDocument document = new IngestDocument(new HashMap<>(), new HashMap<>());
+        processor.execute(document);
+        assertFalse(document.hasField("text_annotated"));
+
+        config = new HashMap<>();
+        config.put("field", "text");
+        DandelionProcessor strictProcessor = createProcessor(config);
+        expectThrows(IllegalArgumentException.class, () -> strictProcessor.execute(document));
+    }
+
+    @Test
+    public void testFactoryShouldThrowExceptionIfLangNotExists() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "text");
+        config.put("lang", "nonexlang");
+        expectThrows(ElasticsearchParseException.class, () -> createProcessor(config));
+    }
+
+    @Test
+    public void testFactoryShouldThrowExceptionIfAuthTokenIsNotSpecified() throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("field", "text");
+        expectThrows(ElasticsearchParseException.class, () -> new DandelionProcessor.Factory("").create(null, "tag", config));
+    }
+}